@@ -0,0 +1,545 @@
+package com.twofours.surespot;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import com.twofours.surespot.chat.SurespotMessage;
+import com.twofours.surespot.common.SurespotLog;
+
+/**
+ * Older messages of a spot kept on disk so scrolling back through history doesn't need the network.
+ *
+ * Messages are indexed by id. Alongside the messages we keep the id ranges we know are complete, i.e. we've seen everything the server has in
+ * them, so an earlier page can be served locally when it falls in a complete range and only the ids below it have to be fetched.
+ *
+ * <pre>
+ * header:  magic (4) | format version (1)
+ * record:  length (4) | type (1) | payload
+ * message: id (4) | message
+ * delete:  from id (4) | to id (4), messages in the range are gone but the range is still complete
+ * covered: from id (4) | to id (4), the range is complete
+ * forget:  from id (4) | to id (4), messages in the range are gone and the range has to be fetched again
+ * </pre>
+ *
+ * Records are appended and replayed in order on open. When the messages outgrow the budget the oldest are dropped at the next compaction.
+ *
+ * Not thread safe, StateController synchronizes access.
+ */
+class MessageHistory {
+	private static final String TAG = "MessageHistory";
+	private static final int MAGIC = 0x73736d68; // ssmh
+	private static final int FORMAT_VERSION = 1;
+	private static final int HEADER_LENGTH = 5;
+	private static final byte TYPE_MESSAGE = 1;
+	private static final byte TYPE_DELETE = 2;
+	private static final byte TYPE_COVERED = 3;
+	private static final byte TYPE_FORGET = 4;
+	// dead bytes we'll put up with before compacting
+	private static final int COMPACT_SLACK = 16 * 1024;
+
+	private static class Entry {
+		int offset;
+		int length;
+		// so an unchanged message isn't written again, a digest rather than a hash so a collision can't hide a change
+		byte[] digest;
+	}
+
+	private final String mFilename;
+	private final int mBudget;
+	// message records by id
+	private TreeMap<Integer, Entry> mIndex;
+	// complete ranges, from id to to id, not overlapping or touching
+	private TreeMap<Integer, Integer> mCovered;
+	private long mLiveBytes;
+	private long mEnd;
+
+	/**
+	 * @param budget
+	 *            bytes of messages to keep, the oldest are dropped past this
+	 */
+	MessageHistory(String filename, int budget) {
+		mFilename = filename;
+		mBudget = budget;
+	}
+
+	/**
+	 * Messages before the given id from the complete range that runs up to it, newest last
+	 *
+	 * @return up to count messages, empty if we don't have any before the id or the range up to it isn't complete
+	 */
+	List<SurespotMessage> getMessagesBefore(int beforeId, int count) {
+		open();
+		ArrayList<SurespotMessage> messages = new ArrayList<SurespotMessage>();
+		int from = getCoveredFrom(beforeId);
+		if (from >= beforeId) {
+			return messages;
+		}
+
+		RandomAccessFile raf = null;
+		try {
+			raf = new RandomAccessFile(mFilename, "r");
+			for (Map.Entry<Integer, Entry> entry : mIndex.subMap(from, true, beforeId, false).descendingMap().entrySet()) {
+				if (messages.size() == count) {
+					break;
+				}
+
+				Entry e = entry.getValue();
+				byte[] record = new byte[e.length];
+				raf.seek(e.offset);
+				raf.readFully(record);
+				messages.add(readMessage(record));
+			}
+		}
+		catch (IOException e) {
+			SurespotLog.w(TAG, e, "getMessagesBefore: %s", mFilename);
+			messages.clear();
+		}
+		finally {
+			close(raf);
+		}
+
+		// we walked backwards
+		Collections.reverse(messages);
+		return messages;
+	}
+
+	/**
+	 *
+	 * @return the start of the complete range running up to the given id, or the id itself if the ids just before it haven't been seen
+	 */
+	int getCoveredFrom(int beforeId) {
+		open();
+		Map.Entry<Integer, Integer> range = mCovered.floorEntry(beforeId - 1);
+		if (range != null && range.getValue() >= beforeId - 1) {
+			return range.getKey();
+		}
+		return beforeId;
+	}
+
+	/**
+	 * Record that the given messages are everything in the range, anything else we had in it has been deleted
+	 */
+	void put(List<SurespotMessage> messages, int from, int to) throws IOException {
+		open();
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+
+		TreeMap<Integer, byte[]> records = new TreeMap<Integer, byte[]>();
+		for (SurespotMessage message : messages) {
+			Integer id = message.getId();
+			if (id != null && id >= from && id <= to) {
+				records.put(id, encode(message));
+			}
+		}
+
+		// work out which ids have gone before we start changing the index
+		ArrayList<Integer> deleted = new ArrayList<Integer>();
+		for (Integer id : mIndex.subMap(from, true, to, true).keySet()) {
+			if (!records.containsKey(id)) {
+				deleted.add(id);
+			}
+		}
+
+		for (Integer id : deleted) {
+			append(out, TYPE_DELETE, id, id);
+		}
+
+		for (Map.Entry<Integer, byte[]> entry : records.entrySet()) {
+			byte[] record = entry.getValue();
+			Entry e = mIndex.get(entry.getKey());
+			if (e == null || !Arrays.equals(e.digest, MessageLog.digest(record))) {
+				appendMessage(out, entry.getKey(), record);
+			}
+		}
+
+		Map.Entry<Integer, Integer> range = mCovered.floorEntry(from);
+		if (range == null || range.getValue() < to) {
+			append(out, TYPE_COVERED, from, to);
+		}
+
+		write(bytes.toByteArray());
+	}
+
+	/**
+	 * Drop the messages in the range and mark it as needing to be fetched again, for when messages are deleted that we can't tell apart locally
+	 */
+	void forget(int from, int to) throws IOException {
+		open();
+		if (mIndex.subMap(from, true, to, true).isEmpty() && !overlapsCovered(from, to)) {
+			return;
+		}
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		append(new DataOutputStream(bytes), TYPE_FORGET, from, to);
+		write(bytes.toByteArray());
+	}
+
+	/**
+	 * Update the shareable flag of a message we have, for when it's changed by a control message
+	 */
+	void setShareable(int id, boolean shareable) throws IOException {
+		open();
+		Entry e = mIndex.get(id);
+		if (e == null) {
+			return;
+		}
+
+		byte[] record = new byte[e.length];
+		RandomAccessFile raf = new RandomAccessFile(mFilename, "r");
+		try {
+			raf.seek(e.offset);
+			raf.readFully(record);
+		}
+		finally {
+			close(raf);
+		}
+
+		SurespotMessage message = readMessage(record);
+		if (message.isShareable() == shareable) {
+			return;
+		}
+
+		message.setShareable(shareable);
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		appendMessage(new DataOutputStream(bytes), id, encode(message));
+		write(bytes.toByteArray());
+	}
+
+	void delete() {
+		new File(mFilename).delete();
+		mIndex = null;
+		mCovered = null;
+	}
+
+	private void open() {
+		// reload if the file was wiped or changed under us
+		File file = new File(mFilename);
+		if (mIndex != null && file.length() == mEnd) {
+			return;
+		}
+
+		mIndex = new TreeMap<Integer, Entry>();
+		mCovered = new TreeMap<Integer, Integer>();
+		mLiveBytes = 0;
+		mEnd = 0;
+
+		if (!file.exists()) {
+			return;
+		}
+
+		RandomAccessFile raf = null;
+		try {
+			raf = new RandomAccessFile(file, "rw");
+			int length = (int) raf.length();
+			MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, length);
+			if (length < HEADER_LENGTH || buffer.getInt(0) != MAGIC || buffer.get(4) != FORMAT_VERSION) {
+				throw new IOException("not a message history");
+			}
+
+			int offset = HEADER_LENGTH;
+			while (offset + 5 <= length) {
+				int recordLength = buffer.getInt(offset);
+				if (recordLength < 9 || offset + 4 + recordLength > length) {
+					break;
+				}
+
+				byte type = buffer.get(offset + 4);
+				int first = buffer.getInt(offset + 5);
+				if (type == TYPE_MESSAGE) {
+					byte[] record = new byte[recordLength - 5];
+					buffer.position(offset + 9);
+					buffer.get(record);
+					index(first, offset + 9, record);
+				}
+				else if (recordLength == 9) {
+					apply(type, first, buffer.getInt(offset + 9));
+				}
+				else {
+					break;
+				}
+				offset += 4 + recordLength;
+			}
+
+			// a crash can leave a partial record at the end, drop it so appends line up
+			if (offset < length) {
+				SurespotLog.w(TAG, "open, truncating %s from %d to %d bytes", mFilename, length, offset);
+				raf.setLength(offset);
+			}
+			mEnd = offset;
+		}
+		catch (IOException e) {
+			discard(file, e);
+		}
+		catch (BufferUnderflowException e) {
+			discard(file, e);
+		}
+		catch (IndexOutOfBoundsException e) {
+			discard(file, e);
+		}
+		finally {
+			close(raf);
+		}
+	}
+
+	// history is only a cache of what's on the server so if it's damaged start again
+	private void discard(File file, Exception e) {
+		SurespotLog.w(TAG, e, "open, discarding message history: %s", mFilename);
+		file.delete();
+		mIndex.clear();
+		mCovered.clear();
+		mLiveBytes = 0;
+		mEnd = 0;
+	}
+
+	private void write(byte[] records) throws IOException {
+		if (records.length == 0) {
+			return;
+		}
+
+		if (mEnd == 0) {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream(HEADER_LENGTH + records.length);
+			DataOutputStream out = new DataOutputStream(bytes);
+			out.writeInt(MAGIC);
+			out.writeByte(FORMAT_VERSION);
+			out.write(records);
+			records = bytes.toByteArray();
+		}
+
+		long start = mEnd;
+		RandomAccessFile raf = new RandomAccessFile(mFilename, "rw");
+		try {
+			raf.seek(start);
+			raf.write(records);
+			mEnd = raf.getFilePointer();
+		}
+		finally {
+			close(raf);
+		}
+
+		replay(records, start == 0 ? HEADER_LENGTH : 0, (int) start);
+
+		if (mLiveBytes > mBudget || mEnd > 2 * mLiveBytes + COMPACT_SLACK) {
+			compact();
+		}
+	}
+
+	// bring the index up to date with records we just appended
+	private void replay(byte[] records, int position, int fileOffset) throws IOException {
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(records, position, records.length - position));
+		while (position < records.length) {
+			int recordLength = in.readInt();
+			byte type = in.readByte();
+			int first = in.readInt();
+			if (type == TYPE_MESSAGE) {
+				byte[] record = new byte[recordLength - 5];
+				in.readFully(record);
+				index(first, fileOffset + position + 9, record);
+			}
+			else {
+				apply(type, first, in.readInt());
+			}
+			position += 4 + recordLength;
+		}
+	}
+
+	private void index(int id, int offset, byte[] record) throws IOException {
+		Entry e = new Entry();
+		e.offset = offset;
+		e.length = record.length;
+		e.digest = MessageLog.digest(record);
+		Entry old = mIndex.put(id, e);
+		if (old != null) {
+			mLiveBytes -= old.length + 9;
+		}
+		mLiveBytes += e.length + 9;
+	}
+
+	private void apply(byte type, int from, int to) {
+		switch (type) {
+			case TYPE_DELETE:
+				removeMessages(from, to);
+				break;
+			case TYPE_COVERED:
+				addCovered(from, to);
+				break;
+			case TYPE_FORGET:
+				removeMessages(from, to);
+				removeCovered(from, to);
+				break;
+		}
+	}
+
+	private void removeMessages(int from, int to) {
+		Iterator<Entry> iterator = mIndex.subMap(from, true, to, true).values().iterator();
+		while (iterator.hasNext()) {
+			mLiveBytes -= iterator.next().length + 9;
+			iterator.remove();
+		}
+	}
+
+	private void addCovered(int from, int to) {
+		// swallow any ranges that overlap or touch this one
+		Map.Entry<Integer, Integer> before = mCovered.floorEntry(from);
+		if (before != null && before.getValue() >= from - 1) {
+			from = before.getKey();
+			to = Math.max(to, before.getValue());
+		}
+
+		Map.Entry<Integer, Integer> next = mCovered.ceilingEntry(from);
+		while (next != null && next.getKey() <= to + 1) {
+			to = Math.max(to, next.getValue());
+			mCovered.remove(next.getKey());
+			next = mCovered.ceilingEntry(from);
+		}
+		mCovered.put(from, to);
+	}
+
+	private void removeCovered(int from, int to) {
+		Map.Entry<Integer, Integer> before = mCovered.lowerEntry(from);
+		if (before != null && before.getValue() >= from) {
+			mCovered.put(before.getKey(), from - 1);
+			if (before.getValue() > to) {
+				mCovered.put(to + 1, before.getValue());
+			}
+		}
+
+		Map.Entry<Integer, Integer> next = mCovered.ceilingEntry(from);
+		while (next != null && next.getKey() <= to) {
+			mCovered.remove(next.getKey());
+			if (next.getValue() > to) {
+				mCovered.put(to + 1, next.getValue());
+			}
+			next = mCovered.ceilingEntry(from);
+		}
+	}
+
+	private boolean overlapsCovered(int from, int to) {
+		Map.Entry<Integer, Integer> range = mCovered.floorEntry(to);
+		return range != null && range.getValue() >= from;
+	}
+
+	private void compact() throws IOException {
+		// drop the oldest messages until we're comfortably under budget
+		long keepBytes = mBudget * 3L / 4;
+		if (mLiveBytes > mBudget) {
+			Iterator<Map.Entry<Integer, Entry>> iterator = mIndex.entrySet().iterator();
+			int dropped = 0;
+			int lastDropped = 0;
+			while (mLiveBytes > keepBytes && iterator.hasNext()) {
+				Map.Entry<Integer, Entry> entry = iterator.next();
+				mLiveBytes -= entry.getValue().length + 9;
+				lastDropped = entry.getKey();
+				iterator.remove();
+				dropped++;
+			}
+
+			// we no longer have everything below the oldest message we kept
+			removeCovered(Integer.MIN_VALUE, lastDropped);
+			SurespotLog.v(TAG, "compact, dropped %d old messages from %s", dropped, mFilename);
+		}
+
+		RandomAccessFile in = new RandomAccessFile(mFilename, "r");
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream((int) mLiveBytes + HEADER_LENGTH + 9 * mCovered.size());
+		DataOutputStream out = new DataOutputStream(bytes);
+		TreeMap<Integer, Entry> index = new TreeMap<Integer, Entry>();
+		try {
+			out.writeInt(MAGIC);
+			out.writeByte(FORMAT_VERSION);
+			for (Map.Entry<Integer, Integer> range : mCovered.entrySet()) {
+				append(out, TYPE_COVERED, range.getKey(), range.getValue());
+			}
+
+			for (Map.Entry<Integer, Entry> entry : mIndex.entrySet()) {
+				Entry e = entry.getValue();
+				byte[] record = new byte[e.length];
+				in.seek(e.offset);
+				in.readFully(record);
+
+				Entry moved = new Entry();
+				moved.offset = out.size() + 9;
+				moved.length = e.length;
+				moved.digest = e.digest;
+				index.put(entry.getKey(), moved);
+				appendMessage(out, entry.getKey(), record);
+			}
+		}
+		finally {
+			close(in);
+		}
+
+		// write then rename so a crash can't leave a half written history
+		File file = new File(mFilename);
+		File tempFile = new File(mFilename + ".tmp");
+		RandomAccessFile raf = new RandomAccessFile(tempFile, "rw");
+		try {
+			raf.setLength(0);
+			raf.write(bytes.toByteArray());
+		}
+		finally {
+			close(raf);
+		}
+
+		if (!tempFile.renameTo(file)) {
+			tempFile.delete();
+			// the index no longer matches the file so reload it next time
+			mIndex = null;
+			throw new IOException("could not replace message history: " + mFilename);
+		}
+
+		SurespotLog.v(TAG, "compact, wrote %d messages to %s", index.size(), mFilename);
+		mIndex = index;
+		mEnd = bytes.size();
+	}
+
+	private static SurespotMessage readMessage(byte[] record) throws IOException {
+		return SurespotMessage.readFrom(new DataInputStream(new ByteArrayInputStream(record)));
+	}
+
+	private static byte[] encode(SurespotMessage message) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+		DataOutputStream out = new DataOutputStream(bytes);
+		message.writeTo(out);
+		out.close();
+		return bytes.toByteArray();
+	}
+
+	private static void appendMessage(DataOutputStream out, int id, byte[] record) throws IOException {
+		out.writeInt(record.length + 5);
+		out.writeByte(TYPE_MESSAGE);
+		out.writeInt(id);
+		out.write(record);
+	}
+
+	private static void append(DataOutputStream out, byte type, int from, int to) throws IOException {
+		out.writeInt(9);
+		out.writeByte(type);
+		out.writeInt(from);
+		out.writeInt(to);
+	}
+
+	private static void close(RandomAccessFile raf) {
+		if (raf != null) {
+			try {
+				raf.close();
+			}
+			catch (IOException e) {
+				SurespotLog.w(TAG, e, "close");
+			}
+		}
+	}
+}
@@ -0,0 +1,358 @@
+package com.twofours.surespot;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+
+import com.twofours.surespot.chat.SurespotMessage;
+import com.twofours.surespot.common.SurespotLog;
+
+/**
+ * Append only binary log of the messages saved for a spot.
+ *
+ * Saving only appends records for messages that are new or changed since the last save, plus a delete record for anything that dropped out of the
+ * saved window, instead of rewriting the whole spot as JSON. Once dead records outnumber live ones the log is compacted.
+ *
+ * <pre>
+ * header: magic (4) | format version (1)
+ * record: length (4) | type (1) | message or iv
+ * footer: record offsets (4 each) | live count (4) | record count (4) | footer magic (4)
+ * </pre>
+ *
+ * The footer is rewritten after each append. Loading maps the file and walks the records backwards from the footer until it has seen every live
+ * message, the latest record for an iv wins. Only the iv and id of each live message are read until we know which ones are wanted.
+ *
+ * Not thread safe, StateController synchronizes access.
+ */
+class MessageLog {
+	private static final String TAG = "MessageLog";
+	private static final int MAGIC = 0x73736d6c; // ssml
+	private static final int FOOTER_MAGIC = 0x73736d69; // ssmi
+	private static final int FORMAT_VERSION = 1;
+	private static final int HEADER_LENGTH = 5;
+	private static final int FOOTER_FIXED_LENGTH = 12;
+	private static final byte TYPE_MESSAGE = 1;
+	private static final byte TYPE_DELETE = 2;
+	// dead records we'll put up with before compacting
+	private static final int COMPACT_SLACK = 64;
+
+	private final String mFilename;
+	// digest of the last record written for each live message
+	private HashMap<String, byte[]> mWritten;
+	private int[] mOffsets = new int[64];
+	private int mRecordCount;
+	private int mEnd;
+
+	MessageLog(String filename) {
+		mFilename = filename;
+	}
+
+	/**
+	 * Read the live messages, id ordered. Also primes the log for appending.
+	 */
+	List<SurespotMessage> load() {
+		return load(Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Read the latest live messages, id ordered. Also primes the log for appending.
+	 * 
+	 * @param tail
+	 *            how many of the latest messages to read, the rest are only skimmed
+	 */
+	List<SurespotMessage> load(int tail) {
+		mWritten = null;
+		File file = new File(mFilename);
+		if (!file.exists()) {
+			return new ArrayList<SurespotMessage>();
+		}
+
+		ArrayList<SurespotMessage> messages = new ArrayList<SurespotMessage>();
+		RandomAccessFile raf = null;
+		try {
+			raf = new RandomAccessFile(file, "r");
+			int length = (int) raf.length();
+			MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, length);
+
+			if (length < HEADER_LENGTH + FOOTER_FIXED_LENGTH || buffer.getInt(0) != MAGIC || buffer.get(4) != FORMAT_VERSION
+					|| buffer.getInt(length - 4) != FOOTER_MAGIC) {
+				throw new IOException("not a message log");
+			}
+
+			int recordCount = buffer.getInt(length - 8);
+			int liveCount = buffer.getInt(length - 12);
+			int end = length - FOOTER_FIXED_LENGTH - 4 * recordCount;
+			if (recordCount < 0 || liveCount < 0 || liveCount > recordCount || end < HEADER_LENGTH) {
+				throw new IOException("corrupt footer");
+			}
+
+			int[] offsets = new int[Math.max(recordCount, 64)];
+			for (int i = 0; i < recordCount; i++) {
+				offsets[i] = buffer.getInt(end + 4 * i);
+			}
+
+			// newest record for an iv wins, stop once we've found every live message
+			HashMap<String, byte[]> written = new HashMap<String, byte[]>();
+			HashMap<String, byte[]> live = new HashMap<String, byte[]>();
+			ArrayList<SurespotMessage> ids = new ArrayList<SurespotMessage>();
+			HashSet<String> seen = new HashSet<String>();
+			for (int i = recordCount - 1; i >= 0 && ids.size() < liveCount; i--) {
+				int offset = offsets[i];
+				int recordEnd = i + 1 < recordCount ? offsets[i + 1] : end;
+				int recordLength = buffer.getInt(offset);
+				if (offset < HEADER_LENGTH || recordLength <= 0 || offset + 4 + recordLength != recordEnd) {
+					throw new IOException("corrupt record " + i);
+				}
+
+				byte[] record = new byte[recordLength - 1];
+				buffer.position(offset + 5);
+				buffer.get(record);
+				DataInputStream in = new DataInputStream(new ByteArrayInputStream(record));
+
+				if (buffer.get(offset + 4) == TYPE_DELETE) {
+					seen.add(in.readUTF());
+					continue;
+				}
+
+				SurespotMessage id = SurespotMessage.readIdFrom(in);
+				if (seen.add(id.getIv())) {
+					ids.add(id);
+					live.put(id.getIv(), record);
+					written.put(id.getIv(), digest(record));
+				}
+			}
+
+			if (ids.size() != liveCount) {
+				throw new IOException("missing records");
+			}
+
+			// only decode the ones that were asked for
+			Collections.sort(ids);
+			for (SurespotMessage id : ids.subList(Math.max(0, ids.size() - tail), ids.size())) {
+				messages.add(SurespotMessage.readFrom(new DataInputStream(new ByteArrayInputStream(live.get(id.getIv())))));
+			}
+
+			mWritten = written;
+			mOffsets = offsets;
+			mRecordCount = recordCount;
+			mEnd = end;
+		}
+		catch (IOException e) {
+			discard(file, e);
+			messages.clear();
+		}
+		catch (BufferUnderflowException e) {
+			discard(file, e);
+			messages.clear();
+		}
+		catch (IndexOutOfBoundsException e) {
+			discard(file, e);
+			messages.clear();
+		}
+		finally {
+			close(raf);
+		}
+
+		return messages;
+	}
+
+	/**
+	 * Make the live messages in the log match the given messages, appending what changed
+	 */
+	void save(List<SurespotMessage> messages) throws IOException {
+		File file = new File(mFilename);
+		// compact if we don't know what's in the file or it changed under us
+		if (mWritten == null || file.length() != mEnd + FOOTER_FIXED_LENGTH + 4 * mRecordCount) {
+			compact(messages);
+			return;
+		}
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		ArrayList<Integer> recordLengths = new ArrayList<Integer>();
+		HashMap<String, byte[]> updated = new HashMap<String, byte[]>();
+
+		for (SurespotMessage message : messages) {
+			byte[] record = encode(message);
+			byte[] digest = digest(record);
+			byte[] writtenDigest = mWritten.get(message.getIv());
+			if (writtenDigest == null || !Arrays.equals(writtenDigest, digest)) {
+				writeRecord(out, TYPE_MESSAGE, record);
+				recordLengths.add(5 + record.length);
+			}
+			updated.put(message.getIv(), digest);
+		}
+
+		for (String iv : mWritten.keySet()) {
+			if (!updated.containsKey(iv)) {
+				byte[] record = encodeDelete(iv);
+				writeRecord(out, TYPE_DELETE, record);
+				recordLengths.add(5 + record.length);
+			}
+		}
+
+		if (recordLengths.isEmpty()) {
+			return;
+		}
+
+		int recordCount = mRecordCount + recordLengths.size();
+		if (recordCount > 2 * updated.size() + COMPACT_SLACK) {
+			compact(messages);
+			return;
+		}
+
+		int[] offsets = mOffsets;
+		if (offsets.length < recordCount) {
+			offsets = Arrays.copyOf(offsets, Math.max(recordCount, offsets.length * 2));
+		}
+		int offset = mEnd;
+		for (int i = 0; i < recordLengths.size(); i++) {
+			offsets[mRecordCount + i] = offset;
+			offset += recordLengths.get(i);
+		}
+
+		// overwrite the old footer with the new records and a new footer
+		writeFooter(out, offsets, recordCount, updated.size());
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			raf.seek(mEnd);
+			raf.write(bytes.toByteArray());
+			raf.setLength(raf.getFilePointer());
+		}
+		finally {
+			close(raf);
+		}
+
+		SurespotLog.v(TAG, "save, appended %d records to %s", recordLengths.size(), mFilename);
+		mWritten = updated;
+		mOffsets = offsets;
+		mRecordCount = recordCount;
+		mEnd = offset;
+	}
+
+	void delete() {
+		new File(mFilename).delete();
+		mWritten = null;
+	}
+
+	// the log is only a cache of what's on the server so if it's damaged start again
+	private void discard(File file, Exception e) {
+		SurespotLog.w(TAG, e, "load, discarding message log: %s", mFilename);
+		file.delete();
+	}
+
+	private void compact(List<SurespotMessage> messages) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeInt(MAGIC);
+		out.writeByte(FORMAT_VERSION);
+
+		HashMap<String, byte[]> written = new HashMap<String, byte[]>();
+		int[] offsets = new int[Math.max(messages.size() * 2, 64)];
+		int recordCount = 0;
+		for (SurespotMessage message : messages) {
+			// there shouldn't be duplicates but a second record would throw off the live count
+			if (written.containsKey(message.getIv())) {
+				continue;
+			}
+
+			byte[] record = encode(message);
+			offsets[recordCount++] = out.size();
+			writeRecord(out, TYPE_MESSAGE, record);
+			written.put(message.getIv(), digest(record));
+		}
+
+		int end = out.size();
+		writeFooter(out, offsets, recordCount, recordCount);
+
+		// write then rename so a crash can't leave a half written log
+		File file = new File(mFilename);
+		File tempFile = new File(mFilename + ".tmp");
+		RandomAccessFile raf = new RandomAccessFile(tempFile, "rw");
+		try {
+			raf.setLength(0);
+			raf.write(bytes.toByteArray());
+		}
+		finally {
+			close(raf);
+		}
+
+		if (!tempFile.renameTo(file)) {
+			tempFile.delete();
+			throw new IOException("could not replace message log: " + mFilename);
+		}
+
+		SurespotLog.v(TAG, "compact, wrote %d messages to %s", recordCount, mFilename);
+		mWritten = written;
+		mOffsets = offsets;
+		mRecordCount = recordCount;
+		mEnd = end;
+	}
+
+	private static byte[] encode(SurespotMessage message) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+		DataOutputStream out = new DataOutputStream(bytes);
+		message.writeTo(out);
+		out.close();
+		return bytes.toByteArray();
+	}
+
+	// a hash collision would skip writing a changed message, so compare digests rather than hash codes
+	static byte[] digest(byte[] record) throws IOException {
+		try {
+			return MessageDigest.getInstance("SHA-1").digest(record);
+		}
+		catch (NoSuchAlgorithmException e) {
+			throw new IOException(e.toString());
+		}
+	}
+
+	private static byte[] encodeDelete(String iv) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(32);
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeUTF(iv);
+		out.close();
+		return bytes.toByteArray();
+	}
+
+	private static void writeRecord(DataOutputStream out, byte type, byte[] record) throws IOException {
+		out.writeInt(record.length + 1);
+		out.writeByte(type);
+		out.write(record);
+	}
+
+	private static void writeFooter(DataOutputStream out, int[] offsets, int recordCount, int liveCount) throws IOException {
+		for (int i = 0; i < recordCount; i++) {
+			out.writeInt(offsets[i]);
+		}
+		out.writeInt(liveCount);
+		out.writeInt(recordCount);
+		out.writeInt(FOOTER_MAGIC);
+	}
+
+	private static void close(RandomAccessFile raf) {
+		if (raf != null) {
+			try {
+				raf.close();
+			}
+			catch (IOException e) {
+				SurespotLog.w(TAG, e, "close");
+			}
+		}
+	}
+}
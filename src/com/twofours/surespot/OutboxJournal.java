@@ -0,0 +1,282 @@
+package com.twofours.surespot;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+import com.twofours.surespot.chat.SurespotMessage;
+import com.twofours.surespot.common.SurespotLog;
+
+/**
+ * Append only journal of the messages we haven't had acked by the server.
+ *
+ * Queuing or updating a message appends it, an ack appends a tombstone for its iv, so nothing queued is lost if we're killed before we get to
+ * save state. Loading is one pass from the start, the latest record for an iv wins. Once tombstones and stale copies outnumber the live messages
+ * the journal is rewritten with just the live ones.
+ *
+ * <pre>
+ * header: magic (4) | format version (1)
+ * record: length (4) | type (1) | message or iv
+ * </pre>
+ *
+ * Not thread safe, StateController synchronizes access.
+ */
+class OutboxJournal {
+	private static final String TAG = "OutboxJournal";
+	private static final int MAGIC = 0x73736d6a; // ssmj
+	private static final int FORMAT_VERSION = 1;
+	private static final int HEADER_LENGTH = 5;
+	private static final byte TYPE_MESSAGE = 1;
+	private static final byte TYPE_TOMBSTONE = 2;
+	// dead records we'll put up with before compacting
+	private static final int COMPACT_SLACK = 32;
+
+	private final String mFilename;
+	// latest record for each unacked message, in the order they were queued
+	private LinkedHashMap<String, byte[]> mLive;
+	private int mRecordCount;
+	private long mEnd;
+
+	OutboxJournal(String filename) {
+		mFilename = filename;
+	}
+
+	/**
+	 * Read the unacked messages in the order they were queued
+	 */
+	List<SurespotMessage> load() {
+		mLive = new LinkedHashMap<String, byte[]>();
+		mRecordCount = 0;
+		mEnd = 0;
+
+		File file = new File(mFilename);
+		if (file.exists()) {
+			DataInputStream in = null;
+			long end = 0;
+			try {
+				in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+				if (in.readInt() != MAGIC || in.readByte() != FORMAT_VERSION) {
+					throw new IOException("not an outbox journal");
+				}
+				end = HEADER_LENGTH;
+
+				while (true) {
+					int length;
+					try {
+						length = in.readInt();
+					}
+					catch (EOFException e) {
+						break;
+					}
+
+					if (length < 2) {
+						throw new IOException("corrupt record at " + end);
+					}
+
+					byte type = in.readByte();
+					byte[] record = new byte[length - 1];
+					in.readFully(record);
+
+					if (type == TYPE_MESSAGE) {
+						String iv = SurespotMessage.readFrom(new DataInputStream(new ByteArrayInputStream(record))).getIv();
+						// keep the original queue position when a message is updated
+						mLive.put(iv, record);
+					}
+					else {
+						mLive.remove(new DataInputStream(new ByteArrayInputStream(record)).readUTF());
+					}
+					mRecordCount++;
+					end += 4 + length;
+				}
+			}
+			catch (IOException e) {
+				// keep whatever we read before a partial write at the end, the journal is rewritten below
+				SurespotLog.w(TAG, e, "load, stopped reading %s at %d", mFilename, end);
+				end = -1;
+			}
+			finally {
+				if (in != null) {
+					try {
+						in.close();
+					}
+					catch (IOException e) {
+						SurespotLog.w(TAG, e, "load");
+					}
+				}
+			}
+
+			mEnd = end;
+		}
+
+		ArrayList<SurespotMessage> messages = new ArrayList<SurespotMessage>(mLive.size());
+		for (byte[] record : mLive.values()) {
+			try {
+				messages.add(SurespotMessage.readFrom(new DataInputStream(new ByteArrayInputStream(record))));
+			}
+			catch (IOException e) {
+				SurespotLog.w(TAG, e, "load");
+			}
+		}
+
+		// start clean if the journal was damaged
+		if (mEnd < 0) {
+			try {
+				compact();
+			}
+			catch (IOException e) {
+				SurespotLog.w(TAG, e, "load");
+			}
+		}
+		return messages;
+	}
+
+	/**
+	 * Serialize a message for put, call on the thread that owns the message so the record can't catch it half changed
+	 */
+	static byte[] encode(SurespotMessage message) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+		DataOutputStream out = new DataOutputStream(bytes);
+		message.writeTo(out);
+		out.close();
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * Record a queued or updated message
+	 * 
+	 * @param record
+	 *            the message from encode
+	 */
+	void put(String iv, byte[] record) throws IOException {
+		ensureLoaded();
+		mLive.put(iv, record);
+		append(TYPE_MESSAGE, record);
+	}
+
+	/**
+	 * Record that a message was acked or dropped
+	 */
+	void remove(String iv) throws IOException {
+		ensureLoaded();
+		if (mLive.remove(iv) == null) {
+			return;
+		}
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(32);
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeUTF(iv);
+		out.close();
+		append(TYPE_TOMBSTONE, bytes.toByteArray());
+	}
+
+	/**
+	 * Replace the journal with the given messages, for importing the old unsent messages file
+	 */
+	void replace(Collection<SurespotMessage> messages) throws IOException {
+		mLive = new LinkedHashMap<String, byte[]>();
+		for (SurespotMessage message : messages) {
+			mLive.put(message.getIv(), encode(message));
+		}
+		compact();
+	}
+
+	private void ensureLoaded() {
+		if (mLive == null) {
+			load();
+		}
+	}
+
+	private void append(byte type, byte[] record) throws IOException {
+		if (mRecordCount + 1 > 2 * mLive.size() + COMPACT_SLACK) {
+			compact();
+			return;
+		}
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(HEADER_LENGTH + 5 + record.length);
+		DataOutputStream out = new DataOutputStream(bytes);
+		if (mEnd == 0) {
+			out.writeInt(MAGIC);
+			out.writeByte(FORMAT_VERSION);
+		}
+		writeRecord(out, type, record);
+
+		RandomAccessFile raf = new RandomAccessFile(mFilename, "rw");
+		try {
+			raf.seek(mEnd);
+			raf.write(bytes.toByteArray());
+			mEnd = raf.getFilePointer();
+		}
+		finally {
+			close(raf);
+		}
+		mRecordCount++;
+	}
+
+	private void compact() throws IOException {
+		File file = new File(mFilename);
+		if (mLive.isEmpty()) {
+			file.delete();
+			mRecordCount = 0;
+			mEnd = 0;
+			return;
+		}
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeInt(MAGIC);
+		out.writeByte(FORMAT_VERSION);
+		for (byte[] record : mLive.values()) {
+			writeRecord(out, TYPE_MESSAGE, record);
+		}
+
+		// write then rename so a crash can't leave a half written journal
+		File tempFile = new File(mFilename + ".tmp");
+		RandomAccessFile raf = new RandomAccessFile(tempFile, "rw");
+		try {
+			raf.setLength(0);
+			raf.write(bytes.toByteArray());
+		}
+		finally {
+			close(raf);
+		}
+
+		if (!tempFile.renameTo(file)) {
+			tempFile.delete();
+			// don't know what's in the file now so read it again next time
+			mLive = null;
+			throw new IOException("could not replace outbox journal: " + mFilename);
+		}
+
+		SurespotLog.v(TAG, "compact, wrote %d messages to %s", mLive.size(), mFilename);
+		mRecordCount = mLive.size();
+		mEnd = bytes.size();
+	}
+
+	private static void writeRecord(DataOutputStream out, byte type, byte[] record) throws IOException {
+		out.writeInt(record.length + 1);
+		out.writeByte(type);
+		out.write(record);
+	}
+
+	private static void close(RandomAccessFile raf) {
+		if (raf != null) {
+			try {
+				raf.close();
+			}
+			catch (IOException e) {
+				SurespotLog.w(TAG, e, "close");
+			}
+		}
+	}
+}
@@ -4,10 +4,13 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Collection;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.ListIterator;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 import org.json.JSONArray;
 import org.json.JSONException;
@@ -15,9 +18,11 @@ import org.json.JSONObject;
 
 import android.content.Context;
 import android.os.AsyncTask;
+import android.os.Handler;
 
 import com.twofours.surespot.activities.MainActivity;
 import com.twofours.surespot.chat.ChatUtils;
+import com.twofours.surespot.chat.PlainTextCache;
 import com.twofours.surespot.chat.SurespotMessage;
 import com.twofours.surespot.common.FileUtils;
 import com.twofours.surespot.common.SurespotConstants;
@@ -31,8 +36,15 @@ import com.twofours.surespot.network.NetworkController;
 public class StateController {
 	private static final String MESSAGES_PREFIX = "messages_";
 	private static final String UNSENT_MESSAGES = "unsentMessages";
+	private static final String QUEUED_UPLOADS = "queuedUploads";
 	private static final String FRIENDS = "friends";
 	private static final String STATE_EXTENSION = ".sss";
+	private static final String MESSAGE_LOG_EXTENSION = ".sml";
+	private static final String OUTBOX_EXTENSION = ".smj";
+	private static final String HISTORY_PREFIX = "history_";
+	private static final String HISTORY_EXTENSION = ".smh";
+	// bytes of older messages to keep per spot
+	private static final int HISTORY_BUDGET = 1024 * 1024;
 	private static final String TAG = "StateController";
 	private Context mContext;
 
@@ -41,8 +53,110 @@ public class StateController {
 		public List<Friend> friends;
 	}
 	
+	private HashMap<String, MessageLog> mMessageLogs = new HashMap<String, MessageLog>();
+	private HashMap<String, MessageHistory> mMessageHistories = new HashMap<String, MessageHistory>();
+	private HashMap<String, OutboxJournal> mOutboxJournals = new HashMap<String, OutboxJournal>();
+
+	// how long to let changes pile up before writing them
+	private static final long WRITE_DELAY_MS = 2000;
+	// writes waiting to happen by what they write, a later write for the same key replaces the earlier one
+	private final LinkedHashMap<String, Runnable> mPendingWrites = new LinkedHashMap<String, Runnable>();
+	private final Handler mHandler;
+	private boolean mWriteScheduled;
+
 	public StateController(Context context) {
 		mContext = context;
+		mHandler = new Handler(context.getMainLooper());
+	}
+
+	/**
+	 * Queue a write to run on the background writer. Writes are debounced, and queuing a write for a key that's already waiting replaces it so
+	 * a burst of changes to the same state is only written once. The write should snapshot the state when it runs, not when it's queued.
+	 */
+	public void writeLater(String key, Runnable write) {
+		synchronized (mPendingWrites) {
+			mPendingWrites.put(key, write);
+			if (!mWriteScheduled) {
+				mWriteScheduled = true;
+				mHandler.postDelayed(mStartWrites, WRITE_DELAY_MS);
+			}
+		}
+	}
+
+	/**
+	 * Write everything that's queued now and wait for it
+	 * 
+	 * @param timeoutMs
+	 *            how long to wait for the writes, 0 to wait until they're done
+	 * @return true if everything was written in time, the writes carry on in the background if not
+	 */
+	public boolean flush(long timeoutMs) {
+		mHandler.removeCallbacks(mStartWrites);
+		final CountDownLatch latch = new CountDownLatch(1);
+		TaskScheduler.execute(TaskScheduler.Lane.BACKGROUND, new Runnable() {
+
+			@Override
+			public void run() {
+				runPendingWrites();
+				latch.countDown();
+			}
+		});
+
+		try {
+			if (timeoutMs <= 0) {
+				latch.await();
+				return true;
+			}
+			
+			boolean done = latch.await(timeoutMs, TimeUnit.MILLISECONDS);
+			if (!done) {
+				SurespotLog.i(TAG, "flush, writes still running after %d ms", timeoutMs);
+			}
+			return done;
+		}
+		catch (InterruptedException e) {
+			SurespotLog.w(TAG, e, "flush");
+			return false;
+		}
+	}
+
+	private Runnable mStartWrites = new Runnable() {
+
+		@Override
+		public void run() {
+			TaskScheduler.execute(TaskScheduler.Lane.BACKGROUND, new Runnable() {
+
+				@Override
+				public void run() {
+					runPendingWrites();
+				}
+			});
+		}
+	};
+
+	private void runPendingWrites() {
+		ArrayList<Runnable> writes;
+		synchronized (mPendingWrites) {
+			writes = new ArrayList<Runnable>(mPendingWrites.values());
+			mPendingWrites.clear();
+			mWriteScheduled = false;
+		}
+
+		if (writes.isEmpty()) {
+			return;
+		}
+
+		long start = System.currentTimeMillis();
+		for (Runnable write : writes) {
+			try {
+				write.run();
+			}
+			catch (RuntimeException e) {
+				// don't let one bad write lose the rest
+				SurespotLog.w(TAG, e, "runPendingWrites");
+			}
+		}
+		SurespotLog.v(TAG, "runPendingWrites, wrote %d items in %d ms", writes.size(), System.currentTimeMillis() - start);
 	}
 
 	public FriendState loadFriends() {
@@ -90,8 +204,8 @@ public class StateController {
 		return null;
 	}
 
-	public synchronized void saveFriends(int latestUserControlId, List<Friend> friends) {
-		String filename = getFilename(FRIENDS);
+	public synchronized void saveFriends(String user, int latestUserControlId, List<Friend> friends) {
+		String filename = getFilename(user, FRIENDS);
 		if (filename != null) {
 			if (friends != null && friends.size() > 0) {
 
@@ -124,67 +238,178 @@ public class StateController {
 		}
 	}
 
-	public synchronized void saveUnsentMessages(Collection<SurespotMessage> messages) {
-		String filename = getFilename(UNSENT_MESSAGES);
-		if (filename != null) {
-			if (messages != null) {
-				if (messages.size() > 0) {
+	/**
+	 * Journal a message that's been queued to send or changed while waiting, on the background writer
+	 */
+	public void appendUnsentMessage(SurespotMessage message) {
+		appendToOutbox(UNSENT_MESSAGES, message);
+	}
 
-					String messageString = ChatUtils.chatMessagesToJson(messages).toString();
+	/**
+	 * Journal that a message was acked or dropped, on the background writer
+	 */
+	public void removeUnsentMessage(String iv) {
+		removeFromOutbox(UNSENT_MESSAGES, iv);
+	}
 
-					try {
-						FileUtils.writeFile(filename, messageString);
-					}
-					catch (IOException e) {
-						SurespotLog.w(TAG, e, "saveUnsentMessages");
+	/**
+	 * Journal an image or voice message waiting for its file to be uploaded, on the background writer
+	 */
+	public void appendQueuedUpload(SurespotMessage message) {
+		appendToOutbox(QUEUED_UPLOADS, message);
+	}
+
+	/**
+	 * Journal that a message's file was uploaded or given up on, on the background writer
+	 */
+	public void removeQueuedUpload(String iv) {
+		removeFromOutbox(QUEUED_UPLOADS, iv);
+	}
+
+	public synchronized List<SurespotMessage> loadQueuedUploads() {
+		OutboxJournal journal = getOutboxJournal(IdentityController.getLoggedInUser(), QUEUED_UPLOADS);
+		if (journal == null) {
+			return new ArrayList<SurespotMessage>();
+		}
+
+		List<SurespotMessage> messages = journal.load();
+		SurespotLog.v(TAG, "loaded: %d queued uploads.", messages.size());
+		return messages;
+	}
+
+	private void appendToOutbox(final String name, SurespotMessage message) {
+		final String user = IdentityController.getLoggedInUser();
+		final String iv = message.getIv();
+		// the ui thread keeps changing the message so take a copy of it as it is now
+		final byte[] record;
+		try {
+			record = OutboxJournal.encode(message);
+		}
+		catch (IOException e) {
+			SurespotLog.w(TAG, e, "appendToOutbox");
+			return;
+		}
+
+		TaskScheduler.execute(TaskScheduler.Lane.BACKGROUND, new Runnable() {
+
+			@Override
+			public void run() {
+				synchronized (StateController.this) {
+					OutboxJournal journal = getOutboxJournal(user, name);
+					if (journal != null) {
+						try {
+							journal.put(iv, record);
+						}
+						catch (IOException e) {
+							SurespotLog.w(TAG, e, "appendToOutbox");
+						}
 					}
 				}
-				else {
-					new File(filename).delete();
-				}
 			}
-			else {
-				new File(filename).delete();
+		});
+	}
+
+	private void removeFromOutbox(final String name, final String iv) {
+		final String user = IdentityController.getLoggedInUser();
+		TaskScheduler.execute(TaskScheduler.Lane.BACKGROUND, new Runnable() {
+
+			@Override
+			public void run() {
+				synchronized (StateController.this) {
+					OutboxJournal journal = getOutboxJournal(user, name);
+					if (journal != null) {
+						try {
+							journal.remove(iv);
+						}
+						catch (IOException e) {
+							SurespotLog.w(TAG, e, "removeFromOutbox");
+						}
+					}
+				}
 			}
+		});
+	}
+
+	public synchronized List<SurespotMessage> loadUnsentMessages() {
+		String user = IdentityController.getLoggedInUser();
+		OutboxJournal journal = getOutboxJournal(user, UNSENT_MESSAGES);
+		if (journal == null) {
+			return new ArrayList<SurespotMessage>();
 		}
 
-	}
+		List<SurespotMessage> messages = journal.load();
 
-	public List<SurespotMessage> loadUnsentMessages() {
-		String filename = getFilename(UNSENT_MESSAGES);
-		ArrayList<SurespotMessage> messages = new ArrayList<SurespotMessage>();
-		if (filename != null) {
-			String sUnsentMessages = null;
+		// bring over anything left in the old unsent messages file
+		String legacyFilename = getFilename(user, UNSENT_MESSAGES);
+		if (legacyFilename != null && new File(legacyFilename).exists()) {
+			LinkedHashMap<String, SurespotMessage> merged = new LinkedHashMap<String, SurespotMessage>();
+			for (SurespotMessage message : loadLegacyUnsentMessages(legacyFilename)) {
+				merged.put(message.getIv(), message);
+			}
+			for (SurespotMessage message : messages) {
+				merged.put(message.getIv(), message);
+			}
 
 			try {
-				sUnsentMessages = new String(FileUtils.readFile(filename));
-			}
-			catch (FileNotFoundException f) {
-				SurespotLog.v(TAG, "loadUnsentMessages, no unsent messages file found");
+				journal.replace(merged.values());
+				new File(legacyFilename).delete();
 			}
 			catch (IOException e) {
 				SurespotLog.w(TAG, e, "loadUnsentMessages");
 			}
-			if (sUnsentMessages != null) {
-				Iterator<SurespotMessage> iterator = ChatUtils.jsonStringToChatMessages(sUnsentMessages).iterator();
+			messages = new ArrayList<SurespotMessage>(merged.values());
+		}
 
-				while (iterator.hasNext()) {
-					messages.add(iterator.next());
-				}
-				SurespotLog.v(TAG, "loaded: %d unsent messages.", messages.size());
+		SurespotLog.v(TAG, "loaded: %d unsent messages.", messages.size());
+		return messages;
+	}
+
+	// unsent messages saved as json before the journal
+	private List<SurespotMessage> loadLegacyUnsentMessages(String filename) {
+		ArrayList<SurespotMessage> messages = new ArrayList<SurespotMessage>();
+		String sUnsentMessages = null;
+
+		try {
+			sUnsentMessages = new String(FileUtils.readFile(filename));
+		}
+		catch (FileNotFoundException f) {
+			SurespotLog.v(TAG, "loadUnsentMessages, no unsent messages file found");
+		}
+		catch (IOException e) {
+			SurespotLog.w(TAG, e, "loadUnsentMessages");
+		}
+		if (sUnsentMessages != null) {
+			Iterator<SurespotMessage> iterator = ChatUtils.jsonStringToChatMessages(sUnsentMessages).iterator();
+
+			while (iterator.hasNext()) {
+				messages.add(iterator.next());
 			}
 		}
 		return messages;
+	}
+
+	private OutboxJournal getOutboxJournal(String user, String name) {
+		String filename = getFilename(user, name, OUTBOX_EXTENSION);
+		if (filename == null) {
+			return null;
+		}
 
+		OutboxJournal journal = mOutboxJournals.get(filename);
+		if (journal == null) {
+			journal = new OutboxJournal(filename);
+			mOutboxJournals.put(filename, journal);
+		}
+		return journal;
 	}
-	
+
 	public synchronized void saveMessages(String spot, ArrayList<SurespotMessage> messages, int currentScrollPosition) {
 		saveMessages(IdentityController.getLoggedInUser(), spot, messages, currentScrollPosition);	
 	}
 	
 	public synchronized void saveMessages(String user, String spot, ArrayList<SurespotMessage> messages, int currentScrollPosition) {
-		String filename = getFilename(user, MESSAGES_PREFIX + spot);
+		String filename = getFilename(user, MESSAGES_PREFIX + spot, MESSAGE_LOG_EXTENSION);
 		if (filename != null) {
+			MessageLog messageLog = getMessageLog(filename);
 			if (messages != null) {
 				int messagesSize = messages.size();
 				int saveSize = messagesSize - currentScrollPosition;
@@ -196,26 +421,172 @@ public class StateController {
 				}
 
 				SurespotLog.v(TAG, "saving %s messages", saveSize);
-				String sMessages = ChatUtils.chatMessagesToJson(
-						messagesSize <= saveSize ? messages : messages.subList(messagesSize - saveSize, messagesSize)).toString();
+				List<SurespotMessage> window = messagesSize <= saveSize ? messages : messages.subList(messagesSize - saveSize, messagesSize);
 				try {
-					FileUtils.writeFile(filename, sMessages);
+					messageLog.save(window);
 				}
 				catch (IOException e) {
 					SurespotLog.w(TAG, e, "saveMessages");
 				}
+
+				// keep what's scrolling out of the window in the history
+				saveHistory(user, spot, window);
 			}
 			else {
-				new File(filename).delete();
+				messageLog.delete();
+			}
+
+			// the log supersedes the json file
+			String legacyFilename = getFilename(user, MESSAGES_PREFIX + spot);
+			if (legacyFilename != null) {
+				new File(legacyFilename).delete();
 			}
 		}
 	}
 
-	public ArrayList<SurespotMessage> loadMessages(String spot) {
-		return loadMessages(IdentityController.getLoggedInUser(), spot);
+	/**
+	 * Load the latest messages for the chat's first screen, anything earlier is in the history
+	 */
+	public synchronized ArrayList<SurespotMessage> loadMessages(String spot) {
+		return loadMessages(IdentityController.getLoggedInUser(), spot, SurespotConstants.SAVE_MESSAGE_MINIMUM);
 	}
 	
-	public ArrayList<SurespotMessage> loadMessages(String user, String spot) {
+	public synchronized ArrayList<SurespotMessage> loadMessages(String user, String spot) {
+		return loadMessages(user, spot, Integer.MAX_VALUE);
+	}
+
+	private ArrayList<SurespotMessage> loadMessages(String user, String spot, int tail) {
+		ArrayList<SurespotMessage> messages = new ArrayList<SurespotMessage>();
+		String logFilename = getFilename(user, MESSAGES_PREFIX + spot, MESSAGE_LOG_EXTENSION);
+		if (logFilename != null && new File(logFilename).exists()) {
+			messages.addAll(getMessageLog(logFilename).load(tail));
+			SurespotLog.v(TAG, "loaded: %d messages from log.", messages.size());
+		}
+		else {
+			messages.addAll(loadLegacyMessages(user, spot));
+		}
+
+		for (SurespotMessage message : messages) {
+			message.setAlreadySent(true);
+			if (SurespotConstants.MimeTypes.TEXT.equals(message.getMimeType())) {
+				PlainTextCache.fill(message);
+			}
+		}
+		return messages;
+	}
+
+	/**
+	 * Earlier messages from the local history, only if everything between them and the given id is known
+	 * 
+	 * @return up to count messages before the id, empty if they have to come from the server
+	 */
+	public synchronized ArrayList<SurespotMessage> loadEarlierMessages(String user, String spot, int beforeId, int count) {
+		ArrayList<SurespotMessage> messages = new ArrayList<SurespotMessage>();
+		MessageHistory history = getMessageHistory(user, spot);
+		if (history != null) {
+			messages.addAll(history.getMessagesBefore(beforeId, count));
+			for (SurespotMessage message : messages) {
+				message.setAlreadySent(true);
+				if (SurespotConstants.MimeTypes.TEXT.equals(message.getMimeType())) {
+					PlainTextCache.fill(message);
+				}
+			}
+		}
+		return messages;
+	}
+
+	/**
+	 * 
+	 * @return the id the server has to be asked for messages before, the start of the history we have running up to the given id
+	 */
+	public synchronized int getHistoryStart(String user, String spot, int beforeId) {
+		MessageHistory history = getMessageHistory(user, spot);
+		return history == null ? beforeId : history.getCoveredFrom(beforeId);
+	}
+
+	/**
+	 * Add a page of messages from the server to the history
+	 * 
+	 * @param from
+	 *            first id the page covers, the server has nothing else between it and to
+	 */
+	public synchronized void saveEarlierMessages(String user, String spot, List<SurespotMessage> messages, int from, int to) {
+		MessageHistory history = getMessageHistory(user, spot);
+		if (history != null && from <= to) {
+			try {
+				history.put(messages, from, to);
+			}
+			catch (IOException e) {
+				SurespotLog.w(TAG, e, "saveEarlierMessages");
+			}
+		}
+	}
+
+	/**
+	 * Drop messages from the history that were deleted so they're fetched again from the server
+	 */
+	public synchronized void forgetHistory(String user, String spot, int from, int to) {
+		MessageHistory history = getMessageHistory(user, spot);
+		if (history != null) {
+			try {
+				history.forget(from, to);
+			}
+			catch (IOException e) {
+				SurespotLog.w(TAG, e, "forgetHistory");
+			}
+		}
+	}
+
+	/**
+	 * Apply a shareable or notshareable control message to the history
+	 */
+	public synchronized void setHistoryShareable(String user, String spot, int id, boolean shareable) {
+		MessageHistory history = getMessageHistory(user, spot);
+		if (history != null) {
+			try {
+				history.setShareable(id, shareable);
+			}
+			catch (IOException e) {
+				SurespotLog.w(TAG, e, "setHistoryShareable");
+			}
+		}
+	}
+
+	private void saveHistory(String user, String spot, List<SurespotMessage> window) {
+		// messages from gcm may have skipped some so only the ones we got from the server are known to be complete
+		int from = 0;
+		int to = 0;
+		for (SurespotMessage message : window) {
+			Integer id = message.getId();
+			if (id != null && !message.isGcm()) {
+				if (from == 0) {
+					from = id;
+				}
+				to = id;
+			}
+		}
+
+		if (from > 0) {
+			saveEarlierMessages(user, spot, window, from, to);
+		}
+	}
+
+	private MessageHistory getMessageHistory(String user, String spot) {
+		String filename = getFilename(user, HISTORY_PREFIX + spot, HISTORY_EXTENSION);
+		if (filename == null) {
+			return null;
+		}
+
+		MessageHistory history = mMessageHistories.get(filename);
+		if (history == null) {
+			history = new MessageHistory(filename, HISTORY_BUDGET);
+			mMessageHistories.put(filename, history);
+		}
+		return history;
+	}
+
+	// messages saved as json before the message log
+	private ArrayList<SurespotMessage> loadLegacyMessages(String user, String spot) {
 		String filename = getFilename(user, MESSAGES_PREFIX + spot);
 		ArrayList<SurespotMessage> messages = new ArrayList<SurespotMessage>();
 		if (filename != null) {
@@ -231,29 +602,37 @@ public class StateController {
 				SurespotLog.w(TAG, e, "loadMessages");
 			}
 			if (sMessages != null) {
-				Iterator<SurespotMessage> iterator = ChatUtils.jsonStringToChatMessages(sMessages).iterator();
-				while (iterator.hasNext()) {
-					SurespotMessage message = iterator.next();									
-					message.setAlreadySent(true);
-					messages.add(message);
-				}
+				messages.addAll(ChatUtils.jsonStringToChatMessages(sMessages));
 				SurespotLog.v(TAG, "loaded: %d messages.", messages.size());
 			}
 		}
 		return messages;
 	}
 
+	private MessageLog getMessageLog(String filename) {
+		MessageLog messageLog = mMessageLogs.get(filename);
+		if (messageLog == null) {
+			messageLog = new MessageLog(filename);
+			mMessageLogs.put(filename, messageLog);
+		}
+		return messageLog;
+	}
+
 	private String getFilename(String filename) {
 		String user = IdentityController.getLoggedInUser();	
 		return getFilename(user, filename);
 	}
 	
 	private String getFilename(String user, String filename) {
+		return getFilename(user, filename, STATE_EXTENSION);
+	}
+
+	private String getFilename(String user, String filename, String extension) {
 	
 		if (user != null) {
 			String dir = FileUtils.getStateDir(mContext) + File.separator + user;
 			if (FileUtils.ensureDir(dir)) {
-				return dir + File.separator + filename + STATE_EXTENSION;
+				return dir + File.separator + filename + extension;
 			}
 
 		}
@@ -312,10 +691,10 @@ public class StateController {
 		FileUtils.deleteRecursive(new File(publicKeyDir));
 		
 		String room = ChatUtils.getSpot(username, otherUsername);
-		String messageFile = FileUtils.getStateDir(context) + File.separator + username + File.separator + "messages_" + room
-				+ STATE_EXTENSION;
-		File file = new File(messageFile);
-		file.delete();
+		String userDir = FileUtils.getStateDir(context) + File.separator + username + File.separator;
+		new File(userDir + MESSAGES_PREFIX + room + STATE_EXTENSION).delete();
+		new File(userDir + MESSAGES_PREFIX + room + MESSAGE_LOG_EXTENSION).delete();
+		new File(userDir + HISTORY_PREFIX + room + HISTORY_EXTENSION).delete();
 
 	}
 }
@@ -1,9 +1,8 @@
 package com.twofours.surespot;
 
 import java.security.Security;
-import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.Executor;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.SynchronousQueue;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
@@ -40,7 +39,6 @@ public class SurespotApplication extends Application {
 	private static BillingController mBillingController;
 	private static String mUserAgent;
 
-	public static final int CORE_POOL_SIZE = 24;
 	public static final int MAXIMUM_POOL_SIZE = Integer.MAX_VALUE;
 	public static final int KEEP_ALIVE = 1;
 
@@ -54,14 +52,13 @@ public class SurespotApplication extends Application {
 		}
 	};
 
-	public static final BlockingQueue<Runnable> sPoolWorkQueue = new LinkedBlockingQueue<Runnable>();
-
 	/**
-	 * An {@link Executor} that can be used to execute tasks in parallel.
+	 * An {@link Executor} for the halves of encryption pipes that block on each other. There's no queue, every task gets a thread straight away
+	 * (reusing an idle one if there is one), so one half can never wait behind the other. Everything else should go through
+	 * {@link TaskScheduler}.
 	 */
-	public static final Executor THREAD_POOL_EXECUTOR = new ThreadPoolExecutor(CORE_POOL_SIZE, MAXIMUM_POOL_SIZE, KEEP_ALIVE, TimeUnit.SECONDS, sPoolWorkQueue,
-			sThreadFactory);
-	;
+	public static final Executor THREAD_POOL_EXECUTOR = new ThreadPoolExecutor(0, MAXIMUM_POOL_SIZE, KEEP_ALIVE, TimeUnit.SECONDS,
+			new SynchronousQueue<Runnable>(), sThreadFactory);
 
 	public void onCreate() {
 		super.onCreate();
@@ -0,0 +1,212 @@
+package com.twofours.surespot;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.os.Process;
+
+/**
+ * Runs background work in priority lanes instead of one big FIFO pool, so decrypting the rows on screen doesn't queue behind hundreds of off
+ * screen messages.
+ *
+ * Each lane has its own capped pool running at its own thread priority. Every submitted task gets a Token, cancelling it pulls the task out of
+ * the queue so work for recycled views is dropped before it runs.
+ *
+ * Tasks that block on each other (the two halves of an encryption pipe) must not share a capped lane, they stay on
+ * SurespotApplication.THREAD_POOL_EXECUTOR.
+ */
+public class TaskScheduler {
+	private static final int CPU_COUNT = Runtime.getRuntime().availableProcessors();
+
+	public enum Lane {
+		// rows on screen, these mostly wait on the network so allow more than a thread per core
+		VISIBLE(Math.max(2, CPU_COUNT * 2), Process.THREAD_PRIORITY_DEFAULT),
+		// sends the user is waiting on
+		SEND(Math.max(2, CPU_COUNT), Process.THREAD_PRIORITY_DEFAULT),
+		// media uploads, UploadManager decides how many of these threads are busy
+		UPLOAD(3, Process.THREAD_PRIORITY_BACKGROUND),
+		// work we'll probably need soon
+		PREFETCH(Math.max(1, CPU_COUNT / 2), Process.THREAD_PRIORITY_BACKGROUND),
+		// persistence, nobody is waiting on it
+		BACKGROUND(1, Process.THREAD_PRIORITY_BACKGROUND + Process.THREAD_PRIORITY_LESS_FAVORABLE);
+
+		private final int mThreads;
+		private final int mPriority;
+		private ThreadPoolExecutor mExecutor;
+		private final AtomicInteger mExecuted = new AtomicInteger();
+		private final AtomicInteger mDropped = new AtomicInteger();
+
+		private Lane(int threads, int priority) {
+			mThreads = threads;
+			mPriority = priority;
+		}
+
+		private synchronized ThreadPoolExecutor getExecutor() {
+			if (mExecutor == null) {
+				mExecutor = new ThreadPoolExecutor(mThreads, mThreads, SurespotApplication.KEEP_ALIVE, TimeUnit.SECONDS,
+						new LinkedBlockingQueue<Runnable>(), new LaneThreadFactory(this));
+				mExecutor.allowCoreThreadTimeOut(true);
+			}
+			return mExecutor;
+		}
+
+		public int getExecutedCount() {
+			return mExecuted.get();
+		}
+
+		public int getDroppedCount() {
+			return mDropped.get();
+		}
+
+		/**
+		 *
+		 * @return number of tasks waiting to run in this lane
+		 */
+		public int getQueuedCount() {
+			return getExecutor().getQueue().size();
+		}
+	}
+
+	/**
+	 * Implemented by tasks that need to clean up (clear loading flags etc.) if they're cancelled before they get to run
+	 */
+	public interface Droppable {
+		void onDropped();
+	}
+
+	/**
+	 * Handle on a submitted task
+	 */
+	public static class Token {
+		private volatile Lane mLane;
+		private final ScheduledTask mTask;
+		private volatile boolean mCancelled;
+
+		private Token(Lane lane, Runnable runnable) {
+			mLane = lane;
+			mTask = new ScheduledTask(this, runnable);
+		}
+
+		/**
+		 * Cancel the task, if it hasn't started yet it's removed from its lane and never runs. A task that's already running is expected to check
+		 * isCancelled itself.
+		 */
+		public void cancel() {
+			if (mCancelled) {
+				return;
+			}
+			mCancelled = true;
+
+			if (mLane.getExecutor().remove(mTask)) {
+				mTask.drop();
+			}
+		}
+
+		public boolean isCancelled() {
+			return mCancelled;
+		}
+
+		/**
+		 * Move a task that hasn't started yet to another lane, e.g. a prefetch that's now on screen
+		 *
+		 * @return false if the task already started or was cancelled
+		 */
+		public synchronized boolean moveTo(Lane lane) {
+			if (mCancelled) {
+				return false;
+			}
+
+			Lane current = mLane;
+			if (current == lane) {
+				return true;
+			}
+
+			if (current.getExecutor().remove(mTask)) {
+				mLane = lane;
+				lane.getExecutor().execute(mTask);
+				return true;
+			}
+			return false;
+		}
+	}
+
+	private static class ScheduledTask implements Runnable {
+		private final Token mToken;
+		private final Runnable mRunnable;
+		private final AtomicInteger mState = new AtomicInteger();
+
+		private ScheduledTask(Token token, Runnable runnable) {
+			mToken = token;
+			mRunnable = runnable;
+		}
+
+		@Override
+		public void run() {
+			// lost the race with cancel
+			if (mToken.isCancelled()) {
+				drop();
+				return;
+			}
+
+			if (mState.compareAndSet(0, 1)) {
+				mToken.mLane.mExecuted.incrementAndGet();
+				mRunnable.run();
+			}
+		}
+
+		private void drop() {
+			if (mState.compareAndSet(0, 2)) {
+				mToken.mLane.mDropped.incrementAndGet();
+				if (mRunnable instanceof Droppable) {
+					((Droppable) mRunnable).onDropped();
+				}
+			}
+		}
+	}
+
+	private static class LaneThreadFactory implements ThreadFactory {
+		private final Lane mLane;
+		private final AtomicInteger mCount = new AtomicInteger(1);
+
+		private LaneThreadFactory(Lane lane) {
+			mLane = lane;
+		}
+
+		public Thread newThread(final Runnable r) {
+			return new Thread(new Runnable() {
+
+				@Override
+				public void run() {
+					Process.setThreadPriority(mLane.mPriority);
+					r.run();
+				}
+			}, "surespot " + mLane.name().toLowerCase() + " #" + mCount.getAndIncrement());
+		}
+	}
+
+	/**
+	 * Queue a task in the given lane
+	 *
+	 * @return token that can be used to cancel the task
+	 */
+	public static Token execute(Lane lane, Runnable runnable) {
+		Token token = new Token(lane, runnable);
+		lane.getExecutor().execute(token.mTask);
+		return token;
+	}
+
+	public static String getStats() {
+		StringBuilder sb = new StringBuilder();
+		for (Lane lane : Lane.values()) {
+			if (sb.length() > 0) {
+				sb.append(", ");
+			}
+			sb.append(lane.name().toLowerCase()).append(": ").append(lane.getExecutedCount()).append(" run, ").append(lane.getDroppedCount())
+					.append(" dropped, ").append(lane.getQueuedCount()).append(" queued");
+		}
+		return sb.toString();
+	}
+}
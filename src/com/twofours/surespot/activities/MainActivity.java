@@ -77,6 +77,7 @@ import com.twofours.surespot.common.Utils;
 import com.twofours.surespot.friends.AutoInviteData;
 import com.twofours.surespot.friends.Friend;
 import com.twofours.surespot.identity.IdentityController;
+import com.twofours.surespot.images.BitmapPool;
 import com.twofours.surespot.images.ImageCaptureHandler;
 import com.twofours.surespot.images.ImageSelectActivity;
 import com.twofours.surespot.images.MessageImageDownloader;
@@ -1150,6 +1151,7 @@ public class MainActivity extends SherlockFragmentActivity implements OnMeasureL
 		}
 
 		MessageImageDownloader.evictCache();
+		BitmapPool.clear();
 	}
 
 	public static NetworkController getNetworkController() {
@@ -1882,6 +1884,8 @@ public class MainActivity extends SherlockFragmentActivity implements OnMeasureL
 	@Override
 	public void onLowMemory() {
 		MessageImageDownloader.evictCache();
+		// the pool only saves allocations, give the memory back
+		BitmapPool.clear();
 	}
 
 	private void setBackgroundImage() {
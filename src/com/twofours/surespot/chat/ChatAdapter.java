@@ -2,7 +2,7 @@ package com.twofours.surespot.chat;
 
 import java.lang.ref.WeakReference;
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Iterator;
 import java.util.ListIterator;
 
 import android.content.Context;
@@ -31,7 +31,7 @@ import com.twofours.surespot.voice.VoiceMessageDownloader;
 
 public class ChatAdapter extends BaseAdapter {
 	private final static String TAG = "ChatAdapter";
-	private ArrayList<SurespotMessage> mMessages = new ArrayList<SurespotMessage>();
+	private MessageStore mMessages = new MessageStore();
 	private Context mContext;
 	private final static int TYPE_US = 0;
 	private final static int TYPE_THEM = 1;
@@ -41,8 +41,11 @@ public class ChatAdapter extends BaseAdapter {
 	private boolean mDebugMode;
 	private int mCurrentScrollPositionId;
 	private MessageDecryptor mMessageDecryptor;
+	private DecryptWindow mDecryptWindow;
 	private MessageImageDownloader mMessageImageDownloader;
 	private boolean mLoaded;
+	// changed since it was last saved
+	private volatile boolean mDirty;
 	private VoiceMessageDownloader mMessageVoiceDownloader;
 	private ArrayList<SurespotControlMessage> mControlMessages = new ArrayList<SurespotControlMessage>();
 
@@ -54,6 +57,7 @@ public class ChatAdapter extends BaseAdapter {
 		mDebugMode = pm.getBoolean("pref_debug_mode", false);
 		
 		mMessageDecryptor = new MessageDecryptor(this);
+		mDecryptWindow = new DecryptWindow(mMessages, mMessageDecryptor);
 		mMessageImageDownloader = new MessageImageDownloader(this);
 		mMessageVoiceDownloader = new VoiceMessageDownloader(this);
 	}
@@ -67,12 +71,12 @@ public class ChatAdapter extends BaseAdapter {
 	}
 
 	public ArrayList<SurespotMessage> getMessages() {
-		return mMessages;
+		return mMessages.getList();
 	}
 
 	// get the last message that has an id
 	public SurespotMessage getLastMessageWithId() {
-		for (ListIterator<SurespotMessage> iterator = mMessages.listIterator(mMessages.size()); iterator.hasPrevious();) {
+		for (ListIterator<SurespotMessage> iterator = mMessages.getList().listIterator(mMessages.size()); iterator.hasPrevious();) {
 			SurespotMessage message = iterator.previous();
 			if (message.getId() != null && message.getId() > 0 && !message.isGcm()) {
 				return message;
@@ -82,7 +86,7 @@ public class ChatAdapter extends BaseAdapter {
 	}
 
 	public SurespotMessage getFirstMessageWithId() {
-		for (ListIterator<SurespotMessage> iterator = mMessages.listIterator(0); iterator.hasNext();) {
+		for (ListIterator<SurespotMessage> iterator = mMessages.getList().listIterator(0); iterator.hasNext();) {
 			SurespotMessage message = iterator.next();
 			if (message.getId() != null && message.getId() > 0 && !message.isGcm()) {
 				return message;
@@ -92,7 +96,7 @@ public class ChatAdapter extends BaseAdapter {
 	}
 
 	// update the id and sent status of the message once we received
-	private boolean addOrUpdateMessage(SurespotMessage message, boolean checkSequence, boolean sort) throws SurespotMessageSequenceException {
+	private boolean addOrUpdateMessage(SurespotMessage message, boolean checkSequence) throws SurespotMessageSequenceException {
 
 		// SurespotLog.v(TAG, "addMessage, could not find message");
 
@@ -112,9 +116,9 @@ public class ChatAdapter extends BaseAdapter {
 		//
 		SurespotLog.v(TAG, "addOrUpdateMessage: %s", message);
 
-		int index = mMessages.indexOf(message);
+		SurespotMessage updateMessage = mMessages.find(message);
 		boolean added = false;
-		if (index == -1) {
+		if (updateMessage == null) {
 
 			mMessages.add(message);
 			added = true;
@@ -122,7 +126,6 @@ public class ChatAdapter extends BaseAdapter {
 
 		else {
 			// SurespotLog.v(TAG, "addMessage, updating message");
-			SurespotMessage updateMessage = mMessages.get(index);
 
 			SurespotLog.v(TAG, "updating message: %s", updateMessage);
 			// SurespotLog.v(TAG, "new message: %s", message);
@@ -131,7 +134,8 @@ public class ChatAdapter extends BaseAdapter {
 			if (message.getId() != null) {
 				// if the id is null 'tis the same as adding the message
 				added = updateMessage.getId() == null;
-				updateMessage.setId(message.getId());
+				// let the store move the message into place
+				mMessages.setId(updateMessage, message.getId());
 
 				if (message.getDateTime() != null) {
 					updateMessage.setDateTime(message.getDateTime());
@@ -151,16 +155,15 @@ public class ChatAdapter extends BaseAdapter {
 			}
 		}
 
-		if (sort) {
-			sort();
-		}
+		// the store keeps itself ordered so there's nothing to sort
 		return added;
 	}
 
 	private void insertMessage(SurespotMessage message) {
 		synchronized (mMessages) {
-			if (mMessages.indexOf(message) == -1) {
-				mMessages.add(0, message);
+			mDirty = true;
+			if (!mMessages.contains(message)) {
+				mMessages.add(message);
 			}
 			else {
 				SurespotLog.v(TAG, "insertMessage, message already present: %s", message);
@@ -170,27 +173,46 @@ public class ChatAdapter extends BaseAdapter {
 
 	public void setMessages(ArrayList<SurespotMessage> messages) {
 		synchronized (mMessages) {
+			mDirty = true;
 
 			if (messages.size() > 0) {
-				mMessages.clear();
-				mMessages.addAll(messages);
+				mMessages.setAll(messages);
 			}
 		}
 	}
 
 	public void addOrUpdateMessages(ArrayList<SurespotMessage> messages) {
 		synchronized (mMessages) {
-
+			mDirty = true;
+			ArrayList<SurespotMessage> newMessages = new ArrayList<SurespotMessage>(messages.size());
 			for (SurespotMessage message : messages) {
+				if (!mMessages.contains(message)) {
+					newMessages.add(message);
+					continue;
+				}
+
 				try {
-					addOrUpdateMessage(message, false, false);
+					addOrUpdateMessage(message, false);
 				}
 				catch (SurespotMessageSequenceException e) {
 					SurespotLog.i(TAG, e, "addOrUpdateMessage");
 				}
 			}
 
-			sort();
+			// merge whatever's new in one pass
+			mMessages.merge(newMessages);
+		}
+	}
+
+	// insert a page of earlier messages, they come back from the server in id order
+	public void insertMessages(ArrayList<SurespotMessage> messages, boolean notify) {
+		synchronized (mMessages) {
+			mDirty = true;
+			int added = mMessages.merge(messages);
+			SurespotLog.v(TAG, "insertMessages, merged %d of %d messages", added, messages.size());
+		}
+		if (notify) {
+			notifyDataSetChanged();
 		}
 	}
 
@@ -235,7 +257,35 @@ public class ChatAdapter extends BaseAdapter {
 	}
 
 	public void setCurrentScrollPositionId(int currentScrollPositionId) {
-		mCurrentScrollPositionId = currentScrollPositionId;
+		if (currentScrollPositionId != mCurrentScrollPositionId) {
+			// changes how many messages we save
+			mCurrentScrollPositionId = currentScrollPositionId;
+			mDirty = true;
+		}
+	}
+
+	@Override
+	public void notifyDataSetChanged() {
+		mDirty = true;
+		super.notifyDataSetChanged();
+	}
+
+	/**
+	 *
+	 * @return true if the messages changed since they were last saved
+	 */
+	public boolean isDirty() {
+		return mDirty;
+	}
+
+	/**
+	 * Clear the dirty flag and copy the messages for saving
+	 */
+	public ArrayList<SurespotMessage> getMessagesForSave() {
+		synchronized (mMessages) {
+			mDirty = false;
+			return new ArrayList<SurespotMessage>(mMessages.getList());
+		}
 	}
 
 	@Override
@@ -317,7 +367,12 @@ public class ChatAdapter extends BaseAdapter {
 			if (item.getId() == null) {
 				// if it's a text message or we're sending
 				if (item.getMimeType().equals(SurespotConstants.MimeTypes.TEXT) || !item.isAlreadySent()) {
-					chatMessageViewHolder.tvTime.setText(R.string.message_sending);
+					if (item.getUploadProgress() > 0) {
+						chatMessageViewHolder.tvTime.setText(mContext.getString(R.string.message_sending_progress, item.getUploadProgress()));
+					}
+					else {
+						chatMessageViewHolder.tvTime.setText(R.string.message_sending);
+					}
 					SurespotLog.v(TAG, "getView, item.getId() is null, a text message or not loaded from disk, setting status text to sending...");
 				}
 				else {
@@ -352,8 +407,12 @@ public class ChatAdapter extends BaseAdapter {
 			chatMessageViewHolder.messageSize.setVisibility(View.GONE);
 			chatMessageViewHolder.imageView.setVisibility(View.GONE);
 			chatMessageViewHolder.imageView.clearAnimation();
+			mMessageImageDownloader.cancel(chatMessageViewHolder.imageView);
+			mMessageVoiceDownloader.cancel(convertView);
 			chatMessageViewHolder.imageView.setImageBitmap(null);
+			mDecryptWindow.onBind(item);
 			if (item.getPlainData() != null) {
+				mMessageDecryptor.cancel(chatMessageViewHolder.tvText);
 				chatMessageViewHolder.tvText.clearAnimation();
 				chatMessageViewHolder.tvText.setText(item.getPlainData());
 			}
@@ -372,6 +431,8 @@ public class ChatAdapter extends BaseAdapter {
 				chatMessageViewHolder.tvText.clearAnimation();
 				chatMessageViewHolder.tvText.setVisibility(View.GONE);
 				chatMessageViewHolder.tvText.setText("");
+				mMessageDecryptor.cancel(chatMessageViewHolder.tvText);
+				mMessageVoiceDownloader.cancel(convertView);
 				if (!TextUtils.isEmpty(item.getData())) {
 					mMessageImageDownloader.download(chatMessageViewHolder.imageView, item);
 				}
@@ -415,6 +476,8 @@ public class ChatAdapter extends BaseAdapter {
 					chatMessageViewHolder.tvText.setText("");
 					chatMessageViewHolder.ivNotShareable.setVisibility(View.GONE);
 					chatMessageViewHolder.ivShareable.setVisibility(View.GONE);
+					mMessageDecryptor.cancel(chatMessageViewHolder.tvText);
+					mMessageImageDownloader.cancel(chatMessageViewHolder.imageView);
 
 					mMessageVoiceDownloader.download(convertView, item);
 					chatMessageViewHolder.voiceSeekBar.setTag(R.id.tagMessage, new WeakReference<SurespotMessage>(item));
@@ -472,10 +535,14 @@ public class ChatAdapter extends BaseAdapter {
 
 	}
 
-	public boolean addOrUpdateMessage(SurespotMessage message, boolean checkSequence, boolean sort, boolean notify) throws SurespotMessageSequenceException {
+	/**
+	 * Add the message or update the one we have with the same iv, the store keeps messages in order so there's never a need to sort
+	 */
+	public boolean addOrUpdateMessage(SurespotMessage message, boolean checkSequence, boolean notify) throws SurespotMessageSequenceException {
 		boolean added = false;
 		synchronized (mMessages) {
-			added = addOrUpdateMessage(message, checkSequence, sort);
+			mDirty = true;
+			added = addOrUpdateMessage(message, checkSequence);
 		}
 		if (notify) {
 			notifyDataSetChanged();
@@ -494,16 +561,13 @@ public class ChatAdapter extends BaseAdapter {
 	public SurespotMessage deleteMessageByIv(String iv) {
 		synchronized (mMessages) {
 
-			SurespotMessage message = null;
-			for (ListIterator<SurespotMessage> iterator = mMessages.listIterator(); iterator.hasNext();) {
-				message = iterator.next();
-
-				if (message.getIv().equals(iv)) {
-					iterator.remove();
-					message.setDeleted(true);
-					notifyDataSetChanged();
-					return message;
-				}
+			SurespotMessage message = mMessages.removeByIv(iv);
+			if (message != null) {
+				message.setDeleted(true);
+				PlainTextCache.remove(message.getIv());
+				MessageImageDownloader.removeThumbnail(message);
+				notifyDataSetChanged();
+				return message;
 			}
 		}
 
@@ -511,15 +575,13 @@ public class ChatAdapter extends BaseAdapter {
 	}
 
 	public SurespotMessage deleteMessageById(Integer id) {
-		SurespotMessage message = null;
-		for (ListIterator<SurespotMessage> iterator = mMessages.listIterator(mMessages.size()); iterator.hasPrevious();) {
-			message = iterator.previous();
-
-			Integer localId = message.getId();
-			if (localId != null && localId.equals(id)) {
+		synchronized (mMessages) {
+			SurespotMessage message = mMessages.removeById(id);
+			if (message != null) {
 				SurespotLog.v(TAG, "deleting message");
 				message.setDeleted(true);
-				iterator.remove();
+				PlainTextCache.remove(message.getIv());
+				MessageImageDownloader.removeThumbnail(message);
 				notifyDataSetChanged();
 				return message;
 			}
@@ -529,49 +591,34 @@ public class ChatAdapter extends BaseAdapter {
 	}
 
 	public SurespotMessage getMessageById(Integer id) {
-		SurespotMessage message = null;
-		for (ListIterator<SurespotMessage> iterator = mMessages.listIterator(); iterator.hasNext();) {
-			message = iterator.next();
-
-			Integer localId = message.getId();
-			if (localId != null && localId.equals(id)) {
-
-				return message;
-			}
-		}
-		return null;
+		return mMessages.getById(id);
 	}
 
 	public SurespotMessage getMessageByIv(String iv) {
-		SurespotMessage message = null;
-		for (ListIterator<SurespotMessage> iterator = mMessages.listIterator(mMessages.size()); iterator.hasPrevious();) {
-			message = iterator.previous();
-
-			String localIv = message.getIv();
-			if (localIv != null && localIv.equals(iv)) {
-				return message;
-			}
-		}
-
-		return null;
+		return mMessages.getByIv(iv);
 	}
 
+	// the store keeps itself in order as messages are added so this is only needed if ids were changed outside the adapter
 	public void sort() {
-		Collections.sort(mMessages);
-
+		synchronized (mMessages) {
+			mMessages.sort();
+		}
 	}
 
 	public void deleteAllMessages(int utaiMessageId) {
 
 		synchronized (mMessages) {
+			mDirty = true;
 
 			//
 			// mMessages.clear();
-			for (ListIterator<SurespotMessage> iterator = mMessages.listIterator(); iterator.hasNext();) {
+			for (Iterator<SurespotMessage> iterator = mMessages.iterator(); iterator.hasNext();) {
 				SurespotMessage message = iterator.next();
 
 				if (message.getId() == null || (message.getId() != null && message.getId() <= utaiMessageId)) {
 					message.setDeleted(true);
+					PlainTextCache.remove(message.getIv());
+					MessageImageDownloader.removeThumbnail(message);
 					iterator.remove();
 				}
 			}
@@ -580,12 +627,15 @@ public class ChatAdapter extends BaseAdapter {
 
 	public void deleteTheirMessages(int utaiMessageId) {
 		synchronized (mMessages) {
-			for (ListIterator<SurespotMessage> iterator = mMessages.listIterator(); iterator.hasNext();) {
+			mDirty = true;
+			for (Iterator<SurespotMessage> iterator = mMessages.iterator(); iterator.hasNext();) {
 				SurespotMessage message = iterator.next();
 
 				// if it's not our message, delete it
 				if (message.getId() != null && message.getId() <= utaiMessageId && !message.getFrom().equals(IdentityController.getLoggedInUser())) {
 					message.setDeleted(true);
+					PlainTextCache.remove(message.getIv());
+					MessageImageDownloader.removeThumbnail(message);
 					iterator.remove();
 				}
 			}
@@ -605,7 +655,16 @@ public class ChatAdapter extends BaseAdapter {
 		synchronized (mMessages) {
 			if (!mLoaded) {
 
-				for (SurespotMessage message : mMessages) {
+				// only wait on what's on screen, off screen rows load as they're scrolled to
+				int start = 0;
+				int end = mMessages.size();
+				if (mDecryptWindow.getFirst() >= 0 && mDecryptWindow.getCount() > 0) {
+					start = Math.min(end, mDecryptWindow.getFirst());
+					end = Math.min(end, start + mDecryptWindow.getCount());
+				}
+
+				for (int i = start; i < end; i++) {
+					SurespotMessage message = mMessages.get(i);
 					if (message.isLoading() && !message.isLoaded()) {
 						return;
 					}
@@ -617,6 +676,25 @@ public class ChatAdapter extends BaseAdapter {
 		}
 	}
 
+	/**
+	 * The list scrolled, decrypt what's on screen and ahead of it
+	 */
+	public void setVisibleWindow(int first, int count) {
+		mDecryptWindow.update(first, count);
+		// the rows now on screen may already be done
+		if (count > 0) {
+			checkLoaded();
+		}
+	}
+
+	/**
+	 *
+	 * @return how often text rows were already decrypted when they came on screen
+	 */
+	public String getDecryptWindowStats() {
+		return mDecryptWindow.getStats();
+	}
+
 	public boolean isLoaded() {
 		return mLoaded;
 	}
@@ -639,7 +717,8 @@ public class ChatAdapter extends BaseAdapter {
 	public void markErrored() {
 
 		synchronized (mMessages) {
-			for (ListIterator<SurespotMessage> iterator = mMessages.listIterator(); iterator.hasNext();) {
+			mDirty = true;
+			for (Iterator<SurespotMessage> iterator = mMessages.iterator(); iterator.hasNext();) {
 				SurespotMessage message = iterator.next();
 
 				if (message.getId() == null) {
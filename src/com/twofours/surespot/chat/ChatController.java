@@ -5,22 +5,16 @@ import io.socket.IOCallback;
 import io.socket.SocketIO;
 import io.socket.SocketIOException;
 
-import java.io.BufferedInputStream;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.InterruptedIOException;
-import java.io.PipedInputStream;
-import java.io.PipedOutputStream;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.util.ArrayList;
-import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Timer;
 import java.util.TimerTask;
@@ -43,39 +37,38 @@ import android.os.AsyncTask;
 import android.support.v4.app.FragmentManager;
 import android.support.v4.view.ViewPager;
 import android.text.TextUtils;
-import ch.boye.httpclientandroidlib.Header;
-import ch.boye.httpclientandroidlib.HttpStatus;
-import ch.boye.httpclientandroidlib.HttpVersion;
-import ch.boye.httpclientandroidlib.StatusLine;
 import ch.boye.httpclientandroidlib.client.HttpResponseException;
-import ch.boye.httpclientandroidlib.client.cache.HttpCacheEntry;
 import ch.boye.httpclientandroidlib.cookie.Cookie;
-import ch.boye.httpclientandroidlib.impl.client.cache.HeapResource;
-import ch.boye.httpclientandroidlib.impl.cookie.DateUtils;
-import ch.boye.httpclientandroidlib.message.BasicHeader;
-import ch.boye.httpclientandroidlib.message.BasicStatusLine;
 
 import com.actionbarsherlock.view.MenuItem;
 import com.loopj.android.http.AsyncHttpResponseHandler;
+import com.google.gson.stream.JsonReader;
 import com.loopj.android.http.JsonHttpResponseHandler;
 import com.twofours.surespot.R;
 import com.twofours.surespot.StateController;
 import com.twofours.surespot.StateController.FriendState;
 import com.twofours.surespot.SurespotApplication;
+import com.twofours.surespot.TaskScheduler;
 import com.twofours.surespot.activities.MainActivity;
 import com.twofours.surespot.common.SurespotConfiguration;
 import com.twofours.surespot.common.SurespotConstants;
 import com.twofours.surespot.common.SurespotLog;
 import com.twofours.surespot.common.Utils;
+import com.twofours.surespot.chat.MessageDataReader.LatestData;
+import com.twofours.surespot.chat.MessageDataReader.MessageData;
 import com.twofours.surespot.encryption.EncryptionController;
 import com.twofours.surespot.friends.AutoInviteData;
 import com.twofours.surespot.friends.Friend;
 import com.twofours.surespot.friends.FriendAdapter;
 import com.twofours.surespot.identity.IdentityController;
+import com.twofours.surespot.images.BitmapPool;
+import com.twofours.surespot.images.FriendImageDownloader;
 import com.twofours.surespot.images.MessageImageDownloader;
 import com.twofours.surespot.network.IAsyncCallback;
 import com.twofours.surespot.network.IAsyncCallbackTuple;
 import com.twofours.surespot.network.NetworkController;
+import com.twofours.surespot.network.StreamingJsonResponseHandler;
+import com.twofours.surespot.services.CredentialCachingService;
 import com.viewpagerindicator.TitlePageIndicator;
 
 public class ChatController {
@@ -86,8 +79,13 @@ public class ChatController {
 	private static final int STATE_DISCONNECTED = 2;
 
 	private static final int MAX_RETRIES = 16;
+	// how long onPause waits for state to be written
+	private static final long PAUSE_FLUSH_TIMEOUT_MS = 300;
+	// well short of an anr
+	private static final long LOGOUT_FLUSH_TIMEOUT_MS = 2000;
+	// earlier messages to load from history at a time
+	private static final int EARLIER_MESSAGES_PAGE_SIZE = 50;
 
-	private final StatusLine mImageStatusLine = new BasicStatusLine(HttpVersion.HTTP_1_1, HttpStatus.SC_OK, "");
 	private SocketIO socket;
 	private int mRetries = 0;
 	private Timer mBackgroundTimer;
@@ -97,9 +95,25 @@ public class ChatController {
 
 	private ConcurrentLinkedQueue<SurespotMessage> mSendBuffer = new ConcurrentLinkedQueue<SurespotMessage>();
 	private ConcurrentLinkedQueue<SurespotMessage> mResendBuffer = new ConcurrentLinkedQueue<SurespotMessage>();
+	// users with pages of messages being decrypted, to the socket messages for them that came in meanwhile
+	private final HashMap<String, ArrayList<SurespotMessage>> mHeldMessages = new HashMap<String, ArrayList<SurespotMessage>>();
+	private final HashMap<String, Integer> mHeldBatches = new HashMap<String, Integer>();
+	private final SendPipeline mSendPipeline = new SendPipeline(new SendPipeline.FrameSender() {
+
+		@Override
+		public boolean sendFrame(String frame) {
+			SocketIO currentSocket = socket;
+			if (currentSocket == null) {
+				return false;
+			}
+			currentSocket.send(frame);
+			return true;
+		}
+	});
 
 	private int mConnectionState;
 	private boolean mOnWifi;
+	private UploadManager mUploadManager;
 	private NotificationManager mNotificationManager;
 	private BroadcastReceiver mConnectivityReceiver;
 	private HashMap<String, ChatAdapter> mChatAdapters;
@@ -146,6 +160,25 @@ public class ChatController {
 		mChatAdapters = new HashMap<String, ChatAdapter>();
 		mFriendAdapter = new FriendAdapter(mContext);
 		mPreConnectIds = new HashMap<String, ChatController.LatestIdPair>();
+		mUploadManager = new UploadManager(networkController, new UploadManager.Listener() {
+
+			@Override
+			public void onUploadProgress(SurespotMessage message, int percent) {
+				ChatAdapter chatAdapter = mChatAdapters.get(message.getTo());
+				if (chatAdapter != null) {
+					SurespotMessage localMessage = chatAdapter.getMessageByIv(message.getIv());
+					if (localMessage != null) {
+						localMessage.setUploadProgress(percent);
+						chatAdapter.notifyDataSetChanged();
+					}
+				}
+			}
+
+			@Override
+			public void onUploadComplete(SurespotMessage message, int statusCode) {
+				handleUploadComplete(message, statusCode);
+			}
+		});
 		loadState();
 
 		mFragmentManager = fm;
@@ -316,6 +349,8 @@ public class ChatController {
 				SurespotLog.d(TAG, "Connectivity Action");
 				ConnectivityManager connectivityManager = (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
 				NetworkInfo networkInfo = connectivityManager.getActiveNetworkInfo();
+				// uploads care about the network we're on whichever way it changed
+				mUploadManager.setOnWifi(networkInfo != null && networkInfo.isConnected() && networkInfo.getType() == ConnectivityManager.TYPE_WIFI);
 				if (networkInfo != null) {
 					SurespotLog.d(TAG, "isconnected: " + networkInfo.isConnected());
 					SurespotLog.d(TAG, "failover: " + networkInfo.isFailover());
@@ -420,6 +455,7 @@ public class ChatController {
 	private void disconnect() {
 		SurespotLog.d(TAG, "disconnect.");
 		setState(STATE_DISCONNECTED);
+		mSendPipeline.reset();
 
 		if (socket != null) {
 			socket.disconnect();
@@ -458,9 +494,11 @@ public class ChatController {
 	}
 
 	private void resendMessages() {
+		// anything in flight on the old socket is going again
+		mSendPipeline.reset();
+
 		// get the resend messages
 		SurespotMessage[] resendMessages = getResendMessages();
-		JSONArray sMessageList = new JSONArray();
 
 		for (int i = 0; i < resendMessages.length; i++) {
 			SurespotMessage message = resendMessages[i];
@@ -468,6 +506,7 @@ public class ChatController {
 			// if it has an id don't send it again
 			if (message.getId() != null) {
 				mResendBuffer.remove(message);
+				SurespotApplication.getStateController().removeUnsentMessage(message.getIv());
 				continue;
 			}
 
@@ -493,10 +532,8 @@ public class ChatController {
 			SurespotLog.d(TAG, "setting resendId, otheruser: " + otherUser + ", id: " + lastMessageID);
 			message.setResendId(lastMessageID);
 
-			sMessageList.put(message.toJSONObjectSocket());
+			mSendPipeline.send(message);
 		}
-
-		socket.send(sMessageList.toString());
 	}
 
 	private void setOnWifi() {
@@ -506,14 +543,17 @@ public class ChatController {
 		if (networkInfo != null) {
 			mOnWifi = (networkInfo.getType() == ConnectivityManager.TYPE_WIFI);
 		}
+		mUploadManager.setOnWifi(mOnWifi);
 
 	}
 
 	private void checkAndSendNextMessage(SurespotMessage message) {
+		mSendPipeline.onAck(message.getIv());
 		sendMessages();
 
 		if (mResendBuffer.size() > 0) {
 			if (mResendBuffer.remove(message)) {
+				SurespotApplication.getStateController().removeUnsentMessage(message.getIv());
 				SurespotLog.d(TAG, "Received and removed message from resend  buffer: " + message);
 			}
 		}
@@ -528,6 +568,7 @@ public class ChatController {
 
 	private void enqueueMessage(SurespotMessage message) {
 		mSendBuffer.add(message);
+		SurespotApplication.getStateController().appendUnsentMessage(message);
 	}
 
 	private synchronized void sendMessages() {
@@ -549,6 +590,14 @@ public class ChatController {
 		}
 	}
 
+	/**
+	 * 
+	 * @return batching and ack latency of messages sent over the socket
+	 */
+	public String getSendStats() {
+		return mSendPipeline.getStats();
+	}
+
 	private boolean isMessageReadyToSend(SurespotMessage message) {
 		return !TextUtils.isEmpty(message.getData()) && !TextUtils.isEmpty(message.getFromVersion()) && !TextUtils.isEmpty(message.getToVersion());
 	}
@@ -557,16 +606,11 @@ public class ChatController {
 		SurespotLog.d(TAG, "sendmessage adding message to ResendBuffer, text: %s, iv: %s", message.getPlainData(), message.getIv());
 
 		mResendBuffer.add(message);
+		// now it's encrypted journal it again so a resend has the data
+		SurespotApplication.getStateController().appendUnsentMessage(message);
 		if (getState() == STATE_CONNECTED) {
 			SurespotLog.d(TAG, "sendmessage, socket: %s", socket);
-			JSONObject json = message.toJSONObjectSocket();
-			SurespotLog.d(TAG, "sendmessage, json: %s", json);
-			String s = json.toString();
-			SurespotLog.d(TAG, "sendmessage, message string: %s", s);
-
-			if (socket != null) {
-				socket.send(s);
-			}
+			mSendPipeline.send(message);
 		}
 	}
 
@@ -592,6 +636,9 @@ public class ChatController {
 	private void handleMessage(final SurespotMessage message) {
 		SurespotLog.d(TAG, "handleMessage %s", message);
 		final String otherUser = message.getOtherUser();
+		if (holdIfBatchPending(message)) {
+			return;
+		}
 
 		if(IdentityController.getLoggedInUser()){
 		final ChatAdapter chatAdapter = mChatAdapters.get(otherUser);
@@ -605,6 +652,9 @@ public class ChatController {
 				@Override
 				protected Void doInBackground(Void... params) {
 					if (message.getMimeType().equals(SurespotConstants.MimeTypes.TEXT)) {
+						if (PlainTextCache.fill(message)) {
+							return null;
+						}
 
 						// decrypt it before adding
 						final String plainText = EncryptionController.symmetricDecrypt(message.getOurVersion(), message.getOtherUser(),
@@ -614,6 +664,7 @@ public class ChatController {
 						if (plainText != null) {
 							EmojiParser parser = EmojiParser.getInstance();
 							message.setPlainData(parser.addEmojiSpans(plainText));
+							PlainTextCache.put(message.getIv(), message.getPlainData());
 						}
 						else {
 							//error decrypting
@@ -631,30 +682,7 @@ public class ChatController {
 								handleCachedFile(chatAdapter, message);
 							}
 							else {
-
-								InputStream imageStream = MainActivity.getNetworkController().getFileStream(MainActivity.getContext(), message.getData());
-
-								Bitmap bitmap = null;
-								PipedOutputStream out = new PipedOutputStream();
-								PipedInputStream inputStream;
-								try {
-									inputStream = new PipedInputStream(out);
-
-									EncryptionController.runDecryptTask(message.getOurVersion(), message.getOtherUser(), message.getTheirVersion(),
-											message.getIv(), new BufferedInputStream(imageStream), out);
-
-									byte[] bytes = Utils.inputStreamToBytes(inputStream);
-
-									bitmap = ChatUtils.getSampledImage(bytes);
-								}
-								catch (InterruptedIOException ioe) {
-
-									SurespotLog.w(TAG, ioe, "handleMessage");
-								}
-								catch (IOException e) {
-									SurespotLog.w(TAG, e, "handleMessage");
-								}
-
+								Bitmap bitmap = MessageImageDownloader.loadBitmap(message);
 								if (bitmap != null) {
 									MessageImageDownloader.addBitmapToCache(message.getData(), bitmap);
 								}
@@ -666,49 +694,7 @@ public class ChatController {
 									handleCachedFile(chatAdapter, message);
 								}
 								else {
-
-									InputStream encryptedVoiceStream = MainActivity.getNetworkController().getFileStream(MainActivity.getContext(),
-											message.getData());
-
-									PipedOutputStream out = new PipedOutputStream();
-									PipedInputStream inputStream = null;
-									try {
-										inputStream = new PipedInputStream(out);
-
-										EncryptionController.runDecryptTask(message.getOurVersion(), message.getOtherUser(), message.getTheirVersion(),
-												message.getIv(), new BufferedInputStream(encryptedVoiceStream), out);
-
-										byte[] bytes = Utils.inputStreamToBytes(inputStream);
-										message.setPlainBinaryData(bytes);
-									}
-									catch (InterruptedIOException ioe) {
-
-										SurespotLog.w(TAG, ioe, "handleMessage");
-
-									}
-									catch (IOException e) {
-										SurespotLog.w(TAG, e, "handleMessage");
-									}
-									finally {
-
-										try {
-											if (inputStream != null) {
-												inputStream.close();
-											}
-										}
-										catch (IOException e) {
-											SurespotLog.w(TAG, e, "handleMessage");
-										}
-
-										try {
-											if (encryptedVoiceStream != null) {
-												encryptedVoiceStream.close();
-											}
-										}
-										catch (IOException e) {
-											SurespotLog.w(TAG, e, "handleMessage");
-										}
-									}
+									message.setPlainBinaryData(MediaFetcher.getPlainBytes(message));
 								}
 							}
 							else {
@@ -721,7 +707,7 @@ public class ChatController {
 
 				protected void onPostExecute(Void result) {
 					try {
-						boolean added = applyControlMessages(chatAdapter, message, false, true, true);
+						boolean added = applyControlMessages(chatAdapter, message, false, true);
 						scrollToEnd(otherUser);
 
 						Friend friend = mFriendAdapter.getFriend(otherUser);
@@ -788,7 +774,7 @@ public class ChatController {
 	}
 	}
 
-	private boolean applyControlMessages(ChatAdapter chatAdapter, SurespotMessage message, boolean checkSequence, boolean sort, boolean notify)
+	private boolean applyControlMessages(ChatAdapter chatAdapter, SurespotMessage message, boolean checkSequence, boolean notify)
 			throws SurespotMessageSequenceException {
 		// see if we have applicable control messages and apply them if necessary
 		ArrayList<SurespotControlMessage> controlMessages = chatAdapter.getControlMessages();
@@ -803,11 +789,11 @@ public class ChatController {
 
 		if (applicableControlMessages.size() == 0) {
 
-			added = chatAdapter.addOrUpdateMessage(message, checkSequence, sort, notify);
+			added = chatAdapter.addOrUpdateMessage(message, checkSequence, notify);
 
 		}
 		else {
-			added = chatAdapter.addOrUpdateMessage(message, checkSequence, false, false);
+			added = chatAdapter.addOrUpdateMessage(message, checkSequence, false);
 
 			for (SurespotControlMessage controlMessage : applicableControlMessages) {
 				SurespotLog.d(TAG, "applying control message %s: to message %s", controlMessage, message);
@@ -822,65 +808,30 @@ public class ChatController {
 		return added;
 	}
 
-	// add entry to http cache for image we sent so we don't download it again
+	// move the encrypted copy of media we sent into the media cache so we don't download it again
 	private void handleCachedFile(ChatAdapter chatAdapter, SurespotMessage message) {
 		SurespotLog.d(TAG, "handleCachedFile");
 		SurespotMessage localMessage = chatAdapter.getMessageByIv(message.getIv());
 
 		// if the data is different we haven't updated the url to point externally
 		if (localMessage != null && localMessage.getId() == null && !localMessage.getData().equals(message.getData())) {
-			// add the remote cache entry for the new url
-
 			String localUri = localMessage.getData();
 			String remoteUri = message.getData();
 
-			FileInputStream fis;
 			try {
-				fis = new FileInputStream(new File(new URI(localUri)));
-				byte[] imageData = Utils.inputStreamToBytes(fis);
-
-				HeapResource resource = new HeapResource(imageData);
-				Date date = new Date();
-				String sDate = DateUtils.formatDate(date);
-
-				Header[] cacheHeaders = new Header[3];
-
-				// create fake cache entry
-				cacheHeaders[0] = new BasicHeader("Last-Modified", sDate);
-				cacheHeaders[1] = new BasicHeader("Cache-Control", "public, max-age=31557600");
-				cacheHeaders[2] = new BasicHeader("Date", sDate);
-
-				HttpCacheEntry cacheEntry = new HttpCacheEntry(date, date, mImageStatusLine, cacheHeaders, resource);
-
-				SurespotLog.d(TAG, "creating http cache entry for: %s", remoteUri);
-				mNetworkController.addCacheEntry(remoteUri, cacheEntry);
-
-				// update image cache
-				if (message.getMimeType().equals(SurespotConstants.MimeTypes.IMAGE)) {
-					MessageImageDownloader.copyAndRemoveCacheEntry(localUri, remoteUri);
+				File file = new File(new URI(localUri));
+				SurespotLog.d(TAG, "caching local file: %s as: %s", localUri, remoteUri);
+				if (!mNetworkController.promoteMediaFile(remoteUri, file)) {
+					file.delete();
 				}
-
-			}
-			catch (FileNotFoundException e1) {
-				SurespotLog.w(TAG, e1, "onMessage");
 			}
-			catch (URISyntaxException e1) {
-				SurespotLog.w(TAG, e1, "onMessage");
-			}
-			catch (IOException e) {
-				SurespotLog.w(TAG, e, "onMessage");
+			catch (URISyntaxException e) {
+				SurespotLog.w(TAG, e, "handleCachedFile");
 			}
 
-			// delete the file
-
-			try {
-				SurespotLog.d(TAG, "handleCachedImage deleting local file: %s", localUri);
-
-				File file = new File(new URI(localUri));
-				file.delete();
-			}
-			catch (URISyntaxException e) {
-				SurespotLog.w(TAG, e, "handleMessage");
+			// update image cache
+			if (message.getMimeType().equals(SurespotConstants.MimeTypes.IMAGE)) {
+				MessageImageDownloader.copyAndRemoveCacheEntry(localUri, remoteUri);
 			}
 
 			// update message to point to real location
@@ -910,47 +861,46 @@ public class ChatController {
 		if (firstMessageId != null) {
 
 			if (firstMessageId > 1) {
-
-				SurespotLog.d(TAG, username + ": asking server for messages before messageId: " + firstMessageId);
-				// final int fMessageId = firstMessageId;
 				final ChatAdapter chatAdapter = mChatAdapters.get(username);
+				final String user = IdentityController.getLoggedInUser();
+				final String spot = ChatUtils.getSpot(user, username);
+				final int beforeId = firstMessageId;
 
-				mNetworkController.getEarlierMessages(username, firstMessageId, new JsonHttpResponseHandler() {
-					@Override
-					public void onSuccess(final JSONArray jsonArray) {
-
-						// if (getActivity() != null) {
-						SurespotMessage message = null;
+				// try the local history first and only go to the server for what it doesn't have
+				new AsyncTask<Void, Void, ArrayList<SurespotMessage>>() {
+					private int mFetchBeforeId;
 
-						try {
-							for (int i = jsonArray.length() - 1; i >= 0; i--) {
-								JSONObject jsonMessage = jsonArray.getJSONObject(i);
-								message = SurespotMessage.toSurespotMessage(jsonMessage);
-								chatAdapter.insertMessage(message, false);
-							}
-						}
-						catch (JSONException e) {
-							SurespotLog.e(TAG, e, "%s: error creating chat message", username);
+					@Override
+					protected ArrayList<SurespotMessage> doInBackground(Void... params) {
+						StateController stateController = SurespotApplication.getStateController();
+						ArrayList<SurespotMessage> messages = stateController.loadEarlierMessages(user, spot, beforeId, EARLIER_MESSAGES_PAGE_SIZE);
+						if (messages.isEmpty()) {
+							mFetchBeforeId = stateController.getHistoryStart(user, spot, beforeId);
 						}
+						return messages;
+					}
 
-						SurespotLog.d(TAG, "%s: loaded: %d earlier messages from the server.", username, jsonArray.length());
-						if (message != null) {
-							mEarliestMessage.put(username, message.getId());
-							// chatAdapter.notifyDataSetChanged();
+					@Override
+					protected void onPostExecute(ArrayList<SurespotMessage> messages) {
+						if (!messages.isEmpty()) {
+							SurespotLog.d(TAG, "%s: loaded: %d earlier messages from history.", username, messages.size());
+							chatAdapter.insertMessages(messages, false);
+							mEarliestMessage.put(username, messages.get(0).getId());
+							callback.handleResponse(true);
+							return;
 						}
 
-						// chatAdapter.setLoading(false);
-						callback.handleResponse(jsonArray.length() > 0);
-
-					}
+						// we know everything below the first message is deleted
+						if (mFetchBeforeId <= 1) {
+							SurespotLog.d(TAG, "%s: getEarlierMessages: no more messages in history.", username);
+							mEarliestMessage.put(username, 1);
+							callback.handleResponse(false);
+							return;
+						}
 
-					@Override
-					public void onFailure(Throwable error, String content) {
-						SurespotLog.i(TAG, error, "%s: getEarlierMessages", username);
-						// chatAdapter.setLoading(false);
-						callback.handleResponse(false);
+						getEarlierMessages(username, chatAdapter, user, spot, mFetchBeforeId, callback);
 					}
-				});
+				}.execute();
 			}
 			else {
 				SurespotLog.d(TAG, "%s: getEarlierMessages: no more messages.", username);
@@ -961,6 +911,58 @@ public class ChatController {
 		}
 	}
 
+	private void getEarlierMessages(final String username, final ChatAdapter chatAdapter, final String user, final String spot, final int beforeId,
+			final IAsyncCallback<Boolean> callback) {
+		SurespotLog.d(TAG, username + ": asking server for messages before messageId: " + beforeId);
+		mNetworkController.getEarlierMessages(username, beforeId, new StreamingJsonResponseHandler<ArrayList<SurespotMessage>>() {
+
+			@Override
+			protected ArrayList<SurespotMessage> decode(JsonReader reader) throws IOException {
+				return MessageDataReader.readMessages(reader);
+			}
+
+			@Override
+			public void onDecoded(int statusCode, final ArrayList<SurespotMessage> messages) {
+
+				// if (getActivity() != null) {
+				SurespotMessage message = null;
+
+				// merge the page in one pass rather than inserting at the front one at a time
+				chatAdapter.insertMessages(messages, false);
+				if (messages.size() > 0) {
+					message = messages.get(0);
+				}
+
+				SurespotLog.d(TAG, "%s: loaded: %d earlier messages from the server.", username, messages.size());
+				if (message != null) {
+					mEarliestMessage.put(username, message.getId());
+					// chatAdapter.notifyDataSetChanged();
+				}
+
+				// the server has nothing else between the start of the page and where we asked from, or before it at all if the page is empty
+				final int from = message == null ? 1 : message.getId();
+				TaskScheduler.execute(TaskScheduler.Lane.BACKGROUND, new Runnable() {
+
+					@Override
+					public void run() {
+						SurespotApplication.getStateController().saveEarlierMessages(user, spot, messages, from, beforeId - 1);
+					}
+				});
+
+				// chatAdapter.setLoading(false);
+				callback.handleResponse(messages.size() > 0);
+
+			}
+
+			@Override
+			public void onFailure(Throwable error, String content) {
+				SurespotLog.i(TAG, error, "%s: getEarlierMessages", username);
+				// chatAdapter.setLoading(false);
+				callback.handleResponse(false);
+			}
+		});
+	}
+
 	private void getLatestData() {
 		SurespotLog.d(TAG, "getLatestData");
 		// setMessagesLoading(true);
@@ -983,89 +985,84 @@ public class ChatController {
 			}
 		}
 
-		mNetworkController.getLatestData(mLatestUserControlId, spotIds, new JsonHttpResponseHandler() {
+		mNetworkController.getLatestData(mLatestUserControlId, spotIds, new StreamingJsonResponseHandler<LatestData>() {
+
+			@Override
+			protected LatestData decode(JsonReader reader) throws IOException {
+				return MessageDataReader.readLatestData(reader);
+			}
 
 			@Override
-			public void onSuccess(int statusCode, final JSONObject jsonResponse) {
-				SurespotLog.d(TAG, "getlatestData success, response: %s, statusCode: %d", jsonResponse, statusCode);
-				JSONObject conversationIds = jsonResponse.optJSONObject("conversationIds");
+			public void onDecoded(int statusCode, LatestData latestData) {
+				SurespotLog.d(TAG, "getlatestData success, spots: %d, statusCode: %d", latestData.messageData.size(), statusCode);
 
 				Friend friend = null;
-				if (conversationIds != null) {
-					Iterator i = conversationIds.keys();
-					while (i.hasNext()) {
-						String spot = (String) i.next();
-						try {
-							Integer availableId = conversationIds.getInt(spot);
-							String user = ChatUtils.getOtherSpotUser(spot, IdentityController.getLoggedInUser());
-							// update available ids
-							friend = mFriendAdapter.getFriend(user);
-							if (friend != null) {
-								friend.setAvailableMessageId(availableId);
-							}
-						}
-						catch (Exception e) {
-							SurespotLog.w(TAG, e, "getlatestData");
+				if (latestData.conversationIds != null) {
+					for (Entry<String, Integer> entry : latestData.conversationIds.entrySet()) {
+						String user = ChatUtils.getOtherSpotUser(entry.getKey(), IdentityController.getLoggedInUser());
+						// update available ids
+						friend = mFriendAdapter.getFriend(user);
+						if (friend != null) {
+							friend.setAvailableMessageId(entry.getValue());
 						}
 					}
 				}
 
-				JSONObject controlIds = jsonResponse.optJSONObject("controlIds");
-				if (controlIds != null) {
-					Iterator i = conversationIds.keys();
-					while (i.hasNext()) {
-						String spot = (String) i.next();
-						try {
-							Integer availableId = controlIds.getInt(spot);
-							String user = ChatUtils.getOtherSpotUser(spot, IdentityController.getLoggedInUser());
-							// update available ids
-							friend = mFriendAdapter.getFriend(user);
-							if (friend != null) {
-								friend.setAvailableMessageControlId(availableId);
-							}
-						}
-						catch (JSONException e) {
-							SurespotLog.w(TAG, e, "getlatestData");
+				if (latestData.controlIds != null) {
+					for (Entry<String, Integer> entry : latestData.controlIds.entrySet()) {
+						String user = ChatUtils.getOtherSpotUser(entry.getKey(), IdentityController.getLoggedInUser());
+						// update available ids
+						friend = mFriendAdapter.getFriend(user);
+						if (friend != null) {
+							friend.setAvailableMessageControlId(entry.getValue());
 						}
 					}
 				}
 
-				JSONArray userControlMessages = jsonResponse.optJSONArray("userControlMessages");
-				if (userControlMessages != null) {
-					handleControlMessages(IdentityController.getLoggedInUser(), userControlMessages);
-				}
+				// now we know who has unread messages get their secrets ready before we start decrypting
+				precomputeSharedSecrets();
 
-				JSONArray messageDatas = jsonResponse.optJSONArray("messageData");
-				if (messageDatas != null) {
-					for (int i = 0; i < messageDatas.length(); i++) {
-						try {
-							JSONObject messageData = messageDatas.getJSONObject(i);
-							String friendName = messageData.getString("username");
-
-							JSONArray controlMessages = messageData.optJSONArray("controlMessages");
-							if (controlMessages != null) {
-								handleControlMessages(friendName, controlMessages);
-							}
+				if (latestData.userControlMessages != null) {
+					handleControlMessages(IdentityController.getLoggedInUser(), latestData.userControlMessages);
+				}
 
-							JSONArray messages = messageData.optJSONArray("messages");
-							if (messages != null) {
-								handleMessages(friendName, messages);
-							}
+				// finish up once every spot's messages have been decrypted and added
+				final boolean friendsUpdated = friend != null;
+				final int[] pending = new int[] { 1 };
+				final Runnable done = new Runnable() {
 
+					@Override
+					public void run() {
+						if (--pending[0] > 0) {
+							return;
 						}
-						catch (JSONException e) {
-							SurespotLog.w(TAG, e, "getlatestData");
+
+						if (friendsUpdated) {
+							mFriendAdapter.sort();
+							mFriendAdapter.notifyDataSetChanged();
 						}
+
+						handleAutoInvite();
+						setProgress(null, false);
 					}
-				}
+				};
 
-				if (friend != null) {
-					mFriendAdapter.sort();
-					mFriendAdapter.notifyDataSetChanged();
+				for (MessageData messageData : latestData.messageData) {
+					if (messageData.username == null) {
+						continue;
+					}
+
+					if (messageData.controlMessages != null) {
+						handleControlMessages(messageData.username, messageData.controlMessages);
+					}
+
+					if (messageData.messages != null) {
+						pending[0]++;
+						decryptAndHandleMessages(messageData.username, messageData.messages, done);
+					}
 				}
-				
-				handleAutoInvite();			
-				setProgress(null, false);
+
+				done.run();
 			}
 
 			@Override
@@ -1154,62 +1151,71 @@ public class ChatController {
 		if (fetchMessageId > -1 || fetchControlMessageId > -1) {
 			setProgress(username, true);
 
-			mNetworkController.getMessageData(username, fetchMessageId, fetchControlMessageId, new JsonHttpResponseHandler() {
+			mNetworkController.getMessageData(username, fetchMessageId, fetchControlMessageId, new StreamingJsonResponseHandler<MessageData>() {
+
 				@Override
-				public void onSuccess(int statusCode, JSONObject response) {
+				protected MessageData decode(JsonReader reader) throws IOException {
+					return MessageDataReader.readMessageData(reader);
+				}
 
-					JSONArray controlMessages = response.optJSONArray("controlMessages");
-					if (controlMessages != null) {
-						handleControlMessages(username, controlMessages);
-					}
+				@Override
+				public void onDecoded(int statusCode, MessageData response) {
 
-					JSONArray messages = response.optJSONArray("messages");
+					if (response.controlMessages != null) {
+						handleControlMessages(username, response.controlMessages);
+					}
 
 					// don't update messages if we didn't query for them
 					// this prevents setting message state to error before we get the true result
 					if (fetchMessageId > -1 || forceMessageUpdate) {
-						handleMessages(username, messages);
+						decryptAndHandleMessages(username, response.messages, new Runnable() {
+
+							@Override
+							public void run() {
+								setProgress(username, false);
+							}
+						});
+					}
+					else {
+						setProgress(username, false);
 					}
 
-					setProgress(username, false);
+				}
 
+				@Override
+				public void onFailure(Throwable error, String content) {
+					SurespotLog.i(TAG, error, "%s: getLatestMessagesAndControls", username);
+					setProgress(username, false);
 				}
 			});
 		}
 
 	}
 
-	private void handleControlMessages(String username, JSONArray jsonArray) {
+	private void handleControlMessages(String username, List<SurespotControlMessage> controlMessages) {
 		SurespotLog.d(TAG, "%s: handleControlMessages", username);
 		final ChatAdapter chatAdapter = mChatAdapters.get(username);
 
 		SurespotControlMessage message = null;
 		boolean messageActivity = false;
 		boolean userActivity = false;
-		for (int i = 0; i < jsonArray.length(); i++) {
-			try {
-				JSONObject jsonMessage = new JSONObject(jsonArray.getString(i));
-				message = SurespotControlMessage.toSurespotControlMessage(jsonMessage);
-				handleControlMessage(chatAdapter, message, false, false);
-				// if it's a system message from another user then check version
-				if (message.getType().equals("user")) {
-					userActivity = true;
-				}
-				else
-					if (message.getType().equals("message")) {
-						messageActivity = true;
-					}
-
-			}
-			catch (JSONException e) {
-				SurespotLog.w(TAG, e, "%s: error creating chat message", username);
+		for (SurespotControlMessage controlMessage : controlMessages) {
+			message = controlMessage;
+			handleControlMessage(chatAdapter, message, false, false);
+			// if it's a system message from another user then check version
+			if (message.getType().equals("user")) {
+				userActivity = true;
 			}
+			else
+				if (message.getType().equals("message")) {
+					messageActivity = true;
+				}
 
 		}
 
 		if (message != null) {
 
-			SurespotLog.d(TAG, "%s: loaded: %d latest control messages from the server.", username, jsonArray.length());
+			SurespotLog.d(TAG, "%s: loaded: %d latest control messages from the server.", username, controlMessages.size());
 
 			if (messageActivity || userActivity) {
 				Friend friend = mFriendAdapter.getFriend(username);
@@ -1219,7 +1225,6 @@ public class ChatController {
 
 						if (chatAdapter != null) {
 							friend.setLastReceivedMessageControlId(message.getId());
-							chatAdapter.sort();
 							chatAdapter.notifyDataSetChanged();
 						}
 
@@ -1268,10 +1273,18 @@ public class ChatController {
 						if (dMessage != null) {
 							deleteMessageInternal(chatAdapter, dMessage, controlFromMe);
 						}
+
+						if (!reApplying) {
+							forgetHistory(message.getData(), messageId, messageId);
+						}
 					}
 					else {
 						if (message.getAction().equals("deleteAll")) {
 							if (message.getMoreData() != null) {
+								if (!reApplying) {
+									forgetHistory(message.getData(), 1, Integer.parseInt(message.getMoreData()));
+								}
+
 								if (controlFromMe) {
 									chatAdapter.deleteAllMessages(Integer.parseInt(message.getMoreData()));
 								}
@@ -1283,10 +1296,16 @@ public class ChatController {
 						else {
 							if (message.getAction().equals("shareable") || message.getAction().equals("notshareable")) {
 								int messageId = Integer.parseInt(message.getMoreData());
+								boolean shareable = message.getAction().equals("shareable");
 								SurespotMessage dMessage = chatAdapter.getMessageById(messageId);
 								if (dMessage != null) {
 									SurespotLog.d(TAG, "setting message " + message.getAction());
-									dMessage.setShareable(message.getAction().equals("shareable") ? true : false);
+									dMessage.setShareable(shareable);
+								}
+
+								// the message may only be in the history, don't let paging back bring back the old flag
+								if (!reApplying) {
+									setHistoryShareable(message.getData(), messageId, shareable);
 								}
 							}
 						}
@@ -1463,12 +1482,14 @@ public class ChatController {
 	}
 
 	private void handleErrorMessage(SurespotErrorMessage errorMessage) {
+		mSendPipeline.onAck(errorMessage.getId());
 		SurespotMessage message = null;
 		Iterator<SurespotMessage> iterator = mResendBuffer.iterator();
 		while (iterator.hasNext()) {
 			message = iterator.next();
 			if (message.getIv().equals(errorMessage.getId())) {
 				iterator.remove();
+				SurespotApplication.getStateController().removeUnsentMessage(message.getIv());
 
 				message.setErrorStatus(errorMessage.getStatus());
 				break;
@@ -1484,6 +1505,37 @@ public class ChatController {
 
 	}
 
+	// deleted messages can't be picked out of the history so drop the range and let it come from the server again
+	private void forgetHistory(final String spot, final int from, final int to) {
+		final String user = IdentityController.getLoggedInUser();
+		if (user == null) {
+			return;
+		}
+
+		TaskScheduler.execute(TaskScheduler.Lane.BACKGROUND, new Runnable() {
+
+			@Override
+			public void run() {
+				SurespotApplication.getStateController().forgetHistory(user, spot, from, to);
+			}
+		});
+	}
+
+	private void setHistoryShareable(final String spot, final int id, final boolean shareable) {
+		final String user = IdentityController.getLoggedInUser();
+		if (user == null) {
+			return;
+		}
+
+		TaskScheduler.execute(TaskScheduler.Lane.BACKGROUND, new Runnable() {
+
+			@Override
+			public void run() {
+				SurespotApplication.getStateController().setHistoryShareable(user, spot, id, shareable);
+			}
+		});
+	}
+
 	private void deleteMessageInternal(ChatAdapter chatAdapter, SurespotMessage dMessage, boolean initiatedByMe) {
 		// if it's an image blow the http cache entry away
 		if (dMessage.getMimeType() != null) {
@@ -1502,24 +1554,132 @@ public class ChatController {
 		}
 	}
 
-	private void handleMessages(String username, JSONArray jsonMessages) {
+	/**
+	 * Decrypt a page of messages from the server then add them. Messages for the user that come in on the socket meanwhile are held until the
+	 * page has been added so they don't jump ahead of it.
+	 * 
+	 * @param done
+	 *            run on the ui thread once the page has been added
+	 */
+	private void decryptAndHandleMessages(final String username, final ArrayList<SurespotMessage> messages, final Runnable done) {
 		SurespotLog.d(TAG, "%s: handleMessages", username);
+		if (mChatAdapters.get(username) == null) {
+			done.run();
+			return;
+		}
+
+		// nothing to decrypt but we still need to mark unsent messages errored
+		if (messages == null) {
+			handleMessages(username, (ArrayList<SurespotMessage>) null);
+			done.run();
+			return;
+		}
+
+		holdSocketMessages(username);
+
+		SurespotLog.d(TAG, "%s: loaded: %d messages from the server", username, messages.size());
+
+		// only decrypt what we haven't seen before
+		ArrayList<SurespotMessage> toDecrypt = new ArrayList<SurespotMessage>(messages.size());
+		for (SurespotMessage message : messages) {
+			if (message.getMimeType().equals(SurespotConstants.MimeTypes.TEXT) && !PlainTextCache.fill(message)) {
+				toDecrypt.add(message);
+			}
+		}
+
+		// decrypt the whole page in one pass before the adapter sees it
+		EncryptionController.symmetricDecryptBatch(toDecrypt, new IAsyncCallback<Map<String, String>>() {
+
+			@Override
+			public void handleResponse(Map<String, String> plainTexts) {
+				// whatever goes wrong the held socket messages have to be let go and the progress cleared
+				try {
+					EmojiParser parser = EmojiParser.getInstance();
+					for (SurespotMessage message : messages) {
+						if (message.getMimeType().equals(SurespotConstants.MimeTypes.TEXT)) {
+							String plainText = plainTexts.get(message.getIv());
+							if (plainText != null) {
+								message.setPlainData(parser.addEmojiSpans(plainText));
+								PlainTextCache.put(message.getIv(), message.getPlainData());
+							}
+						}
+					}
+
+					handleMessages(username, messages);
+				}
+				finally {
+					try {
+						releaseSocketMessages(username);
+					}
+					finally {
+						done.run();
+					}
+				}
+			}
+		});
+	}
+
+	private void holdSocketMessages(String username) {
+		synchronized (mHeldMessages) {
+			Integer batches = mHeldBatches.get(username);
+			mHeldBatches.put(username, batches == null ? 1 : batches + 1);
+			if (!mHeldMessages.containsKey(username)) {
+				mHeldMessages.put(username, new ArrayList<SurespotMessage>());
+			}
+		}
+	}
+
+	// once the last page in flight for the user is added, add what came in on the socket in the order it came
+	private void releaseSocketMessages(String username) {
+		ArrayList<SurespotMessage> held;
+		synchronized (mHeldMessages) {
+			int batches = mHeldBatches.get(username) - 1;
+			if (batches > 0) {
+				mHeldBatches.put(username, batches);
+				return;
+			}
+
+			mHeldBatches.remove(username);
+			held = mHeldMessages.remove(username);
+		}
+
+		if (held != null) {
+			for (SurespotMessage message : held) {
+				handleMessage(message);
+			}
+		}
+	}
+
+	// true if a page for the user is being decrypted, the message will be added after it
+	private boolean holdIfBatchPending(SurespotMessage message) {
+		synchronized (mHeldMessages) {
+			ArrayList<SurespotMessage> held = mHeldMessages.get(message.getOtherUser());
+			if (held == null) {
+				return false;
+			}
+
+			SurespotLog.d(TAG, "holding socket message until the page being decrypted is added, iv: %s", message.getIv());
+			held.add(message);
+			return true;
+		}
+	}
+
+	private void handleMessages(String username, ArrayList<SurespotMessage> messages) {
 		final ChatAdapter chatAdapter = mChatAdapters.get(username);
 		if (chatAdapter == null) {
 			return;
 		}
 
 		// if we received new messages
-		if (jsonMessages != null) {
+		if (messages != null) {
 
 			int sentByMeCount = 0;
 
 			SurespotMessage lastMessage = null;
 			try {
-				SurespotLog.d(TAG, "%s: loaded: %d messages from the server", username, jsonMessages.length());
-				for (int i = 0; i < jsonMessages.length(); i++) {
+				for (SurespotMessage message : messages) {
 
-					lastMessage = SurespotMessage.toSurespotMessage(jsonMessages.getJSONObject(i));
+					lastMessage = message;
 					boolean myMessage = lastMessage.getFrom().equals(IdentityController.getLoggedInUser());
 
 					if (myMessage) {
@@ -1533,18 +1693,16 @@ public class ChatController {
 						}
 					}
 
-					boolean added = applyControlMessages(chatAdapter, lastMessage, false, false, false);
+					boolean added = applyControlMessages(chatAdapter, lastMessage, false, false);
 
-					mResendBuffer.remove(lastMessage);
+					if (mResendBuffer.remove(lastMessage)) {
+						SurespotApplication.getStateController().removeUnsentMessage(lastMessage.getIv());
+					}
 					if (added && myMessage) {
 						sentByMeCount++;
 					}
 				}
 			}
-			catch (JSONException e) {
-				SurespotLog.w(TAG, e, "jsonStringsToMessages");
-
-			}
 			catch (SurespotMessageSequenceException e) {
 				// shouldn't happen
 				SurespotLog.w(TAG, e, "handleMessages");
@@ -1581,7 +1739,6 @@ public class ChatController {
 			}
 		}
 
-		chatAdapter.sort();
 		chatAdapter.doneCheckingSequence();
 		// mark messages left in chatAdapter with no id as errored
 		chatAdapter.markErrored();
@@ -1649,9 +1806,9 @@ public class ChatController {
 		SurespotLog.d(TAG, "saveMessages");
 		if (IdentityController.getLoggedInUser() != null) {
 			for (Entry<String, ChatAdapter> entry : mChatAdapters.entrySet()) {
-				String them = entry.getKey();
-				String spot = ChatUtils.getSpot(IdentityController.getLoggedInUser(), them);
-				SurespotApplication.getStateController().saveMessages(spot, entry.getValue().getMessages(), entry.getValue().getCurrentScrollPositionId());
+				if (entry.getValue().isDirty()) {
+					queueSaveMessages(entry.getKey());
+				}
 			}
 		}
 	}
@@ -1662,16 +1819,33 @@ public class ChatController {
 		ChatAdapter chatAdapter = mChatAdapters.get(username);
 
 		if (chatAdapter != null) {
-			SurespotApplication.getStateController().saveMessages(ChatUtils.getSpot(IdentityController.getLoggedInUser(), username), chatAdapter.getMessages(),
-					chatAdapter.getCurrentScrollPositionId());
+			SurespotApplication.getStateController().saveMessages(ChatUtils.getSpot(IdentityController.getLoggedInUser(), username),
+					chatAdapter.getMessagesForSave(), chatAdapter.getCurrentScrollPositionId());
 		}
 
 	}
 
+	private void queueSaveMessages(String username) {
+		final ChatAdapter chatAdapter = mChatAdapters.get(username);
+		final String user = IdentityController.getLoggedInUser();
+		if (chatAdapter == null || user == null) {
+			return;
+		}
+
+		final String spot = ChatUtils.getSpot(user, username);
+		SurespotApplication.getStateController().writeLater("messages:" + spot, new Runnable() {
+
+			@Override
+			public void run() {
+				SurespotApplication.getStateController().saveMessages(user, spot, chatAdapter.getMessagesForSave(),
+						chatAdapter.getCurrentScrollPositionId());
+			}
+		});
+	}
+
 	private void saveUnsentMessages() {
+		// the journal already has everything, just make sure what's still waiting goes out with the resends
 		mResendBuffer.addAll(mSendBuffer);
-		// SurespotLog.d(TAG, "saving: " + mResendBuffer.size() + " unsent messages.");
-		SurespotApplication.getStateController().saveUnsentMessages(mResendBuffer);
 	}
 
 	private void loadUnsentMessages() {
@@ -1685,6 +1859,8 @@ public class ChatController {
 	public synchronized void logout() {
 		mCurrentChat = null;
 		onPause();
+		// give the writer a chance to finish, anything still queued knows whose state it is so it's written to the right place after we've gone
+		SurespotApplication.getStateController().flush(LOGOUT_FLUSH_TIMEOUT_MS);
 		// mViewPager = null;
 		// mCallback401 = null;
 		// mChatPagerAdapter = null;
@@ -1698,6 +1874,12 @@ public class ChatController {
 		// mReadSinceConnected.clear();
 		mResendBuffer.clear();
 		mSendBuffer.clear();
+		// what's left stays journaled for the next time they log in
+		mUploadManager.clear();
+
+		// don't keep anyone's plain text around after they've logged out
+		SurespotLog.v(TAG, "plain text cache stats: %s", PlainTextCache.getStats());
+		PlainTextCache.clear();
 	}
 
 	private void saveState(String username) {
@@ -1709,15 +1891,31 @@ public class ChatController {
 			saveMessages();
 			SurespotLog.d(TAG, "saving last chat: %s", mCurrentChat);
 			Utils.putSharedPrefsString(mContext, SurespotConstants.PrefNames.LAST_CHAT, mCurrentChat);
-			saveFriends();
+			if (mFriendAdapter.isDirty()) {
+				saveFriends();
+			}
+
+			// we may be killed once we're paused so give the writer a moment, anything it doesn't get to is written in the background
+			SurespotApplication.getStateController().flush(PAUSE_FLUSH_TIMEOUT_MS);
 		}
 		else {
-			saveMessages(username);
+			queueSaveMessages(username);
 		}
 	}
 
 	private void saveFriends() {
-		SurespotApplication.getStateController().saveFriends(mLatestUserControlId, mFriendAdapter.getFriends());
+		final String user = IdentityController.getLoggedInUser();
+		if (user == null) {
+			return;
+		}
+
+		SurespotApplication.getStateController().writeLater("friends:" + user, new Runnable() {
+
+			@Override
+			public void run() {
+				SurespotApplication.getStateController().saveFriends(user, mLatestUserControlId, mFriendAdapter.getFriendsForSave());
+			}
+		});
 	}
 
 	private void loadState() {
@@ -1732,8 +1930,11 @@ public class ChatController {
 
 		mFriendAdapter.setFriends(friends);
 		mFriendAdapter.setLoading(false);
+		// in display order so the rows on screen come first
+		FriendImageDownloader.prefetch(new ArrayList<Friend>(mFriendAdapter.getFriends()));
 
 		loadUnsentMessages();
+		mUploadManager.restore(SurespotApplication.getStateController().loadQueuedUploads());
 	}
 
 	private boolean mGlobalProgress;
@@ -1792,6 +1993,14 @@ public class ChatController {
 			saveState(null);
 		}
 
+		SurespotLog.v(TAG, "onPause, send stats: %s", mSendPipeline.getStats());
+		SurespotLog.v(TAG, "onPause, media fetch stats: %s", MediaFetcher.getStats());
+		SurespotLog.v(TAG, "onPause, media cache stats: %s", mNetworkController.getMediaCacheStats());
+		SurespotLog.v(TAG, "onPause, upload stats: %s", mUploadManager.getStats());
+		SurespotLog.v(TAG, "onPause, message image cache stats: %s", MessageImageDownloader.getCacheStats());
+		SurespotLog.v(TAG, "onPause, friend image cache stats: %s", FriendImageDownloader.getCacheStats());
+		SurespotLog.v(TAG, "onPause, bitmap pool stats: %s", BitmapPool.getStats());
+		SurespotLog.v(TAG, "onPause, thumbnail stats: %s", MessageImageDownloader.getThumbnailStats());
 		disconnect();
 
 		synchronized (BACKGROUND_TIMER_LOCK) {
@@ -1880,6 +2089,7 @@ public class ChatController {
 		}
 
 		mTabShowingCallback.handleResponse(friend);
+		mUploadManager.setPriorityUser(friend == null ? null : username);
 		if (friend != null) {
 			mCurrentChat = username;
 			mChatPagerAdapter.addChatName(username);
@@ -1946,7 +2156,7 @@ public class ChatController {
 
 			try {
 
-				chatAdapter.addOrUpdateMessage(chatMessage, false, true, true);
+				chatAdapter.addOrUpdateMessage(chatMessage, false, true);
 				enqueueMessage(chatMessage);
 			}
 			catch (SurespotMessageSequenceException e) {
@@ -2008,7 +2218,7 @@ public class ChatController {
 
 			try {
 
-				chatAdapter.addOrUpdateMessage(chatMessage, false, true, true);
+				chatAdapter.addOrUpdateMessage(chatMessage, false, true);
 				enqueueMessage(chatMessage);
 			}
 			catch (SurespotMessageSequenceException e) {
@@ -2062,7 +2272,7 @@ public class ChatController {
 			ChatAdapter chatAdapter = mChatAdapters.get(message.getTo());
 
 			try {
-				chatAdapter.addOrUpdateMessage(message, false, true, true);
+				chatAdapter.addOrUpdateMessage(message, false, true);
 				scrollToEnd(message.getTo());
 				saveState(message.getTo());
 			}
@@ -2127,6 +2337,8 @@ public class ChatController {
 			String otherUser = message.getOtherUser();
 			mResendBuffer.remove(message);
 			mSendBuffer.remove(message);
+			SurespotApplication.getStateController().removeUnsentMessage(message.getIv());
+			mUploadManager.cancel(message.getIv());
 
 			ChatAdapter chatAdapter = mChatAdapters.get(otherUser);
 			chatAdapter.deleteMessageByIv(message.getIv());
@@ -2174,6 +2386,7 @@ public class ChatController {
 				@Override
 				public void onSuccess(int statusCode, String content) {
 
+					forgetHistory(ChatUtils.getSpot(IdentityController.getLoggedInUser(), friend.getName()), 1, finalMessageId);
 					if (chatAdapter != null) {
 						chatAdapter.deleteAllMessages(finalMessageId);
 						chatAdapter.notifyDataSetChanged();
@@ -2273,25 +2486,37 @@ public class ChatController {
 		// reset status flags
 		message.setErrorStatus(0);
 		message.setAlreadySent(false);
+		message.setUploadProgress(0);
 		chatAdapter.notifyDataSetChanged();
-		setProgress("resend", true);
-		ChatUtils.resendFileMessage(mContext, mNetworkController, message, new IAsyncCallback<Integer>() {
+		mUploadManager.enqueue(message);
+	}
 
-			@Override
-			public void handleResponse(Integer result) {
-				setProgress("resend", false);
-				if (result == 200) {
-					message.setErrorStatus(0);
-				}
-				else {
-					message.setErrorStatus(result);
-				}
+	/**
+	 * Queue the encrypted file for an image or voice message we're sending
+	 */
+	public void uploadFile(SurespotMessage message) {
+		mUploadManager.enqueue(message);
+	}
 
-				message.setAlreadySent(true);
-				chatAdapter.notifyDataSetChanged();
-			}
-		});
+	private void handleUploadComplete(SurespotMessage message, int statusCode) {
+		SurespotLog.v(TAG, "upload complete, iv: %s, result: %d", message.getIv(), statusCode);
+		ChatAdapter chatAdapter = mChatAdapters.get(message.getTo());
+		if (chatAdapter == null) {
+			return;
+		}
+
+		SurespotMessage localMessage = chatAdapter.getMessageByIv(message.getIv());
+		if (localMessage == null) {
+			return;
+		}
 
+		// on success the server sends the message back and it replaces ours
+		localMessage.setUploadProgress(0);
+		if (statusCode != 200) {
+			localMessage.setErrorStatus(statusCode == 402 ? 402 : 500);
+			localMessage.setAlreadySent(true);
+		}
+		chatAdapter.notifyDataSetChanged();
 	}
 
 	public FriendAdapter getFriendAdapter() {
@@ -2341,6 +2566,8 @@ public class ChatController {
 					if (mFriendAdapter != null) {
 						mFriendAdapter.addFriends(friends);
 						mFriendAdapter.setLoading(false);
+						FriendImageDownloader.prefetch(new ArrayList<Friend>(mFriendAdapter.getFriends()));
+						precomputeSharedSecrets();
 					}
 
 					getLatestData();
@@ -2362,6 +2589,26 @@ public class ChatController {
 		}
 	}
 
+	// compute the shared secrets for open chats and friends with unread messages in the background
+	private void precomputeSharedSecrets() {
+		CredentialCachingService cachingService = SurespotApplication.getCachingService();
+		if (cachingService == null || mFriendAdapter == null) {
+			return;
+		}
+
+		HashSet<String> usernames = new HashSet<String>(mChatAdapters.keySet());
+		ArrayList<Friend> friends = mFriendAdapter.getFriends();
+		if (friends != null) {
+			for (Friend friend : friends) {
+				if (friend.isMessageActivity()) {
+					usernames.add(friend.getName());
+				}
+			}
+		}
+
+		cachingService.precomputeSharedSecrets(usernames);
+	}
+
 	public void closeTab() {
 		if (mChatPagerAdapter.getCount() > 0) {
 
@@ -2478,6 +2725,7 @@ public class ChatController {
 			String oldUrl = friend.getImageUrl();
 			if (!TextUtils.isEmpty(oldUrl)) {
 				mNetworkController.removeCacheEntry(oldUrl);
+				FriendImageDownloader.removeAvatar(friend);
 			}
 
 			friend.setImageUrl(url);
@@ -2518,7 +2766,7 @@ public class ChatController {
 				// @Override
 				// public void run() {
 				try {
-					return applyControlMessages(chatAdapter, message, false, true, false);
+					return applyControlMessages(chatAdapter, message, false, false);
 				}
 				catch (SurespotMessageSequenceException e) {
 				}
@@ -178,6 +178,10 @@ public class ChatFragment extends SherlockFragment {
 			// SurespotLog.v(TAG, "onScroll, mLoadiNG : " + mLoading + ", totalItemCount: " + totalItemCount + ", firstVisibleItem: "
 			// + firstVisibleItem + ", visibleItemCount: " + visibleItemCount);
 
+			if (mChatAdapter != null) {
+				mChatAdapter.setVisibleWindow(firstVisibleItem, visibleItemCount);
+			}
+
 			if (!mLoading) {
 				boolean hint = getUserVisibleHint();
 				// SurespotLog.v(TAG, "hint: " + hint);
@@ -292,6 +296,9 @@ public class ChatFragment extends SherlockFragment {
 	public void onPause() {
 		super.onPause();
 		SurespotLog.v(TAG, "onPause, mUsername:  " + mUsername + ", currentScrollId: " + mListView.getFirstVisiblePosition());
+		if (mChatAdapter != null) {
+			SurespotLog.v(TAG, "onPause, decrypt window stats: %s", mChatAdapter.getDecryptWindowStats());
+		}
 		if (mMessagesLoaded) {
 			// set the current scroll position so we know how many messages to save
 
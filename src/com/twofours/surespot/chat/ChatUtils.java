@@ -1,17 +1,15 @@
 package com.twofours.surespot.chat;
 
 import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.PipedInputStream;
 import java.io.PipedOutputStream;
-import java.net.URI;
-import java.net.URISyntaxException;
 import java.net.URLEncoder;
 import java.util.ArrayList;
 import java.util.Collection;
@@ -34,7 +32,8 @@ import android.net.Uri;
 import android.provider.MediaStore.Images;
 import ch.boye.httpclientandroidlib.androidextra.Base64;
 
-import com.twofours.surespot.SurespotApplication;
+import com.twofours.surespot.TaskScheduler;
+import com.twofours.surespot.Tuple;
 import com.twofours.surespot.common.FileUtils;
 import com.twofours.surespot.common.SurespotConfiguration;
 import com.twofours.surespot.common.SurespotConstants;
@@ -42,6 +41,7 @@ import com.twofours.surespot.common.SurespotLog;
 import com.twofours.surespot.common.Utils;
 import com.twofours.surespot.encryption.EncryptionController;
 import com.twofours.surespot.identity.IdentityController;
+import com.twofours.surespot.images.BitmapPool;
 import com.twofours.surespot.images.MessageImageDownloader;
 import com.twofours.surespot.network.IAsyncCallback;
 import com.twofours.surespot.network.IAsyncCallbackTriplet;
@@ -50,6 +50,11 @@ import com.twofours.surespot.network.NetworkController;
 public class ChatUtils {
 	private static final String TAG = "ChatUtils";
 	private static Random mImageUploadFileRandom = new Random();
+	private static final int IMAGE_BUFFER_SIZE = 16 * 1024;
+	private static final int FILE_BUFFER_SIZE = 64 * 1024;
+	private static final int DRAIN_BUFFER_SIZE = 8 * 1024;
+	// room for exif and the other segments before the image size in a jpeg
+	private static final int IMAGE_HEADER_LIMIT = 256 * 1024;
 
 	public static String getOtherUser(String from, String to) {
 		return to.equals(IdentityController.getLoggedInUser()) ? from : to;
@@ -123,192 +128,129 @@ public class ChatUtils {
 			@Override
 			public void run() {
 				SurespotLog.v(TAG, "uploadPictureMessageAsync");
+				File localImageFile = null;
+				SurespotMessage message = null;
 				try {
+					// save encrypted image locally until we receive server confirmation
+					String localImageDir = FileUtils.getImageUploadDir(activity);
+					new File(localImageDir).mkdirs();
+
+					String localImageFilename = localImageDir + File.separator
+							+ URLEncoder.encode(String.valueOf(mImageUploadFileRandom.nextInt()) + ".tmp", "UTF-8");
+					localImageFile = new File(localImageFilename);
+					String localImageUri = Uri.fromFile(localImageFile).toString();
+
+					final String ourVersion = IdentityController.getOurLatestVersion();
+					final String theirVersion = IdentityController.getTheirLatestVersion(to);
+
 					Bitmap bitmap = null;
-					InputStream dataStream = null;
+					ByteArrayOutputStream jpeg = null;
 					if (scale) {
+						// compress once, the same bytes get encrypted and make the preview
 						SurespotLog.v(TAG, "scalingImage");
-						bitmap = decodeSampledBitmapFromUri(activity, imageUri, -1, SurespotConstants.MESSAGE_IMAGE_DIMENSION);
-
-						if (bitmap != null) {
-							final Bitmap finalBitmap = bitmap;
-							final PipedOutputStream pos = new PipedOutputStream();
-							dataStream = new PipedInputStream(pos);
-							Runnable runnable = new Runnable() {
-								@Override
-								public void run() {
-									SurespotLog.v(TAG, "compressingImage");
-									finalBitmap.compress(Bitmap.CompressFormat.JPEG, 75, pos);
-									try {
-										pos.close();
-										SurespotLog.v(TAG, "imageCompressed");
-									}
-									catch (IOException e) {
-										SurespotLog.w(TAG, e, "error compressing image");
-									}
-								}
-							};
-							SurespotApplication.THREAD_POOL_EXECUTOR.execute(runnable);
+						Bitmap scaled = decodeSampledBitmapFromUri(activity, imageUri, -1, SurespotConstants.MESSAGE_IMAGE_DIMENSION);
+						if (scaled == null) {
+							callback.handleResponse(false);
+							return;
 						}
+
+						SurespotLog.v(TAG, "compressingImage");
+						jpeg = new ByteArrayOutputStream();
+						scaled.compress(Bitmap.CompressFormat.JPEG, 75, jpeg);
+						// nobody's showing it so it can be reused
+						BitmapPool.offer(scaled);
+						bitmap = getSampledImage(jpeg.toByteArray());
 					}
 					else {
-						dataStream = activity.getContentResolver().openInputStream(imageUri);
-					}
-
-					if (dataStream != null) {
-
-						PipedOutputStream encryptionOutputStream = new PipedOutputStream();
-						final PipedInputStream encryptionInputStream = new PipedInputStream(encryptionOutputStream);
-
-						final String ourVersion = IdentityController.getOurLatestVersion();
-						final String theirVersion = IdentityController.getTheirLatestVersion(to);
-
-						final String iv = EncryptionController.runEncryptTask(ourVersion, to, theirVersion, new BufferedInputStream(dataStream),
-								encryptionOutputStream);
-
-						if (scale) {
-							// use iv as key
-
-							if (bitmap != null) {
-								// scale to display size
-								ByteArrayOutputStream bos = new ByteArrayOutputStream();
-								bitmap.compress(Bitmap.CompressFormat.JPEG, 75, bos);
-								bitmap = getSampledImage(bos.toByteArray());
-								bos.close();
-
-							}
+						// only the header and the preview are held, not the whole original
+						InputStream previewStream = activity.getContentResolver().openInputStream(imageUri);
+						try {
+							bitmap = getSampledImage(previewStream);
 						}
-						else {
-							// scale to display size
+						finally {
+							previewStream.close();
+						}
+
+						if (bitmap == null) {
 							bitmap = getSampledImage(Utils.inputStreamToBytes(activity.getContentResolver().openInputStream(imageUri)));
 						}
+					}
 
-						// save encrypted image locally until we receive server confirmation
-						String localImageDir = FileUtils.getImageUploadDir(activity);
-						new File(localImageDir).mkdirs();
+					OutputStream fileStream = new BufferedOutputStream(new FileOutputStream(localImageFile), FILE_BUFFER_SIZE);
+					Tuple<String, OutputStream> encryption = EncryptionController.openEncryptStream(ourVersion, to, theirVersion, fileStream);
+					if (encryption == null) {
+						fileStream.close();
+						localImageFile.delete();
+						callback.handleResponse(false);
+						return;
+					}
 
-						String localImageFilename = localImageDir + File.separator
-								+ URLEncoder.encode(String.valueOf(mImageUploadFileRandom.nextInt()) + ".tmp", "UTF-8");
-						final File localImageFile = new File(localImageFilename);
+					String iv = encryption.first;
+					if (bitmap != null) {
+						SurespotLog.v(TAG, "adding bitmap to cache: %s", localImageUri);
 
-						localImageFile.createNewFile();
-						String localImageUri = Uri.fromFile(localImageFile).toString();
-						SurespotLog.v(TAG, "saving copy of encrypted image to: %s", localImageFilename);
-						SurespotMessage message = null;
-						if (bitmap != null) {
-							SurespotLog.v(TAG, "adding bitmap to cache: %s", localImageUri);
-
-							MessageImageDownloader.addBitmapToCache(localImageUri, bitmap);
-							message = buildMessage(to, SurespotConstants.MimeTypes.IMAGE, null, iv, localImageUri);
-							message.setId(null);
-
-							final SurespotMessage finalMessage = message;
-							activity.runOnUiThread(new Runnable() {
-								@Override
-								public void run() {
-									SurespotLog.v(TAG, "adding local image message %s", finalMessage);
-									chatController.addMessage(activity, finalMessage);
-								}
-							});
-						}
+						MessageImageDownloader.addBitmapToCache(localImageUri, bitmap);
+						message = buildMessage(to, SurespotConstants.MimeTypes.IMAGE, null, iv, localImageUri);
+						message.setId(null);
 
 						final SurespotMessage finalMessage = message;
-						Runnable saveFileRunnable = new Runnable() {
+						activity.runOnUiThread(new Runnable() {
 							@Override
 							public void run() {
+								SurespotLog.v(TAG, "adding local image message %s", finalMessage);
+								chatController.addMessage(activity, finalMessage);
+							}
+						});
+					}
 
-								// save encrypted image to disk
-								FileOutputStream fileSaveStream;
-								try {
-									fileSaveStream = new FileOutputStream(localImageFile);
-
-									int bufferSize = 1024;
-									byte[] buffer = new byte[bufferSize];
-
-									int len = 0;
-									while ((len = encryptionInputStream.read(buffer)) != -1) {
-										fileSaveStream.write(buffer, 0, len);
-									}
-									fileSaveStream.close();
-									encryptionInputStream.close();
-
-								}
-
-								catch (IOException e) {
-									SurespotLog.w(TAG, e, "uploadPictureMessageAsync");
-									if (finalMessage != null) {
-										finalMessage.setErrorStatus(500);
-									}
-									callback.handleResponse(true);
-									return;
-								}
-
-								// upload encrypted image to server
-								FileInputStream uploadStream;
-								try {
-									uploadStream = new FileInputStream(localImageFile);
-								}
-								catch (FileNotFoundException e) {
-									SurespotLog.w(TAG, e, "uploadPictureMessageAsync");
-									if (finalMessage != null) {
-										finalMessage.setErrorStatus(500);
-									}
-									callback.handleResponse(true);
-									return;
+					SurespotLog.v(TAG, "saving copy of encrypted image to: %s", localImageFilename);
+					OutputStream encryptionStream = encryption.second;
+					try {
+						if (jpeg != null) {
+							jpeg.writeTo(encryptionStream);
+						}
+						else {
+							InputStream original = activity.getContentResolver().openInputStream(imageUri);
+							try {
+								byte[] buffer = new byte[FILE_BUFFER_SIZE];
+								int len;
+								while ((len = original.read(buffer)) != -1) {
+									encryptionStream.write(buffer, 0, len);
 								}
-
-								networkController.postFileStream(activity, ourVersion, to, theirVersion, iv, uploadStream, SurespotConstants.MimeTypes.IMAGE,
-										new IAsyncCallback<Integer>() {
-
-											@Override
-											public void handleResponse(Integer statusCode) {												
-												// if it failed update the message
-												SurespotLog.v(TAG, "postFileStream complete, result: %d", statusCode);
-												ChatAdapter chatAdapter = null;
-												switch (statusCode) {
-												case 200:													
-													break;
-												case 402:
-													if (finalMessage != null) {
-														finalMessage.setErrorStatus(402);
-													}
-													chatAdapter = chatController.getChatAdapter(activity, to);
-													if (chatAdapter != null) {
-														chatAdapter.notifyDataSetChanged();
-													}
-													break;
-												default:
-													if (finalMessage != null) {
-														finalMessage.setErrorStatus(500);
-													}
-													chatAdapter = chatController.getChatAdapter(activity, to);
-													if (chatAdapter != null) {
-														chatAdapter.notifyDataSetChanged();
-													}
-												}
-
-												callback.handleResponse(true);
-											}
-										});
-
 							}
-						};
-
-						SurespotApplication.THREAD_POOL_EXECUTOR.execute(saveFileRunnable);
-
+							finally {
+								original.close();
+							}
+						}
 					}
-					else {
-						callback.handleResponse(false);
+					finally {
+						encryptionStream.close();
 					}
-				}
 
+					// queue the encrypted image for upload, if we couldn't make a thumbnail it goes without being shown first
+					if (message == null) {
+						message = buildMessage(to, SurespotConstants.MimeTypes.IMAGE, null, iv, localImageUri);
+					}
+					chatController.uploadFile(message);
+					callback.handleResponse(true);
+				}
 				catch (IOException e) {
 					SurespotLog.w(TAG, e, "uploadPictureMessageAsync");
+					if (localImageFile != null) {
+						localImageFile.delete();
+					}
+					if (message != null) {
+						message.setErrorStatus(500);
+						callback.handleResponse(true);
+					}
+					else {
+						callback.handleResponse(false);
+					}
 				}
 			}
 		};
 
-		SurespotApplication.THREAD_POOL_EXECUTOR.execute(runnable);
+		TaskScheduler.execute(TaskScheduler.Lane.SEND, runnable);
 
 	}
 
@@ -330,10 +272,30 @@ public class ChatUtils {
 					final String iv = EncryptionController.runEncryptTask(ourVersion, username, ourVersion, new BufferedInputStream(dataStream),
 							encryptionOutputStream);
 
-					networkController.postFriendImageStream(activity, friendName, ourVersion, iv, encryptionInputStream, new IAsyncCallback<String>() {
+					// save it encrypted so the upload can be resumed
+					String localImageDir = FileUtils.getImageUploadDir(activity);
+					new File(localImageDir).mkdirs();
+					final File localImageFile = new File(localImageDir + File.separator
+							+ URLEncoder.encode(String.valueOf(mImageUploadFileRandom.nextInt()) + ".tmp", "UTF-8"));
+
+					FileOutputStream fileSaveStream = new FileOutputStream(localImageFile);
+					try {
+						byte[] buffer = new byte[1024];
+						int len = 0;
+						while ((len = encryptionInputStream.read(buffer)) != -1) {
+							fileSaveStream.write(buffer, 0, len);
+						}
+					}
+					finally {
+						fileSaveStream.close();
+						encryptionInputStream.close();
+					}
+
+					networkController.postFriendImage(activity, friendName, ourVersion, iv, localImageFile, new IAsyncCallback<String>() {
 
 						@Override
 						public void handleResponse(String uri) {
+							localImageFile.delete();
 							if (uri != null) {
 								callback.handleResponse(uri, ourVersion, iv);
 							}
@@ -351,7 +313,7 @@ public class ChatUtils {
 			}
 		};
 
-		SurespotApplication.THREAD_POOL_EXECUTOR.execute(runnable);
+		TaskScheduler.execute(TaskScheduler.Lane.SEND, runnable);
 
 	}
 
@@ -434,59 +396,13 @@ public class ChatUtils {
 									return;
 								}
 
-								// upload encrypted image to server
-								FileInputStream uploadStream;
-								try {
-									uploadStream = new FileInputStream(localImageFile);
-								}
-								catch (FileNotFoundException e) {
-									SurespotLog.w(TAG, e, "uploadVoiceMessageAsync");
-									if (message != null) {
-										message.setErrorStatus(500);
-									}
-									callback.handleResponse(true);
-									return;
-								}
-
-								final SurespotMessage finalMessage = message;
-								networkController.postFileStream(activity, ourVersion, to, theirVersion, iv, uploadStream, SurespotConstants.MimeTypes.M4A,
-										new IAsyncCallback<Integer>() {
-
-											@Override
-											public void handleResponse(Integer statusCode) {												
-												// if it failed update the message
-												SurespotLog.v(TAG, "postFileStream complete, result: %d", statusCode);
-												ChatAdapter chatAdapter = null;
-												switch (statusCode) {
-												case 200:													
-													break;
-												case 402:
-													if (finalMessage != null) {
-														finalMessage.setErrorStatus(402);
-													}
-													chatAdapter = chatController.getChatAdapter(activity, to);
-													if (chatAdapter != null) {
-														chatAdapter.notifyDataSetChanged();
-													}
-													break;
-												default:
-													if (finalMessage != null) {
-														finalMessage.setErrorStatus(500);
-													}
-													chatAdapter = chatController.getChatAdapter(activity, to);
-													if (chatAdapter != null) {
-														chatAdapter.notifyDataSetChanged();
-													}
-												}
-
-												callback.handleResponse(true);
-											}
-										});
-
+								// queue the encrypted voice message for upload
+								chatController.uploadFile(message);
+								callback.handleResponse(true);
 							}
 						};
 
-						SurespotApplication.THREAD_POOL_EXECUTOR.execute(saveFileRunnable);
+						TaskScheduler.execute(TaskScheduler.Lane.SEND, saveFileRunnable);
 
 					}
 					else {
@@ -501,48 +417,8 @@ public class ChatUtils {
 			}
 		};
 
-		SurespotApplication.THREAD_POOL_EXECUTOR.execute(runnable);
-
-	}
-
-	public static void resendFileMessage(Context context, NetworkController networkController, final SurespotMessage message,
-			final IAsyncCallback<Integer> callback) {
-
-		// upload encrypted file to server
-		FileInputStream uploadStream = null;
-		try {
-			if (message.getData().startsWith("file")) {
-				uploadStream = new FileInputStream(new File(new URI(message.getData())));
-			}
-			else {
-				callback.handleResponse(500);
-			}
-		}
-		catch (IllegalArgumentException e) {
-			SurespotLog.w(TAG, e, "uploadPictureMessageAsync");
-			callback.handleResponse(500);
-			return;
-		}
-		catch (FileNotFoundException e) {
-			SurespotLog.w(TAG, e, "uploadPictureMessageAsync");
-			callback.handleResponse(500);
-			return;
-		}
-		catch (URISyntaxException e) {
-			SurespotLog.w(TAG, e, "uploadPictureMessageAsync");
-			callback.handleResponse(500);
-			return;
-		}
-
-		networkController.postFileStream(context, message.getOurVersion(), message.getTo(), message.getTheirVersion(), message.getIv(), uploadStream,
-				message.getMimeType(), new IAsyncCallback<Integer>() {
+		TaskScheduler.execute(TaskScheduler.Lane.SEND, runnable);
 
-					@Override
-					public void handleResponse(Integer statusCode) {
-						SurespotLog.v(TAG, "postFileStream complete, result: %d", statusCode);
-						callback.handleResponse(statusCode);
-					}
-				});
 	}
 
 	public static Bitmap decodeSampledBitmapFromUri(Context context, Uri imageUri, int rotate, int maxDimension) {
@@ -578,8 +454,6 @@ public class ChatUtils {
 				rotatedHeight = options.outHeight;
 			}
 
-			Bitmap srcBitmap;
-			is = context.getContentResolver().openInputStream(imageUri);
 			if (rotatedWidth > maxDimension || rotatedHeight > maxDimension) {
 				float widthRatio = ((float) rotatedWidth) / ((float) maxDimension);
 				float heightRatio = ((float) rotatedHeight) / ((float) maxDimension);
@@ -589,13 +463,13 @@ public class ChatUtils {
 				options = new BitmapFactory.Options();
 				options.inSampleSize = (int) Math.round(maxRatio);
 				SurespotLog.v(TAG, "Rotated width: " + rotatedWidth + ", height: " + rotatedHeight + ", insamplesize: " + options.inSampleSize);
-				srcBitmap = BitmapFactory.decodeStream(is, null, options);
 			}
 			else {
-				srcBitmap = BitmapFactory.decodeStream(is);
+				// keep the bounds so it can decode into a pooled bitmap
+				options.inJustDecodeBounds = false;
 			}
 
-			is.close();
+			Bitmap srcBitmap = decodeStream(context, imageUri, options);
 			if (srcBitmap != null) {
 
 				SurespotLog.v(TAG, "loaded width: " + srcBitmap.getWidth() + ", height: " + srcBitmap.getHeight());
@@ -604,7 +478,11 @@ public class ChatUtils {
 					Matrix matrix = new Matrix();
 					matrix.postRotate(orientation);
 
-					srcBitmap = Bitmap.createBitmap(srcBitmap, 0, 0, srcBitmap.getWidth(), srcBitmap.getHeight(), matrix, true);
+					Bitmap rotatedBitmap = Bitmap.createBitmap(srcBitmap, 0, 0, srcBitmap.getWidth(), srcBitmap.getHeight(), matrix, true);
+					if (rotatedBitmap != srcBitmap) {
+						BitmapPool.offer(srcBitmap);
+					}
+					srcBitmap = rotatedBitmap;
 					SurespotLog.v(TAG, "post rotated width: " + srcBitmap.getWidth() + ", height: " + srcBitmap.getHeight());
 				}
 			}
@@ -622,15 +500,107 @@ public class ChatUtils {
 	public static Bitmap getSampledImage(byte[] data) {
 		BitmapFactory.Options options = new Options();
 		decodeBounds(options, data);
+		setDisplaySampleSize(options);
+
+		options.inJustDecodeBounds = false;
+		BitmapPool.prepare(options);
+		try {
+			return BitmapFactory.decodeByteArray(data, 0, data.length, options);
+		}
+		catch (IllegalArgumentException e) {
+			SurespotLog.v(TAG, "getSampledImage, could not reuse bitmap: %s", e.getMessage());
+			BitmapPool.reject(options);
+			return BitmapFactory.decodeByteArray(data, 0, data.length, options);
+		}
+	}
+
+	// decodes into a pooled bitmap if prepare finds one, the decoder can still refuse it so then we open the stream again and decode without
+	private static Bitmap decodeStream(Context context, Uri imageUri, Options options) throws IOException {
+		BitmapPool.prepare(options);
+		InputStream is = context.getContentResolver().openInputStream(imageUri);
+		try {
+			return BitmapFactory.decodeStream(is, null, options);
+		}
+		catch (IllegalArgumentException e) {
+			SurespotLog.v(TAG, "decodeStream, could not reuse bitmap: %s", e.getMessage());
+			BitmapPool.reject(options);
+			is.close();
+			is = context.getContentResolver().openInputStream(imageUri);
+			return BitmapFactory.decodeStream(is, null, options);
+		}
+		finally {
+			is.close();
+		}
+	}
+
+	/**
+	 * Decode at display size straight off the stream, only the image header is buffered so the bounds can be read first
+	 * 
+	 * @return the bitmap, or null if it couldn't be decoded this way, the header was too big or a pooled bitmap was refused, so try the bytes
+	 */
+	public static Bitmap getSampledImage(InputStream in) throws IOException {
+		BufferedInputStream bis = new ImageInputStream(in);
+		bis.mark(IMAGE_HEADER_LIMIT);
+
+		BitmapFactory.Options options = new Options();
+		options.inJustDecodeBounds = true;
+		BitmapFactory.decodeStream(bis, null, options);
+		try {
+			bis.reset();
+		}
+		catch (IOException e) {
+			SurespotLog.v(TAG, "getSampledImage, header bigger than %d bytes", IMAGE_HEADER_LIMIT);
+			return null;
+		}
+
+		if (options.outWidth <= 0 || options.outHeight <= 0) {
+			return null;
+		}
+
+		setDisplaySampleSize(options);
+		options.inJustDecodeBounds = false;
+		BitmapPool.prepare(options);
+		try {
+			return BitmapFactory.decodeStream(bis, null, options);
+		}
+		catch (IllegalArgumentException e) {
+			// the stream's been read so we can't try again here
+			SurespotLog.v(TAG, "getSampledImage, could not reuse bitmap: %s", e.getMessage());
+			BitmapPool.reject(options);
+			return null;
+		}
+	}
+
+	/**
+	 * Read the rest of a stream we've decoded from, so a decrypting stream gets to authenticate all of it and a caching one gets to save it
+	 * 
+	 * @throws IOException
+	 *             if the rest couldn't be read or didn't authenticate, in which case what was decoded can't be trusted
+	 */
+	public static void drain(InputStream in) throws IOException {
+		byte[] buffer = new byte[DRAIN_BUFFER_SIZE];
+		while (in.read(buffer) != -1) {
+		}
+	}
+
+	// BitmapFactory marks the stream itself with a small limit, don't let it shrink ours or we can't rewind after reading the bounds
+	private static class ImageInputStream extends BufferedInputStream {
+		ImageInputStream(InputStream in) {
+			super(in, IMAGE_BUFFER_SIZE);
+		}
 
+		@Override
+		public synchronized void mark(int readlimit) {
+			super.mark(Math.max(readlimit, IMAGE_HEADER_LIMIT));
+		}
+	}
+
+	private static void setDisplaySampleSize(Options options) {
 		int reqHeight = SurespotConfiguration.getImageDisplayHeight();
 		if (options.outHeight > reqHeight) {
 			options.inSampleSize = calculateInSampleSize(options, 0, reqHeight);
 			SurespotLog.v(TAG, "getSampledImage, inSampleSize: " + options.inSampleSize);
 		}
-
-		options.inJustDecodeBounds = false;
-		return BitmapFactory.decodeByteArray(data, 0, data.length, options);
 	}
 
 	private static void decodeBounds(Options options, byte[] data) {
@@ -762,6 +732,10 @@ public class ChatUtils {
 		return Base64.encode(buf, Base64.NO_WRAP);
 	}
 
+	public static byte[] base64EncodeNowrap(byte[] buf, int offset, int len) {
+		return Base64.encode(buf, offset, len, Base64.NO_WRAP);
+	}
+
 	public static byte[] base64DecodeNowrap(String buf) {
 		return Base64.decode(buf, Base64.NO_WRAP);
 	}
@@ -0,0 +1,116 @@
+package com.twofours.surespot.chat;
+
+import java.util.HashSet;
+import java.util.List;
+
+import com.twofours.surespot.common.SurespotConstants;
+import com.twofours.surespot.encryption.MessageDecryptor;
+
+/**
+ * Keeps the rows on screen plus the next few rows in the direction we're scrolling decrypted, so rows are usually ready before they're bound
+ * instead of every bind kicking off its own decrypt.
+ *
+ * Decrypts that fall out of the window are cancelled. Calls are on the ui thread.
+ */
+public class DecryptWindow {
+	// rows to decrypt ahead of the visible ones
+	private static final int PREFETCH_ROWS = 15;
+
+	private final MessageStore mMessages;
+	private final MessageDecryptor mMessageDecryptor;
+	// read by checkLoaded off the ui thread
+	private volatile int mFirst = -1;
+	private volatile int mCount;
+	// chats open at the bottom so we assume we're heading up until we know better
+	private boolean mScrollingUp = true;
+	private int mHits;
+	private int mMisses;
+	// ivs of the rows we've counted, rebinds from notifyDataSetChanged don't count again
+	private final HashSet<String> mBound = new HashSet<String>();
+
+	public DecryptWindow(MessageStore messages, MessageDecryptor messageDecryptor) {
+		mMessages = messages;
+		mMessageDecryptor = messageDecryptor;
+	}
+
+	/**
+	 * The list scrolled or was laid out
+	 */
+	public void update(int first, int count) {
+		if (first == mFirst && count == mCount) {
+			return;
+		}
+
+		if (mFirst >= 0 && first != mFirst) {
+			mScrollingUp = first < mFirst;
+		}
+		mFirst = first;
+		mCount = count;
+
+		synchronized (mMessages) {
+			int size = mMessages.size();
+			int start = Math.max(0, first - (mScrollingUp ? PREFETCH_ROWS : 0));
+			int end = Math.min(size, first + count + (mScrollingUp ? 0 : PREFETCH_ROWS));
+
+			// drop decrypts for rows we've moved away from
+			List<SurespotMessage> pending = mMessageDecryptor.getPendingMessages();
+			for (SurespotMessage message : pending) {
+				int position = mMessages.indexOf(message);
+				if (position < start || position >= end) {
+					mMessageDecryptor.cancel(message);
+				}
+			}
+
+			// visible rows first, then outwards in the scroll direction
+			for (int i = first; i < end; i++) {
+				prefetch(mMessages.get(i));
+			}
+			for (int i = first - 1; i >= start; i--) {
+				prefetch(mMessages.get(i));
+			}
+		}
+	}
+
+	/**
+	 * A row was bound, count whether its text was ready the first time it was
+	 */
+	public void onBind(SurespotMessage message) {
+		if (message.getIv() == null || !mBound.add(message.getIv())) {
+			return;
+		}
+
+		if (message.getPlainData() != null) {
+			mHits++;
+		}
+		else {
+			mMisses++;
+		}
+	}
+
+	public int getFirst() {
+		return mFirst;
+	}
+
+	public int getCount() {
+		return mCount;
+	}
+
+	/**
+	 *
+	 * @return fraction of text rows that were already decrypted when they were bound
+	 */
+	public float getHitRate() {
+		int total = mHits + mMisses;
+		return total == 0 ? 0 : (float) mHits / total;
+	}
+
+	public String getStats() {
+		return String.format("%d hits, %d misses, hit rate %.2f", mHits, mMisses, getHitRate());
+	}
+
+	private void prefetch(SurespotMessage message) {
+		if (message.getMimeType().equals(SurespotConstants.MimeTypes.TEXT) && message.getPlainData() == null) {
+			mMessageDecryptor.prefetch(message);
+		}
+	}
+}
@@ -0,0 +1,207 @@
+package com.twofours.surespot.chat;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.graphics.Bitmap;
+import android.net.Uri;
+
+import com.twofours.surespot.activities.MainActivity;
+import com.twofours.surespot.common.SurespotLog;
+import com.twofours.surespot.common.Utils;
+import com.twofours.surespot.encryption.EncryptionController;
+
+/**
+ * Downloads and decrypts image and voice message files, once per url no matter how many threads ask at the same time.
+ *
+ * Incoming images are pre decoded by ChatController while the row for the same message is often asking MessageImageDownloader for it, without
+ * this both would download and decrypt the same file. The first caller for a url does the work, anyone asking while it's in progress waits for
+ * it and gets the same result, which must be treated as read only.
+ *
+ * Everything is decrypted on the calling thread as it's read. Images are decoded straight off that stream so only the header and the bitmap
+ * are in memory, rather than the whole cipher text and plain text too.
+ */
+public class MediaFetcher {
+	private static final String TAG = "MediaFetcher";
+
+	private static class Fetch {
+		final CountDownLatch mDone = new CountDownLatch(1);
+		volatile Object mResult;
+	}
+
+	private static final HashMap<String, Fetch> sFetches = new HashMap<String, Fetch>();
+	private static final AtomicInteger sStarted = new AtomicInteger();
+	private static final AtomicInteger sShared = new AtomicInteger();
+	private static final AtomicInteger sBuffered = new AtomicInteger();
+
+	/**
+	 * Download and decrypt the message's file, blocks so call it off the ui thread
+	 *
+	 * @return the plain bytes or null if it couldn't be downloaded or decrypted
+	 */
+	public static byte[] getPlainBytes(SurespotMessage message) {
+		return (byte[]) fetch(message, false);
+	}
+
+	/**
+	 * Download, decrypt and decode the message's image at display size, blocks so call it off the ui thread
+	 *
+	 * @return the bitmap or null if it couldn't be downloaded, decrypted or decoded
+	 */
+	public static Bitmap getSampledImage(SurespotMessage message) {
+		return (Bitmap) fetch(message, true);
+	}
+
+	/**
+	 *
+	 * @return number of downloads done
+	 */
+	public static int getStartedCount() {
+		return sStarted.get();
+	}
+
+	/**
+	 *
+	 * @return number of requests that piggybacked on a download already in progress instead of starting their own
+	 */
+	public static int getSharedCount() {
+		return sShared.get();
+	}
+
+	public static String getStats() {
+		return String.format("%d downloads, %d duplicates suppressed, %d images buffered", getStartedCount(), getSharedCount(), sBuffered.get());
+	}
+
+	private static Object fetch(SurespotMessage message, boolean image) {
+		String key = (image ? "image:" : "bytes:") + message.getData();
+		Fetch fetch;
+		boolean mine = false;
+		synchronized (sFetches) {
+			fetch = sFetches.get(key);
+			if (fetch == null) {
+				fetch = new Fetch();
+				sFetches.put(key, fetch);
+				mine = true;
+			}
+		}
+
+		if (!mine) {
+			sShared.incrementAndGet();
+			SurespotLog.v(TAG, "fetch, waiting on fetch in progress for iv: %s", message.getIv());
+			try {
+				fetch.mDone.await();
+			}
+			catch (InterruptedException e) {
+				SurespotLog.w(TAG, e, "fetch");
+				return null;
+			}
+			return fetch.mResult;
+		}
+
+		sStarted.incrementAndGet();
+		try {
+			fetch.mResult = image ? decode(message) : download(message);
+		}
+		finally {
+			synchronized (sFetches) {
+				sFetches.remove(key);
+			}
+			fetch.mDone.countDown();
+		}
+		return fetch.mResult;
+	}
+
+	private static Bitmap decode(SurespotMessage message) {
+		InputStream plainStream = openPlainStream(message);
+		if (plainStream == null) {
+			return null;
+		}
+
+		try {
+			Bitmap bitmap = ChatUtils.getSampledImage(plainStream);
+			if (bitmap != null) {
+				// so the rest is authenticated and the download makes it into the media cache
+				ChatUtils.drain(plainStream);
+				return bitmap;
+			}
+		}
+		catch (IOException e) {
+			SurespotLog.w(TAG, e, "decode");
+			return null;
+		}
+		finally {
+			close(plainStream);
+		}
+
+		// the header was too big to rewind or the decoder turned down a pooled bitmap
+		SurespotLog.v(TAG, "decode, could not decode off the stream, buffering iv: %s", message.getIv());
+		sBuffered.incrementAndGet();
+		byte[] bytes = download(message);
+		return bytes == null ? null : ChatUtils.getSampledImage(bytes);
+	}
+
+	private static byte[] download(SurespotMessage message) {
+		InputStream plainStream = openPlainStream(message);
+		if (plainStream == null) {
+			return null;
+		}
+
+		try {
+			return Utils.inputStreamToBytes(plainStream);
+		}
+		catch (IOException e) {
+			SurespotLog.w(TAG, e, "download");
+			return null;
+		}
+		finally {
+			close(plainStream);
+		}
+	}
+
+	private static InputStream openPlainStream(SurespotMessage message) {
+		InputStream encryptedStream = null;
+		if (message.getData().startsWith("file")) {
+			// our own media that hasn't been uploaded yet
+			try {
+				encryptedStream = MainActivity.getContext().getContentResolver().openInputStream(Uri.parse(message.getData()));
+			}
+			catch (FileNotFoundException e) {
+				SurespotLog.w(TAG, e, "openPlainStream");
+			}
+		}
+		else {
+			encryptedStream = MainActivity.getNetworkController().getMediaStream(MainActivity.getContext(), message.getData());
+		}
+
+		if (encryptedStream == null) {
+			return null;
+		}
+
+		InputStream plainStream = null;
+		try {
+			plainStream = EncryptionController.openDecryptStream(message.getOurVersion(), message.getOtherUser(), message.getTheirVersion(),
+					message.getIv(), encryptedStream);
+		}
+		catch (IOException e) {
+			SurespotLog.w(TAG, e, "openPlainStream");
+		}
+
+		if (plainStream == null) {
+			close(encryptedStream);
+		}
+		return plainStream;
+	}
+
+	private static void close(InputStream in) {
+		try {
+			in.close();
+		}
+		catch (IOException e) {
+			SurespotLog.w(TAG, e, "close");
+		}
+	}
+}
@@ -0,0 +1,318 @@
+package com.twofours.surespot.chat;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.twofours.surespot.common.SurespotLog;
+
+/**
+ * Decodes message pages from the server straight into messages with a token reader, without building a JSONObject tree first.
+ *
+ * Fields are read the way toSurespotMessage and toSurespotControlMessage read them, a message missing a required field is skipped.
+ */
+public class MessageDataReader {
+	private static final String TAG = "MessageDataReader";
+
+	/**
+	 * Messages and control messages for a spot
+	 */
+	public static class MessageData {
+		public String username;
+		public ArrayList<SurespotControlMessage> controlMessages;
+		public ArrayList<SurespotMessage> messages;
+	}
+
+	/**
+	 * Everything that changed while we were away
+	 */
+	public static class LatestData {
+		public Map<String, Integer> conversationIds;
+		public Map<String, Integer> controlIds;
+		public ArrayList<SurespotControlMessage> userControlMessages;
+		public ArrayList<MessageData> messageData = new ArrayList<MessageData>();
+	}
+
+	public static LatestData readLatestData(JsonReader reader) throws IOException {
+		LatestData latestData = new LatestData();
+		reader.beginObject();
+		while (reader.hasNext()) {
+			String name = reader.nextName();
+			if (reader.peek() == JsonToken.NULL) {
+				reader.nextNull();
+			}
+			else if (name.equals("conversationIds")) {
+				latestData.conversationIds = readIds(reader);
+			}
+			else if (name.equals("controlIds")) {
+				latestData.controlIds = readIds(reader);
+			}
+			else if (name.equals("userControlMessages")) {
+				latestData.userControlMessages = readControlMessages(reader);
+			}
+			else if (name.equals("messageData")) {
+				reader.beginArray();
+				while (reader.hasNext()) {
+					latestData.messageData.add(readMessageData(reader));
+				}
+				reader.endArray();
+			}
+			else {
+				reader.skipValue();
+			}
+		}
+		reader.endObject();
+		return latestData;
+	}
+
+	public static MessageData readMessageData(JsonReader reader) throws IOException {
+		MessageData messageData = new MessageData();
+		reader.beginObject();
+		while (reader.hasNext()) {
+			String name = reader.nextName();
+			if (reader.peek() == JsonToken.NULL) {
+				reader.nextNull();
+			}
+			else if (name.equals("username")) {
+				messageData.username = reader.nextString();
+			}
+			else if (name.equals("controlMessages")) {
+				messageData.controlMessages = readControlMessages(reader);
+			}
+			else if (name.equals("messages")) {
+				messageData.messages = readMessages(reader);
+			}
+			else {
+				reader.skipValue();
+			}
+		}
+		reader.endObject();
+		return messageData;
+	}
+
+	public static ArrayList<SurespotMessage> readMessages(JsonReader reader) throws IOException {
+		ArrayList<SurespotMessage> messages = new ArrayList<SurespotMessage>();
+		reader.beginArray();
+		while (reader.hasNext()) {
+			SurespotMessage message = readMessage(reader);
+			if (message != null) {
+				messages.add(message);
+			}
+		}
+		reader.endArray();
+		return messages;
+	}
+
+	public static ArrayList<SurespotControlMessage> readControlMessages(JsonReader reader) throws IOException {
+		ArrayList<SurespotControlMessage> messages = new ArrayList<SurespotControlMessage>();
+		reader.beginArray();
+		while (reader.hasNext()) {
+			SurespotControlMessage message = readControlMessage(reader);
+			if (message != null) {
+				messages.add(message);
+			}
+		}
+		reader.endArray();
+		return messages;
+	}
+
+	/**
+	 *
+	 * @return the message or null if it was missing a required field
+	 */
+	public static SurespotMessage readMessage(JsonReader reader) throws IOException {
+		// messages sometimes come json encoded in a string
+		if (reader.peek() == JsonToken.STRING) {
+			return readMessage(new JsonReader(new StringReader(reader.nextString())));
+		}
+
+		SurespotMessage message = new SurespotMessage();
+		message.setData("");
+		reader.beginObject();
+		while (reader.hasNext()) {
+			String name = reader.nextName();
+			if (name.equals("from")) {
+				message.setFrom(readString(reader));
+			}
+			else if (name.equals("to")) {
+				message.setTo(readString(reader));
+			}
+			else if (name.equals("iv")) {
+				message.setIv(readString(reader));
+			}
+			else if (name.equals("data")) {
+				message.setData(readString(reader));
+			}
+			else if (name.equals("mimeType")) {
+				message.setMimeType(readString(reader));
+			}
+			else if (name.equals("toVersion")) {
+				message.setToVersion(readString(reader));
+			}
+			else if (name.equals("fromVersion")) {
+				message.setFromVersion(readString(reader));
+			}
+			else if (name.equals("shareable")) {
+				message.setShareable(readBoolean(reader));
+			}
+			else if (name.equals("voicePlayed")) {
+				message.setVoicePlayed(readBoolean(reader));
+			}
+			else if (name.equals("gcm")) {
+				message.setGcm(readBoolean(reader));
+			}
+			else if (name.equals("id")) {
+				int id = (int) readLong(reader);
+				if (id > 0) {
+					message.setId(id);
+				}
+			}
+			else if (name.equals("errorStatus")) {
+				int errorStatus = (int) readLong(reader);
+				if (errorStatus > 0) {
+					message.setErrorStatus(errorStatus);
+				}
+			}
+			else if (name.equals("resendId")) {
+				int resendId = (int) readLong(reader);
+				if (resendId > 0) {
+					message.setResendId(resendId);
+				}
+			}
+			else if (name.equals("datetime")) {
+				long datetime = readLong(reader);
+				if (datetime > 0) {
+					message.setDateTime(new Date(datetime));
+				}
+			}
+			else if (name.equals("dataSize")) {
+				int dataSize = (int) readLong(reader);
+				if (dataSize > 0) {
+					message.setDataSize(dataSize);
+				}
+			}
+			else {
+				reader.skipValue();
+			}
+		}
+		reader.endObject();
+
+		if (message.getFrom() == null || message.getTo() == null || message.getIv() == null || message.getMimeType() == null
+				|| message.getToVersion() == null || message.getFromVersion() == null) {
+			SurespotLog.w(TAG, "readMessage, skipping incomplete message, iv: %s", message.getIv());
+			return null;
+		}
+		return message;
+	}
+
+	/**
+	 *
+	 * @return the control message or null if it was missing a required field
+	 */
+	public static SurespotControlMessage readControlMessage(JsonReader reader) throws IOException {
+		// control messages come json encoded in a string
+		if (reader.peek() == JsonToken.STRING) {
+			return readControlMessage(new JsonReader(new StringReader(reader.nextString())));
+		}
+
+		SurespotControlMessage message = new SurespotControlMessage();
+		message.setFrom("");
+		reader.beginObject();
+		while (reader.hasNext()) {
+			String name = reader.nextName();
+			if (name.equals("type")) {
+				message.setType(readString(reader));
+			}
+			else if (name.equals("id")) {
+				message.setId((int) readLong(reader));
+			}
+			else if (name.equals("action")) {
+				message.setAction(readString(reader));
+			}
+			else if (name.equals("data")) {
+				message.setData(readString(reader));
+			}
+			else if (name.equals("from")) {
+				message.setFrom(readString(reader));
+			}
+			else if (name.equals("moredata")) {
+				message.setMoreData(readString(reader));
+			}
+			else {
+				reader.skipValue();
+			}
+		}
+		reader.endObject();
+
+		if (message.getType() == null || message.getId() == null || message.getAction() == null || message.getData() == null) {
+			SurespotLog.w(TAG, "readControlMessage, skipping incomplete control message, id: %d", message.getId());
+			return null;
+		}
+		return message;
+	}
+
+	private static Map<String, Integer> readIds(JsonReader reader) throws IOException {
+		Map<String, Integer> ids = new LinkedHashMap<String, Integer>();
+		reader.beginObject();
+		while (reader.hasNext()) {
+			ids.put(reader.nextName(), (int) readLong(reader));
+		}
+		reader.endObject();
+		return ids;
+	}
+
+	private static String readString(JsonReader reader) throws IOException {
+		switch (reader.peek()) {
+			case NULL:
+				reader.nextNull();
+				return null;
+			case BOOLEAN:
+				return String.valueOf(reader.nextBoolean());
+			case STRING:
+			case NUMBER:
+				return reader.nextString();
+			default:
+				reader.skipValue();
+				return null;
+		}
+	}
+
+	private static boolean readBoolean(JsonReader reader) throws IOException {
+		switch (reader.peek()) {
+			case BOOLEAN:
+				return reader.nextBoolean();
+			case STRING:
+				return "true".equalsIgnoreCase(reader.nextString());
+			default:
+				reader.skipValue();
+				return false;
+		}
+	}
+
+	// like optLong, anything that isn't a number is 0
+	private static long readLong(JsonReader reader) throws IOException {
+		JsonToken token = reader.peek();
+		if (token != JsonToken.NUMBER && token != JsonToken.STRING) {
+			reader.skipValue();
+			return 0;
+		}
+
+		String value = reader.nextString();
+		try {
+			return Long.parseLong(value);
+		}
+		catch (NumberFormatException e) {
+			try {
+				return (long) Double.parseDouble(value);
+			}
+			catch (NumberFormatException e1) {
+				return 0;
+			}
+		}
+	}
+}
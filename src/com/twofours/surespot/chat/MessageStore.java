@@ -0,0 +1,323 @@
+package com.twofours.surespot.chat;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * Ordered message list backing a ChatAdapter.
+ *
+ * Messages with an id are kept sorted by id at the front of the list, messages still waiting on an id from the server are kept at the tail in the
+ * order they were added. Hash indexes on id and iv make lookups O(1) and the sorted prefix makes inserts and removals a binary search.
+ *
+ * Not thread safe, callers synchronize on the store.
+ */
+public class MessageStore implements Iterable<SurespotMessage> {
+	private ArrayList<SurespotMessage> mMessages = new ArrayList<SurespotMessage>();
+	private HashMap<Integer, SurespotMessage> mById = new HashMap<Integer, SurespotMessage>();
+	private HashMap<String, SurespotMessage> mByIv = new HashMap<String, SurespotMessage>();
+	// number of messages at the front of the list that have an id
+	private int mIdCount;
+
+	public int size() {
+		return mMessages.size();
+	}
+
+	public SurespotMessage get(int position) {
+		return mMessages.get(position);
+	}
+
+	/**
+	 *
+	 * @return the backing list in display order, do not modify
+	 */
+	public ArrayList<SurespotMessage> getList() {
+		return mMessages;
+	}
+
+	public SurespotMessage getById(Integer id) {
+		if (id == null) {
+			return null;
+		}
+		return mById.get(id);
+	}
+
+	public SurespotMessage getByIv(String iv) {
+		if (iv == null) {
+			return null;
+		}
+		return mByIv.get(iv);
+	}
+
+	/**
+	 * Find the stored message that SurespotMessage.equals the passed in message
+	 */
+	public SurespotMessage find(SurespotMessage message) {
+		SurespotMessage found = getById(message.getId());
+		if (found == null) {
+			found = getByIv(message.getIv());
+		}
+		return found;
+	}
+
+	public boolean contains(SurespotMessage message) {
+		return find(message) != null;
+	}
+
+	public void add(SurespotMessage message) {
+		Integer id = message.getId();
+		if (id == null) {
+			mMessages.add(message);
+		}
+		else {
+			mMessages.add(insertionPoint(id), message);
+			mById.put(id, message);
+			mIdCount++;
+		}
+
+		if (message.getIv() != null) {
+			mByIv.put(message.getIv(), message);
+		}
+	}
+
+	/**
+	 * Merge a page of messages into the store in one linear pass. Pages from the server are already id ordered so we only sort the page if it
+	 * isn't. Messages without an id go to the tail, messages already in the store are skipped.
+	 *
+	 * @return the number of messages added
+	 */
+	public int merge(List<SurespotMessage> page) {
+		ArrayList<SurespotMessage> withIds = new ArrayList<SurespotMessage>(page.size());
+		boolean sorted = true;
+		for (SurespotMessage message : page) {
+			if (contains(message)) {
+				continue;
+			}
+
+			if (message.getId() == null) {
+				add(message);
+				continue;
+			}
+
+			if (!withIds.isEmpty() && withIds.get(withIds.size() - 1).getId() > message.getId()) {
+				sorted = false;
+			}
+			withIds.add(message);
+			// index now so duplicates within the page are skipped too
+			mById.put(message.getId(), message);
+			if (message.getIv() != null) {
+				mByIv.put(message.getIv(), message);
+			}
+		}
+
+		int count = withIds.size();
+		if (count == 0) {
+			return 0;
+		}
+
+		if (!sorted) {
+			Collections.sort(withIds);
+		}
+
+		// make room and shift the pending tail to the end
+		int oldSize = mMessages.size();
+		mMessages.ensureCapacity(oldSize + count);
+		for (int i = 0; i < count; i++) {
+			mMessages.add(null);
+		}
+		for (int i = oldSize - 1; i >= mIdCount; i--) {
+			mMessages.set(i + count, mMessages.get(i));
+		}
+
+		// merge from the back so we never overwrite something we still need
+		int existing = mIdCount - 1;
+		int incoming = count - 1;
+		for (int dest = mIdCount + count - 1; incoming >= 0; dest--) {
+			if (existing >= 0 && mMessages.get(existing).getId() > withIds.get(incoming).getId()) {
+				mMessages.set(dest, mMessages.get(existing--));
+			}
+			else {
+				mMessages.set(dest, withIds.get(incoming--));
+			}
+		}
+
+		mIdCount += count;
+		return count;
+	}
+
+	/**
+	 * Set the id of a stored message, moving it to its sorted position
+	 */
+	public void setId(SurespotMessage message, Integer id) {
+		Integer oldId = message.getId();
+		if (oldId == null ? id == null : oldId.equals(id)) {
+			return;
+		}
+
+		boolean stored = remove(message);
+		message.setId(id);
+		if (stored) {
+			add(message);
+		}
+	}
+
+	public boolean remove(SurespotMessage message) {
+		int index = indexOf(message);
+		if (index < 0) {
+			return false;
+		}
+
+		removeAt(index);
+		return true;
+	}
+
+	public SurespotMessage removeById(Integer id) {
+		SurespotMessage message = getById(id);
+		if (message != null) {
+			remove(message);
+		}
+		return message;
+	}
+
+	public SurespotMessage removeByIv(String iv) {
+		SurespotMessage message = getByIv(iv);
+		if (message != null) {
+			remove(message);
+		}
+		return message;
+	}
+
+	/**
+	 *
+	 * @return position of this exact message instance in the list or -1
+	 */
+	public int indexOf(SurespotMessage message) {
+		Integer id = message.getId();
+		if (id == null) {
+			for (int i = mIdCount; i < mMessages.size(); i++) {
+				if (mMessages.get(i) == message) {
+					return i;
+				}
+			}
+			return -1;
+		}
+
+		for (int i = insertionPoint(id) - 1; i >= 0; i--) {
+			SurespotMessage candidate = mMessages.get(i);
+			if (candidate == message) {
+				return i;
+			}
+			if (!id.equals(candidate.getId())) {
+				break;
+			}
+		}
+		return -1;
+	}
+
+	public void clear() {
+		mMessages.clear();
+		mById.clear();
+		mByIv.clear();
+		mIdCount = 0;
+	}
+
+	/**
+	 * Replace the contents of the store, sorting them into place
+	 */
+	public void setAll(Collection<SurespotMessage> messages) {
+		clear();
+		mMessages.addAll(messages);
+		// stable so messages without ids keep their relative order at the tail
+		Collections.sort(mMessages);
+		reindex();
+	}
+
+	/**
+	 * Re-sort the list, only needed if ids were changed behind our back
+	 */
+	public void sort() {
+		Collections.sort(mMessages);
+		reindex();
+	}
+
+	@Override
+	public Iterator<SurespotMessage> iterator() {
+		return new Iterator<SurespotMessage>() {
+			private int mNext;
+			private int mLast = -1;
+
+			@Override
+			public boolean hasNext() {
+				return mNext < mMessages.size();
+			}
+
+			@Override
+			public SurespotMessage next() {
+				if (!hasNext()) {
+					throw new NoSuchElementException();
+				}
+				mLast = mNext++;
+				return mMessages.get(mLast);
+			}
+
+			@Override
+			public void remove() {
+				if (mLast < 0) {
+					throw new IllegalStateException();
+				}
+				removeAt(mLast);
+				mNext = mLast;
+				mLast = -1;
+			}
+		};
+	}
+
+	private SurespotMessage removeAt(int index) {
+		SurespotMessage message = mMessages.remove(index);
+		if (index < mIdCount) {
+			mIdCount--;
+			if (mById.get(message.getId()) == message) {
+				mById.remove(message.getId());
+			}
+		}
+		if (message.getIv() != null && mByIv.get(message.getIv()) == message) {
+			mByIv.remove(message.getIv());
+		}
+		return message;
+	}
+
+	private void reindex() {
+		mById.clear();
+		mByIv.clear();
+		mIdCount = 0;
+		for (SurespotMessage message : mMessages) {
+			if (message.getId() != null) {
+				mById.put(message.getId(), message);
+				mIdCount++;
+			}
+			if (message.getIv() != null) {
+				mByIv.put(message.getIv(), message);
+			}
+		}
+	}
+
+	// first position in the id'd prefix whose id is greater than the given id
+	private int insertionPoint(int id) {
+		int low = 0;
+		int high = mIdCount;
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (mMessages.get(mid).getId() <= id) {
+				low = mid + 1;
+			}
+			else {
+				high = mid;
+			}
+		}
+		return low;
+	}
+}
@@ -0,0 +1,84 @@
+package com.twofours.surespot.chat;
+
+import android.text.Spanned;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.Weigher;
+
+/**
+ * Decrypted message text (with emoji spans) by message iv, shared by every chat.
+ *
+ * Plain data on a SurespotMessage is lost whenever the adapter is rebuilt or messages are re-read from state, this keeps it around so we don't
+ * decrypt the same messages over and over. Bounded by an estimate of the memory the text takes up, least recently used goes first.
+ */
+public class PlainTextCache {
+	// rough per entry cost of the cache entry, key and string objects
+	private static final int ENTRY_OVERHEAD = 128;
+	private static final int SPAN_OVERHEAD = 48;
+	private static final long MAX_BYTES = Runtime.getRuntime().maxMemory() / 32;
+
+	private static final Cache<String, CharSequence> sCache = CacheBuilder.newBuilder().maximumWeight(MAX_BYTES)
+			.weigher(new Weigher<String, CharSequence>() {
+
+				@Override
+				public int weigh(String iv, CharSequence plainText) {
+					int weight = ENTRY_OVERHEAD + 2 * (iv.length() + plainText.length());
+					if (plainText instanceof Spanned) {
+						weight += SPAN_OVERHEAD * ((Spanned) plainText).getSpans(0, plainText.length(), Object.class).length;
+					}
+					return weight;
+				}
+			}).recordStats().build();
+
+	public static CharSequence get(String iv) {
+		if (iv == null) {
+			return null;
+		}
+		return sCache.getIfPresent(iv);
+	}
+
+	public static void put(String iv, CharSequence plainText) {
+		if (iv == null || plainText == null) {
+			return;
+		}
+		sCache.put(iv, plainText);
+	}
+
+	/**
+	 * Set the plain data of a text message from the cache if we have it
+	 *
+	 * @return true if the message has plain data
+	 */
+	public static boolean fill(SurespotMessage message) {
+		if (message.getPlainData() != null) {
+			return true;
+		}
+
+		CharSequence plainText = get(message.getIv());
+		if (plainText == null) {
+			return false;
+		}
+		message.setPlainData(plainText);
+		return true;
+	}
+
+	public static void remove(String iv) {
+		if (iv != null) {
+			sCache.invalidate(iv);
+		}
+	}
+
+	public static void clear() {
+		sCache.invalidateAll();
+	}
+
+	/**
+	 *
+	 * @return hit and miss counts
+	 */
+	public static CacheStats getStats() {
+		return sCache.stats();
+	}
+}
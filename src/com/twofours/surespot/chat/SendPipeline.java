@@ -0,0 +1,234 @@
+package com.twofours.surespot.chat;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+import org.json.JSONArray;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import com.twofours.surespot.common.SurespotLog;
+
+/**
+ * Coalesces outgoing messages into batched socket frames.
+ *
+ * Messages ready to send wait a few milliseconds so a burst (pasting, share intents, resending after a reconnect) goes out as one frame instead
+ * of a frame each. Only a few batches are allowed in flight at once, a batch is done when the server has echoed back every message in it (or
+ * errored it). Batches that are never acked time out, their messages are still in the resend buffer so they go again on the next connect.
+ *
+ * The resend buffer stays the record of what hasn't been acked, this only decides when messages go on the wire.
+ */
+public class SendPipeline {
+	private static final String TAG = "SendPipeline";
+	// how long to wait for more messages before sending a frame
+	private static final long COALESCE_MS = 30;
+	private static final int MAX_BATCH_MESSAGES = 20;
+	private static final int MAX_BATCH_BYTES = 32 * 1024;
+	private static final int MAX_IN_FLIGHT = 3;
+	private static final long ACK_TIMEOUT_MS = 30000;
+
+	/**
+	 * Writes a frame to the socket
+	 */
+	public interface FrameSender {
+		/**
+		 *
+		 * @return false if there's no socket to send on
+		 */
+		boolean sendFrame(String frame);
+	}
+
+	private static class Batch {
+		final HashSet<String> mIvs = new HashSet<String>();
+		long mSentAt;
+	}
+
+	private final FrameSender mSender;
+	private final Handler mHandler = new Handler(Looper.getMainLooper());
+	// messages waiting to go out by iv
+	private final LinkedHashMap<String, SurespotMessage> mQueued = new LinkedHashMap<String, SurespotMessage>();
+	private int mQueuedBytes;
+	private final ArrayList<Batch> mInFlight = new ArrayList<Batch>();
+	private final HashMap<String, Batch> mBatchesByIv = new HashMap<String, Batch>();
+	private boolean mFlushScheduled;
+
+	private int mBatchesSent;
+	private int mMessagesSent;
+	private int mBatchesAcked;
+	private int mBatchesTimedOut;
+	private long mTotalLatency;
+	private long mMaxLatency;
+	private long mLastLatency;
+
+	public SendPipeline(FrameSender sender) {
+		mSender = sender;
+	}
+
+	/**
+	 * Queue a message to go out in the next frame
+	 */
+	public synchronized void send(SurespotMessage message) {
+		if (mBatchesByIv.containsKey(message.getIv())) {
+			return;
+		}
+
+		if (mQueued.put(message.getIv(), message) == null) {
+			mQueuedBytes += estimateSize(message);
+		}
+
+		if (mQueued.size() >= MAX_BATCH_MESSAGES || mQueuedBytes >= MAX_BATCH_BYTES) {
+			flush();
+		}
+		else if (!mFlushScheduled) {
+			mFlushScheduled = true;
+			mHandler.postDelayed(mFlushRunnable, COALESCE_MS);
+		}
+	}
+
+	/**
+	 * The server echoed the message back or errored it
+	 */
+	public synchronized void onAck(String iv) {
+		Batch batch = mBatchesByIv.remove(iv);
+		if (batch == null) {
+			return;
+		}
+
+		batch.mIvs.remove(iv);
+		if (batch.mIvs.isEmpty()) {
+			mInFlight.remove(batch);
+			long latency = System.currentTimeMillis() - batch.mSentAt;
+			mBatchesAcked++;
+			mTotalLatency += latency;
+			mLastLatency = latency;
+			mMaxLatency = Math.max(mMaxLatency, latency);
+
+			// room for another batch
+			if (!mQueued.isEmpty()) {
+				flush();
+			}
+		}
+	}
+
+	/**
+	 * Forget everything, the socket went away and whatever wasn't acked will be resent from the resend buffer
+	 */
+	public synchronized void reset() {
+		mHandler.removeCallbacks(mFlushRunnable);
+		mFlushScheduled = false;
+		mQueued.clear();
+		mQueuedBytes = 0;
+		mInFlight.clear();
+		mBatchesByIv.clear();
+	}
+
+	public synchronized int getInFlightCount() {
+		return mInFlight.size();
+	}
+
+	/**
+	 *
+	 * @return average time from sending a batch to every message in it being acked
+	 */
+	public synchronized long getAverageLatency() {
+		return mBatchesAcked == 0 ? 0 : mTotalLatency / mBatchesAcked;
+	}
+
+	public synchronized String getStats() {
+		return String.format("%d messages in %d batches, %d acked, %d timed out, latency avg %d ms, max %d ms, last %d ms, %d in flight, %d queued",
+				mMessagesSent, mBatchesSent, mBatchesAcked, mBatchesTimedOut, getAverageLatency(), mMaxLatency, mLastLatency, mInFlight.size(),
+				mQueued.size());
+	}
+
+	private Runnable mFlushRunnable = new Runnable() {
+
+		@Override
+		public void run() {
+			synchronized (SendPipeline.this) {
+				mFlushScheduled = false;
+				flush();
+			}
+		}
+	};
+
+	private void flush() {
+		expireBatches();
+
+		while (!mQueued.isEmpty() && mInFlight.size() < MAX_IN_FLIGHT) {
+			Batch batch = new Batch();
+			ArrayList<SurespotMessage> messages = new ArrayList<SurespotMessage>();
+			int bytes = 0;
+			Iterator<SurespotMessage> iterator = mQueued.values().iterator();
+			while (iterator.hasNext() && messages.size() < MAX_BATCH_MESSAGES && (messages.isEmpty() || bytes < MAX_BATCH_BYTES)) {
+				SurespotMessage message = iterator.next();
+				iterator.remove();
+				int size = estimateSize(message);
+				mQueuedBytes -= size;
+				bytes += size;
+				messages.add(message);
+			}
+
+			// a lone message goes as it always has, several go as an array like a resend
+			String frame;
+			if (messages.size() == 1) {
+				frame = messages.get(0).toJSONObjectSocket().toString();
+			}
+			else {
+				JSONArray jsonMessages = new JSONArray();
+				for (SurespotMessage message : messages) {
+					jsonMessages.put(message.toJSONObjectSocket());
+				}
+				frame = jsonMessages.toString();
+			}
+
+			if (!mSender.sendFrame(frame)) {
+				SurespotLog.d(TAG, "flush, no socket, dropping %d messages until we reconnect", messages.size() + mQueued.size());
+				mQueued.clear();
+				mQueuedBytes = 0;
+				return;
+			}
+
+			batch.mSentAt = System.currentTimeMillis();
+			for (SurespotMessage message : messages) {
+				batch.mIvs.add(message.getIv());
+				mBatchesByIv.put(message.getIv(), batch);
+			}
+			mInFlight.add(batch);
+			mBatchesSent++;
+			mMessagesSent += messages.size();
+			SurespotLog.v(TAG, "flush, sent %d messages in a %d byte frame, %d batches in flight", messages.size(), frame.length(), mInFlight.size());
+		}
+
+		// if we're waiting on acks an ack will flush, but make sure a lost ack can't strand the queue
+		if (!mQueued.isEmpty() && !mFlushScheduled) {
+			mFlushScheduled = true;
+			mHandler.postDelayed(mFlushRunnable, ACK_TIMEOUT_MS);
+		}
+	}
+
+	private void expireBatches() {
+		long now = System.currentTimeMillis();
+		Iterator<Batch> iterator = mInFlight.iterator();
+		while (iterator.hasNext()) {
+			Batch batch = iterator.next();
+			if (now - batch.mSentAt > ACK_TIMEOUT_MS) {
+				SurespotLog.i(TAG, "expireBatches, %d messages not acked after %d ms", batch.mIvs.size(), now - batch.mSentAt);
+				for (String iv : batch.mIvs) {
+					mBatchesByIv.remove(iv);
+				}
+				iterator.remove();
+				mBatchesTimedOut++;
+			}
+		}
+	}
+
+	private static int estimateSize(SurespotMessage message) {
+		String data = message.getData();
+		// the data is most of it, the rest is names, versions and the iv
+		return (data == null ? 0 : data.length()) + 256;
+	}
+}
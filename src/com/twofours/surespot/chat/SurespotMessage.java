@@ -1,5 +1,9 @@
 package com.twofours.surespot.chat;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.EOFException;
+import java.io.IOException;
 import java.util.Date;
 import java.util.Observable;
 
@@ -39,6 +43,8 @@ public class SurespotMessage extends Observable implements Comparable<SurespotMe
 	private boolean mPlayVoice = false;
 	private boolean mVoicePlayed = false;
 	private boolean mAlreadySent = false;
+	// percent of the file uploaded, not saved
+	private int mUploadProgress;
 	
 
 	public String getFrom() {
@@ -278,6 +284,135 @@ public class SurespotMessage extends Observable implements Comparable<SurespotMe
 
 	}
 
+	private static final int FLAG_ID = 1;
+	private static final int FLAG_RESEND_ID = 1 << 1;
+	private static final int FLAG_DATETIME = 1 << 2;
+	private static final int FLAG_DATA_SIZE = 1 << 3;
+	private static final int FLAG_ERROR_STATUS = 1 << 4;
+	private static final int FLAG_SHAREABLE = 1 << 5;
+	private static final int FLAG_GCM = 1 << 6;
+	private static final int FLAG_VOICE_PLAYED = 1 << 7;
+
+	/**
+	 * Binary form of the fields toJSONObject saves, for the message log. The iv comes first so a record can be identified without reading the
+	 * rest.
+	 */
+	public void writeTo(DataOutput out) throws IOException {
+		int flags = 0;
+		flags |= getId() != null ? FLAG_ID : 0;
+		flags |= getResendId() != null ? FLAG_RESEND_ID : 0;
+		flags |= getDateTime() != null ? FLAG_DATETIME : 0;
+		flags |= getDataSize() != null ? FLAG_DATA_SIZE : 0;
+		flags |= getErrorStatus() > 0 ? FLAG_ERROR_STATUS : 0;
+		flags |= isShareable() ? FLAG_SHAREABLE : 0;
+		flags |= isGcm() ? FLAG_GCM : 0;
+		flags |= isVoicePlayed() ? FLAG_VOICE_PLAYED : 0;
+
+		writeString(out, getIv());
+		out.writeByte(flags);
+		writeString(out, getFrom());
+		writeString(out, getTo());
+		writeString(out, getFromVersion());
+		writeString(out, getToVersion());
+		writeString(out, getMimeType());
+		writeString(out, getData());
+
+		if (getId() != null) {
+			out.writeInt(getId());
+		}
+		if (getResendId() != null) {
+			out.writeInt(getResendId());
+		}
+		if (getDateTime() != null) {
+			out.writeLong(getDateTime().getTime());
+		}
+		if (getDataSize() != null) {
+			out.writeInt(getDataSize());
+		}
+		if (getErrorStatus() > 0) {
+			out.writeInt(getErrorStatus());
+		}
+	}
+
+	public static SurespotMessage readFrom(DataInput in) throws IOException {
+		SurespotMessage chatMessage = new SurespotMessage();
+
+		chatMessage.setIv(readString(in));
+		int flags = in.readUnsignedByte();
+		chatMessage.setFrom(readString(in));
+		chatMessage.setTo(readString(in));
+		chatMessage.setFromVersion(readString(in));
+		chatMessage.setToVersion(readString(in));
+		chatMessage.setMimeType(readString(in));
+		chatMessage.setData(readString(in));
+		chatMessage.setShareable((flags & FLAG_SHAREABLE) != 0);
+		chatMessage.setGcm((flags & FLAG_GCM) != 0);
+		chatMessage.setVoicePlayed((flags & FLAG_VOICE_PLAYED) != 0);
+
+		if ((flags & FLAG_ID) != 0) {
+			chatMessage.setId(in.readInt());
+		}
+		if ((flags & FLAG_RESEND_ID) != 0) {
+			chatMessage.setResendId(in.readInt());
+		}
+		if ((flags & FLAG_DATETIME) != 0) {
+			chatMessage.setDateTime(new Date(in.readLong()));
+		}
+		if ((flags & FLAG_DATA_SIZE) != 0) {
+			chatMessage.setDataSize(in.readInt());
+		}
+		if ((flags & FLAG_ERROR_STATUS) != 0) {
+			chatMessage.setErrorStatus(in.readInt());
+		}
+
+		return chatMessage;
+	}
+
+	/**
+	 * Read just the iv and id of a message written by writeTo, the rest is skipped without decoding
+	 */
+	public static SurespotMessage readIdFrom(DataInput in) throws IOException {
+		SurespotMessage chatMessage = new SurespotMessage();
+
+		chatMessage.setIv(readString(in));
+		int flags = in.readUnsignedByte();
+		// from, to, from version, to version, mime type and data
+		for (int i = 0; i < 6; i++) {
+			int length = in.readInt();
+			if (length > 0 && in.skipBytes(length) != length) {
+				throw new EOFException();
+			}
+		}
+
+		if ((flags & FLAG_ID) != 0) {
+			chatMessage.setId(in.readInt());
+		}
+		return chatMessage;
+	}
+
+	// cipher text can be longer than writeUTF allows
+	private static void writeString(DataOutput out, String string) throws IOException {
+		if (string == null) {
+			out.writeInt(-1);
+			return;
+		}
+
+		byte[] bytes = string.getBytes("UTF-8");
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	private static String readString(DataInput in) throws IOException {
+		int length = in.readInt();
+		if (length < 0) {
+			return null;
+		}
+
+		byte[] bytes = new byte[length];
+		in.readFully(bytes);
+		return new String(bytes, "UTF-8");
+	}
+
 	@Override
 	public int hashCode() {
 		final int prime = 31;
@@ -367,6 +502,14 @@ public class SurespotMessage extends Observable implements Comparable<SurespotMe
 		mAlreadySent = alreadySent;
 	}
 
+	public int getUploadProgress() {
+		return mUploadProgress;
+	}
+
+	public void setUploadProgress(int uploadProgress) {
+		mUploadProgress = uploadProgress;
+	}
+
 	public Date getDateTime() {
 		return mDateTime;
 	}
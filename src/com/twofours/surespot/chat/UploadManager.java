@@ -0,0 +1,236 @@
+package com.twofours.surespot.chat;
+
+import java.io.File;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import com.twofours.surespot.SurespotApplication;
+import com.twofours.surespot.TaskScheduler;
+import com.twofours.surespot.common.SurespotLog;
+import com.twofours.surespot.network.IAsyncCallbackTuple;
+import com.twofours.surespot.network.NetworkController;
+
+/**
+ * Uploads the files for image and voice messages a few at a time instead of all at once.
+ *
+ * Messages wait in a queue that's journaled, so anything not finished when we're killed is picked up again next time. Only a few uploads run at
+ * once, more on wifi than on mobile, and messages for the chat the user is looking at jump the queue.
+ */
+public class UploadManager {
+	private static final String TAG = "UploadManager";
+	private static final int WIFI_CONCURRENCY = 3;
+	private static final int MOBILE_CONCURRENCY = 1;
+	// don't redraw for every chunk
+	private static final int PROGRESS_STEP = 5;
+
+	/**
+	 * Told about uploads on the ui thread
+	 */
+	public interface Listener {
+		void onUploadProgress(SurespotMessage message, int percent);
+
+		void onUploadComplete(SurespotMessage message, int statusCode);
+	}
+
+	private final NetworkController mNetworkController;
+	private final Listener mListener;
+	private final Handler mHandler = new Handler(Looper.getMainLooper());
+	private final LinkedList<SurespotMessage> mQueued = new LinkedList<SurespotMessage>();
+	private final HashSet<String> mActive = new HashSet<String>();
+	private boolean mOnWifi;
+	private String mPriorityUser;
+
+	private int mUploaded;
+	private int mFailed;
+	private int mMaxQueued;
+
+	public UploadManager(NetworkController networkController, Listener listener) {
+		mNetworkController = networkController;
+		mListener = listener;
+	}
+
+	/**
+	 * Queue the message's file for upload, the message's data must be the uri of the encrypted file
+	 */
+	public synchronized void enqueue(SurespotMessage message) {
+		if (mActive.contains(message.getIv()) || isQueued(message.getIv())) {
+			return;
+		}
+
+		SurespotApplication.getStateController().appendQueuedUpload(message);
+		mQueued.add(message);
+		mMaxQueued = Math.max(mMaxQueued, mQueued.size());
+		next();
+	}
+
+	/**
+	 * Queue uploads left over from last time
+	 */
+	public synchronized void restore(List<SurespotMessage> messages) {
+		for (SurespotMessage message : messages) {
+			if (!mActive.contains(message.getIv()) && !isQueued(message.getIv())) {
+				mQueued.add(message);
+			}
+		}
+		next();
+	}
+
+	/**
+	 * Drop a message's upload if it hasn't started and forget it
+	 */
+	public synchronized void cancel(String iv) {
+		SurespotApplication.getStateController().removeQueuedUpload(iv);
+		Iterator<SurespotMessage> iterator = mQueued.iterator();
+		while (iterator.hasNext()) {
+			if (iterator.next().getIv().equals(iv)) {
+				iterator.remove();
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Forget what's queued without touching the journal, for logging out
+	 */
+	public synchronized void clear() {
+		mQueued.clear();
+	}
+
+	public synchronized void setOnWifi(boolean onWifi) {
+		mOnWifi = onWifi;
+		next();
+	}
+
+	/**
+	 * Uploads to this user go first
+	 */
+	public synchronized void setPriorityUser(String username) {
+		mPriorityUser = username;
+	}
+
+	public synchronized boolean isUploading(String iv) {
+		return mActive.contains(iv) || isQueued(iv);
+	}
+
+	public synchronized String getStats() {
+		return String.format("%d uploaded, %d failed, %d active, %d queued, %d max queued, %s", mUploaded, mFailed, mActive.size(),
+				mQueued.size(), mMaxQueued, mOnWifi ? "wifi" : "mobile");
+	}
+
+	private boolean isQueued(String iv) {
+		for (SurespotMessage message : mQueued) {
+			if (message.getIv().equals(iv)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private void next() {
+		int concurrency = mOnWifi ? WIFI_CONCURRENCY : MOBILE_CONCURRENCY;
+		while (mActive.size() < concurrency && !mQueued.isEmpty()) {
+			SurespotMessage message = takeNext();
+			mActive.add(message.getIv());
+			TaskScheduler.execute(TaskScheduler.Lane.UPLOAD, new UploadTask(message));
+		}
+	}
+
+	// the first message for the chat being looked at, otherwise the oldest
+	private SurespotMessage takeNext() {
+		if (mPriorityUser != null) {
+			Iterator<SurespotMessage> iterator = mQueued.iterator();
+			while (iterator.hasNext()) {
+				SurespotMessage message = iterator.next();
+				if (mPriorityUser.equals(message.getTo())) {
+					iterator.remove();
+					return message;
+				}
+			}
+		}
+		return mQueued.removeFirst();
+	}
+
+	private void done(final SurespotMessage message, final int statusCode) {
+		// the uploader has already retried, so whatever happened the message gets marked failed and it's up to the user to resend, which
+		// queues it again. only uploads we were killed in the middle of are left for the next start
+		SurespotApplication.getStateController().removeQueuedUpload(message.getIv());
+
+		synchronized (this) {
+			mActive.remove(message.getIv());
+			if (statusCode == 200) {
+				mUploaded++;
+			}
+			else {
+				mFailed++;
+			}
+			next();
+		}
+
+		mHandler.post(new Runnable() {
+
+			@Override
+			public void run() {
+				mListener.onUploadComplete(message, statusCode);
+			}
+		});
+	}
+
+	private class UploadTask implements Runnable {
+		private final SurespotMessage mMessage;
+		private int mLastPercent;
+
+		UploadTask(SurespotMessage message) {
+			mMessage = message;
+		}
+
+		@Override
+		public void run() {
+			File file = null;
+			try {
+				if (mMessage.getData().startsWith("file")) {
+					file = new File(new URI(mMessage.getData()));
+				}
+			}
+			catch (URISyntaxException e) {
+				SurespotLog.w(TAG, e, "run");
+			}
+			catch (IllegalArgumentException e) {
+				SurespotLog.w(TAG, e, "run");
+			}
+
+			if (file == null || !file.exists()) {
+				SurespotLog.i(TAG, "run, no file to upload for iv: %s", mMessage.getIv());
+				done(mMessage, 404);
+				return;
+			}
+
+			int statusCode = mNetworkController.uploadFile(mMessage.getOurVersion(), mMessage.getTo(), mMessage.getTheirVersion(), mMessage.getIv(),
+					file, mMessage.getMimeType(), new IAsyncCallbackTuple<Long, Long>() {
+
+						@Override
+						public void handleResponse(Long sent, Long total) {
+							final int percent = (int) (sent * 100 / Math.max(1, total));
+							if (percent - mLastPercent >= PROGRESS_STEP) {
+								mLastPercent = percent;
+								mHandler.post(new Runnable() {
+
+									@Override
+									public void run() {
+										mListener.onUploadProgress(mMessage, percent);
+									}
+								});
+							}
+						}
+					});
+
+			done(mMessage, statusCode);
+		}
+	}
+}
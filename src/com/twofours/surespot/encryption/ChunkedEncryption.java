@@ -0,0 +1,353 @@
+package com.twofours.surespot.encryption;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import org.spongycastle.crypto.InvalidCipherTextException;
+import org.spongycastle.crypto.engines.AESLightEngine;
+import org.spongycastle.crypto.modes.GCMBlockCipher;
+import org.spongycastle.crypto.params.AEADParameters;
+import org.spongycastle.crypto.params.KeyParameter;
+
+/**
+ * Segmented AES-GCM format for images and voice messages.
+ *
+ * The plain text is split into fixed size chunks and each chunk is sealed on its own, so a receiver can verify and use the start of a file before
+ * the rest has arrived, seek to any chunk, and resume a transfer at a chunk boundary.
+ *
+ * <pre>
+ * header: magic (4) | format version (1) | chunk size (4)
+ * chunk:  GCM(plain text chunk) | tag (16)
+ * </pre>
+ *
+ * Each chunk's nonce is the message iv with the chunk index xored into its last four bytes, and the header plus a final chunk flag are
+ * authenticated as associated data. Media is encrypted as it's produced so the chunk count isn't known when the header is written, flagging the
+ * final chunk gives the same protection against truncation and reordering.
+ *
+ * Anything without the header is the original single GCM stream format. Older clients only read that, so media is only written in this format
+ * for recipients known to read it, see EncryptionController.supportsChunkedMedia.
+ */
+public class ChunkedEncryption {
+	public static final int FORMAT_VERSION = 1;
+	public static final int DEFAULT_CHUNK_SIZE = 64 * 1024;
+	public static final int HEADER_LENGTH = 9;
+	public static final int TAG_LENGTH = 16;
+
+	private static final byte[] MAGIC = { 's', 's', 'c', 'e' };
+	// anything bigger than this in a header isn't one of ours
+	private static final int MAX_CHUNK_SIZE = 1024 * 1024;
+	private static final int KEY_LENGTH = 32;
+
+	/**
+	 *
+	 * @return offset into the encrypted file of the given chunk, for seeking and resuming
+	 */
+	public static long getChunkOffset(int chunkSize, int chunkIndex) {
+		return HEADER_LENGTH + (long) chunkIndex * (chunkSize + TAG_LENGTH);
+	}
+
+	/**
+	 *
+	 * @return index of the chunk holding the given plain text offset
+	 */
+	public static int getChunkIndex(int chunkSize, long plainOffset) {
+		return (int) (plainOffset / chunkSize);
+	}
+
+	/**
+	 * Decrypt a single chunk read from anywhere in the file
+	 *
+	 * @return the plain text of the chunk
+	 * @throws InvalidCipherTextException
+	 *             if the chunk was tampered with, is out of place, or last doesn't match
+	 */
+	public static byte[] decryptChunk(byte[] key, byte[] iv, int chunkSize, int chunkIndex, boolean last, byte[] cipherChunk, int length)
+			throws InvalidCipherTextException {
+		GCMBlockCipher gcm = new GCMBlockCipher(new AESLightEngine());
+		gcm.init(false, getParameters(new KeyParameter(key, 0, KEY_LENGTH), iv, chunkSize, chunkIndex, last));
+		byte[] plain = new byte[gcm.getOutputSize(length)];
+		int len = gcm.processBytes(cipherChunk, 0, length, plain, 0);
+		gcm.doFinal(plain, len);
+		return plain;
+	}
+
+	/**
+	 * Open a decrypting stream if the input is in the chunked format. The input is left where it was if it isn't so it can be read as the single
+	 * stream format.
+	 *
+	 * @return the plain text stream or null if the input isn't chunked
+	 */
+	public static InputStream openDecryptStream(BufferedInputStream in, byte[] key, byte[] iv) throws IOException {
+		in.mark(HEADER_LENGTH);
+
+		byte[] header = new byte[HEADER_LENGTH];
+		int chunkSize = readHeader(in, header);
+		in.reset();
+		if (chunkSize > 0) {
+			// only buffer as much as the declared first chunk so we can go back if it doesn't authenticate
+			in.mark(HEADER_LENGTH + chunkSize + TAG_LENGTH + 1);
+			readHeader(in, header);
+
+			DecryptionInputStream decryptionStream = new DecryptionInputStream(in, key, iv, chunkSize);
+			try {
+				// a legacy stream could start with our magic by chance so make sure the first chunk really authenticates
+				decryptionStream.readChunk();
+				return decryptionStream;
+			}
+			catch (IOException e) {
+				// fall through to the legacy format
+			}
+		}
+
+		in.reset();
+		return null;
+	}
+
+	// returns the chunk size or -1 if this isn't a header
+	private static int readHeader(InputStream in, byte[] header) throws IOException {
+		int read = 0;
+		while (read < HEADER_LENGTH) {
+			int len = in.read(header, read, HEADER_LENGTH - read);
+			if (len < 0) {
+				return -1;
+			}
+			read += len;
+		}
+
+		for (int i = 0; i < MAGIC.length; i++) {
+			if (header[i] != MAGIC[i]) {
+				return -1;
+			}
+		}
+
+		if (header[4] != FORMAT_VERSION) {
+			return -1;
+		}
+
+		int chunkSize = ((header[5] & 0xff) << 24) | ((header[6] & 0xff) << 16) | ((header[7] & 0xff) << 8) | (header[8] & 0xff);
+		if (chunkSize <= 0 || chunkSize > MAX_CHUNK_SIZE) {
+			return -1;
+		}
+		return chunkSize;
+	}
+
+	private static byte[] buildHeader(int chunkSize) {
+		byte[] header = new byte[HEADER_LENGTH];
+		System.arraycopy(MAGIC, 0, header, 0, MAGIC.length);
+		header[4] = FORMAT_VERSION;
+		header[5] = (byte) (chunkSize >>> 24);
+		header[6] = (byte) (chunkSize >>> 16);
+		header[7] = (byte) (chunkSize >>> 8);
+		header[8] = (byte) chunkSize;
+		return header;
+	}
+
+	private static AEADParameters getParameters(KeyParameter key, byte[] iv, int chunkSize, int chunkIndex, boolean last) {
+		byte[] nonce = iv.clone();
+		int end = nonce.length;
+		nonce[end - 4] ^= (byte) (chunkIndex >>> 24);
+		nonce[end - 3] ^= (byte) (chunkIndex >>> 16);
+		nonce[end - 2] ^= (byte) (chunkIndex >>> 8);
+		nonce[end - 1] ^= (byte) chunkIndex;
+
+		byte[] associatedData = new byte[HEADER_LENGTH + 1];
+		System.arraycopy(buildHeader(chunkSize), 0, associatedData, 0, HEADER_LENGTH);
+		associatedData[HEADER_LENGTH] = (byte) (last ? 1 : 0);
+
+		return new AEADParameters(key, TAG_LENGTH * 8, nonce, associatedData);
+	}
+
+	/**
+	 * Encrypts everything written to it into the chunked format, close must be called to seal the final chunk.
+	 */
+	public static class EncryptionOutputStream extends OutputStream {
+		private final OutputStream mOut;
+		private final GCMBlockCipher mGcm = new GCMBlockCipher(new AESLightEngine());
+		private final KeyParameter mKey;
+		private final byte[] mIv;
+		private final int mChunkSize;
+		private final byte[] mChunk;
+		private final byte[] mCipherChunk;
+		private int mChunkLength;
+		private int mChunkIndex;
+		private boolean mHeaderWritten;
+		private boolean mClosed;
+
+		public EncryptionOutputStream(OutputStream out, byte[] key, byte[] iv) {
+			this(out, key, iv, DEFAULT_CHUNK_SIZE);
+		}
+
+		public EncryptionOutputStream(OutputStream out, byte[] key, byte[] iv, int chunkSize) {
+			mOut = out;
+			mKey = new KeyParameter(key, 0, KEY_LENGTH);
+			mIv = iv;
+			mChunkSize = chunkSize;
+			mChunk = new byte[chunkSize];
+			mCipherChunk = new byte[chunkSize + TAG_LENGTH];
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] buffer, int offset, int count) throws IOException {
+			while (count > 0) {
+				// only seal a full chunk once we know more is coming so the last chunk always gets the final flag
+				if (mChunkLength == mChunkSize) {
+					sealChunk(false);
+				}
+
+				int len = Math.min(count, mChunkSize - mChunkLength);
+				System.arraycopy(buffer, offset, mChunk, mChunkLength, len);
+				mChunkLength += len;
+				offset += len;
+				count -= len;
+			}
+		}
+
+		@Override
+		public void flush() throws IOException {
+			mOut.flush();
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (mClosed) {
+				return;
+			}
+			mClosed = true;
+
+			try {
+				sealChunk(true);
+			}
+			finally {
+				mOut.close();
+			}
+		}
+
+		private void sealChunk(boolean last) throws IOException {
+			if (!mHeaderWritten) {
+				mOut.write(buildHeader(mChunkSize));
+				mHeaderWritten = true;
+			}
+
+			// only the first chunk gets keyed, after that the key schedule is reused
+			mGcm.init(true, getParameters(mChunkIndex == 0 ? mKey : null, mIv, mChunkSize, mChunkIndex, last));
+			int len = mGcm.processBytes(mChunk, 0, mChunkLength, mCipherChunk, 0);
+			try {
+				len += mGcm.doFinal(mCipherChunk, len);
+			}
+			catch (InvalidCipherTextException e) {
+				throw new IOException(e.getMessage());
+			}
+
+			mOut.write(mCipherChunk, 0, len);
+			mChunkLength = 0;
+			mChunkIndex++;
+		}
+	}
+
+	/**
+	 * Decrypts the chunks following a header, throws if a chunk doesn't authenticate or the stream ends before the final chunk
+	 */
+	static class DecryptionInputStream extends InputStream {
+		private final InputStream mIn;
+		private final GCMBlockCipher mGcm = new GCMBlockCipher(new AESLightEngine());
+		private final KeyParameter mKey;
+		private final byte[] mIv;
+		private final int mChunkSize;
+		private final byte[] mCipherChunk;
+		private final byte[] mPlainChunk;
+		private int mPlainLength;
+		private int mPlainPosition;
+		private int mChunkIndex;
+		private int mCarry = -1;
+		private boolean mDone;
+
+		DecryptionInputStream(InputStream in, byte[] key, byte[] iv, int chunkSize) {
+			mIn = in;
+			mKey = new KeyParameter(key, 0, KEY_LENGTH);
+			mIv = iv;
+			mChunkSize = chunkSize;
+			mCipherChunk = new byte[chunkSize + TAG_LENGTH];
+			mPlainChunk = new byte[chunkSize];
+		}
+
+		@Override
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			int len = read(b, 0, 1);
+			return len < 0 ? -1 : b[0] & 0xff;
+		}
+
+		@Override
+		public int read(byte[] buffer, int offset, int count) throws IOException {
+			while (mPlainPosition == mPlainLength) {
+				if (mDone) {
+					return -1;
+				}
+				readChunk();
+			}
+
+			int len = Math.min(count, mPlainLength - mPlainPosition);
+			System.arraycopy(mPlainChunk, mPlainPosition, buffer, offset, len);
+			mPlainPosition += len;
+			return len;
+		}
+
+		@Override
+		public int available() throws IOException {
+			return mPlainLength - mPlainPosition;
+		}
+
+		@Override
+		public void close() throws IOException {
+			mIn.close();
+		}
+
+		void readChunk() throws IOException {
+			// read a full chunk plus one byte so we know whether this is the last one
+			int read = 0;
+			if (mCarry >= 0) {
+				mCipherChunk[read++] = (byte) mCarry;
+				mCarry = -1;
+			}
+			while (read < mCipherChunk.length) {
+				int len = mIn.read(mCipherChunk, read, mCipherChunk.length - read);
+				if (len < 0) {
+					break;
+				}
+				read += len;
+			}
+
+			boolean last = true;
+			if (read == mCipherChunk.length) {
+				mCarry = mIn.read();
+				last = mCarry < 0;
+			}
+
+			if (read < TAG_LENGTH) {
+				throw new EOFException("truncated chunk");
+			}
+
+			try {
+				mGcm.init(false, getParameters(mChunkIndex == 0 ? mKey : null, mIv, mChunkSize, mChunkIndex, last));
+				int len = mGcm.processBytes(mCipherChunk, 0, read, mPlainChunk, 0);
+				len += mGcm.doFinal(mPlainChunk, len);
+				mPlainLength = len;
+				mPlainPosition = 0;
+			}
+			catch (InvalidCipherTextException e) {
+				throw new IOException("chunk " + mChunkIndex + " failed authentication");
+			}
+
+			mChunkIndex++;
+			mDone = last;
+		}
+	}
+}
@@ -0,0 +1,76 @@
+package com.twofours.surespot.encryption;
+
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+
+import javax.crypto.Cipher;
+
+import org.spongycastle.crypto.engines.AESLightEngine;
+import org.spongycastle.crypto.modes.GCMBlockCipher;
+import org.spongycastle.crypto.params.KeyParameter;
+import org.spongycastle.crypto.params.ParametersWithIV;
+
+/**
+ * Per thread AES-GCM state so we aren't allocating a cipher, key schedule and output buffer for every message.
+ *
+ * GCMBlockCipher skips re-keying the underlying engine when it's initialised without a key, so as long as consecutive messages on a thread use the
+ * same shared secret (the common case when decrypting a conversation) the AES key schedule is reused.
+ */
+final class CipherContext {
+	private static final int INITIAL_BUFFER_SIZE = 1024;
+
+	private static final ThreadLocal<CipherContext> sContexts = new ThreadLocal<CipherContext>() {
+		@Override
+		protected CipherContext initialValue() {
+			return new CipherContext();
+		}
+	};
+
+	private final GCMBlockCipher mGcm = new GCMBlockCipher(new AESLightEngine());
+	private byte[] mKey;
+	private byte[] mBuffer = new byte[INITIAL_BUFFER_SIZE];
+	private Cipher mStreamCipher;
+
+	private CipherContext() {
+	}
+
+	static CipherContext get() {
+		return sContexts.get();
+	}
+
+	/**
+	 * Initialise the block cipher for a new message, only re-keying if the key changed
+	 */
+	GCMBlockCipher init(boolean forEncryption, byte[] key, int keyLength, byte[] iv) {
+		KeyParameter keyParameter = null;
+		if (mKey == null || (mKey != key && !Arrays.equals(mKey, key))) {
+			keyParameter = new KeyParameter(key, 0, keyLength);
+		}
+
+		// clear the key before init in case it throws and leaves the engine half keyed
+		mKey = null;
+		mGcm.init(forEncryption, new ParametersWithIV(keyParameter, iv));
+		mKey = key;
+		return mGcm;
+	}
+
+	/**
+	 * @return a scratch buffer at least size bytes long, only valid until the next call on this thread
+	 */
+	byte[] getBuffer(int size) {
+		if (mBuffer.length < size) {
+			mBuffer = new byte[Math.max(size, mBuffer.length * 2)];
+		}
+		return mBuffer;
+	}
+
+	/**
+	 * @return this thread's AES/GCM stream cipher, callers must init it before use
+	 */
+	Cipher getStreamCipher() throws GeneralSecurityException {
+		if (mStreamCipher == null) {
+			mStreamCipher = Cipher.getInstance("AES/GCM/NoPadding", "SC");
+		}
+		return mStreamCipher;
+	}
+}
@@ -5,6 +5,7 @@ import java.io.BufferedOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.security.GeneralSecurityException;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
 import java.security.KeyFactory;
@@ -19,6 +20,14 @@ import java.security.Signature;
 import java.security.SignatureException;
 import java.security.spec.PKCS8EncodedKeySpec;
 import java.security.spec.X509EncodedKeySpec;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import javax.crypto.Cipher;
 import javax.crypto.CipherInputStream;
@@ -41,10 +50,15 @@ import org.spongycastle.jce.interfaces.ECPublicKey;
 import org.spongycastle.jce.spec.ECParameterSpec;
 
 import android.os.AsyncTask;
+import android.os.Handler;
+import android.os.Looper;
 
 import com.google.common.cache.CacheLoader.InvalidCacheLoadException;
 import com.twofours.surespot.SurespotApplication;
+import com.twofours.surespot.TaskScheduler;
+import com.twofours.surespot.Tuple;
 import com.twofours.surespot.chat.ChatUtils;
+import com.twofours.surespot.chat.SurespotMessage;
 import com.twofours.surespot.common.SurespotConstants;
 import com.twofours.surespot.common.SurespotLog;
 import com.twofours.surespot.network.IAsyncCallback;
@@ -56,6 +70,12 @@ public class EncryptionController {
 	private static final int AES_KEY_LENGTH = 32;
 	private static final int SALT_LENGTH = 16;
 	private static final int IV_LENGTH = 16;
+	private static final int DECRYPT_THREADS = Math.max(1, Runtime.getRuntime().availableProcessors());
+
+	// batch decryption is cpu bound so only use as many threads as we have cores
+	private static final ExecutorService DECRYPT_EXECUTOR = Executors.newFixedThreadPool(DECRYPT_THREADS, SurespotApplication.sThreadFactory);
+
+	private static final Handler mHandler = new Handler(Looper.getMainLooper());
 
 	private static ECParameterSpec curve = ECNamedCurveTable.getParameterSpec("secp521r1");
 	private static SecureRandom mSecureRandom = new SurespotSecureRandom();
@@ -270,14 +290,13 @@ public class EncryptionController {
 
 				byte[] buf = new byte[BUFFER_SIZE]; // input buffer
 				try {
-					final IvParameterSpec ivParams = new IvParameterSpec(iv);
-					Cipher ccm = Cipher.getInstance("AES/GCM/NoPadding", "SC");
-
-					SecretKey key = new SecretKeySpec(SurespotApplication.getCachingService().getSharedSecret(ourVersion, theirUsername, theirVersion), 0,
-							AES_KEY_LENGTH, "AES");
-					ccm.init(Cipher.ENCRYPT_MODE, key, ivParams);
+					byte[] secret = SurespotApplication.getCachingService().getSharedSecret(ourVersion, theirUsername, theirVersion);
+					if (secret == null) {
+						SurespotLog.i(TAG, "encryptTask, could not get shared secret");
+						return;
+					}
 
-					CipherOutputStream cos = new CipherOutputStream(out, ccm);
+					OutputStream cos = openMediaEncryptStream(theirUsername, secret, iv, out);
 					BufferedOutputStream bos = new BufferedOutputStream(cos);
 
 					int i = 0;
@@ -320,6 +339,61 @@ public class EncryptionController {
 		return new String(ChatUtils.base64EncodeNowrap(iv));
 	}
 
+	/**
+	 * Open a stream that encrypts media written to it on the writing thread, instead of piping it through an encrypt task
+	 * 
+	 * @return the iv and the stream, which must be closed to finish the encryption, or null if we couldn't get the shared secret
+	 */
+	public static Tuple<String, OutputStream> openEncryptStream(String ourVersion, String theirUsername, String theirVersion, OutputStream out) {
+		byte[] secret;
+		try {
+			secret = SurespotApplication.getCachingService().getSharedSecret(ourVersion, theirUsername, theirVersion);
+		}
+		catch (InvalidCacheLoadException icle) {
+			// will occur if couldn't load key
+			SurespotLog.v(TAG, icle, "openEncryptStream");
+			return null;
+		}
+
+		if (secret == null) {
+			SurespotLog.i(TAG, "openEncryptStream, could not get shared secret");
+			return null;
+		}
+
+		byte[] iv = new byte[IV_LENGTH];
+		mSecureRandom.nextBytes(iv);
+		try {
+			OutputStream cos = openMediaEncryptStream(theirUsername, secret, iv, out);
+			return new Tuple<String, OutputStream>(new String(ChatUtils.base64EncodeNowrap(iv)), cos);
+		}
+		catch (GeneralSecurityException e) {
+			SurespotLog.w(TAG, e, "openEncryptStream");
+			return null;
+		}
+	}
+
+	/**
+	 * 
+	 * @return true if we know the user's clients can all read media in the chunked format
+	 */
+	public static boolean supportsChunkedMedia(String theirUsername) {
+		// nothing tells us what clients a user has yet, so media goes out in the single stream format everyone can read
+		return false;
+	}
+
+	// the recipient must be able to read what we write, the chunked format is only for clients that know it
+	private static OutputStream openMediaEncryptStream(String theirUsername, byte[] secret, byte[] iv, OutputStream out)
+			throws GeneralSecurityException {
+		if (supportsChunkedMedia(theirUsername)) {
+			return new ChunkedEncryption.EncryptionOutputStream(out, secret, iv);
+		}
+
+		// its own cipher rather than the thread's as the stream stays open while the caller does other work
+		Cipher ccm = Cipher.getInstance("AES/GCM/NoPadding", "SC");
+		ccm.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(secret, 0, AES_KEY_LENGTH, "AES"), new IvParameterSpec(iv));
+		return new CipherOutputStream(out, ccm);
+	}
+
 	public static void runDecryptTask(final String ourVersion, final String username, final String theirVersion, final String ivs, final InputStream in,
 			final OutputStream out) {
 		Runnable runnable = new Runnable() {
@@ -328,17 +402,10 @@ public class EncryptionController {
 
 				byte[] buf = new byte[BUFFER_SIZE]; // input buffer
 				try {
-					final byte[] iv = ChatUtils.base64DecodeNowrap(ivs);
-					BufferedInputStream bis = new BufferedInputStream(in);
-
-					final IvParameterSpec ivParams = new IvParameterSpec(iv);
-					Cipher ccm = Cipher.getInstance("AES/GCM/NoPadding", "SC");
-
-					SecretKey key = new SecretKeySpec(SurespotApplication.getCachingService().getSharedSecret(ourVersion, username, theirVersion), 0,
-							AES_KEY_LENGTH, "AES");
-					ccm.init(Cipher.DECRYPT_MODE, key, ivParams);
-
-					CipherInputStream cis = new CipherInputStream(bis, ccm);
+					InputStream cis = openDecryptStream(ourVersion, username, theirVersion, ivs, in);
+					if (cis == null) {
+						return;
+					}
 					BufferedOutputStream bos = new BufferedOutputStream(out);
 
 					int i = 0;
@@ -348,17 +415,11 @@ public class EncryptionController {
 						bos.write(buf, 0, i);
 					}
 
-					bis.close();
 					cis.close();
 					bos.close();
 
 				}
-				catch (InvalidCacheLoadException icle) {
-					// will occur if couldn't load key
-					SurespotLog.v(TAG, icle, "decryptTask");
-				}
 				catch (IOException e) {
-					// will occur if couldn't load key
 					SurespotLog.v(TAG, e, "decryptTask");
 				}
 
@@ -381,48 +442,248 @@ public class EncryptionController {
 		SurespotApplication.THREAD_POOL_EXECUTOR.execute(runnable);
 	}
 
-	public static String symmetricDecrypt(final String ourVersion, final String username, final String theirVersion, final String ivs, final String cipherData) {
+	/**
+	 * Open a stream that decrypts image or voice data on whatever thread reads it, instead of piping it through a decrypt task
+	 * 
+	 * The original single stream format uses this thread's cipher, so only have one of those open per thread at a time.
+	 * 
+	 * @return the plain stream, closing it closes in, or null if we couldn't get the shared secret
+	 */
+	public static InputStream openDecryptStream(String ourVersion, String username, String theirVersion, String ivs, InputStream in)
+			throws IOException {
+		byte[] secret;
+		try {
+			secret = SurespotApplication.getCachingService().getSharedSecret(ourVersion, username, theirVersion);
+		}
+		catch (InvalidCacheLoadException icle) {
+			// will occur if couldn't load key
+			SurespotLog.v(TAG, icle, "openDecryptStream");
+			return null;
+		}
 
-		byte[] decrypted = symmetricDecryptBytes(ourVersion, username, theirVersion, ivs, cipherData);
-		if (decrypted == null) {
+		if (secret == null) {
+			SurespotLog.i(TAG, "openDecryptStream, could not get shared secret");
 			return null;
 		}
-		return new String(decrypted);
 
+		final byte[] iv = ChatUtils.base64DecodeNowrap(ivs);
+		BufferedInputStream bis = new BufferedInputStream(in);
+		InputStream cis = ChunkedEncryption.openDecryptStream(bis, secret, iv);
+		if (cis == null) {
+			// not chunked so it's the original single stream format
+			try {
+				final IvParameterSpec ivParams = new IvParameterSpec(iv);
+				Cipher ccm = CipherContext.get().getStreamCipher();
+
+				SecretKey key = new SecretKeySpec(secret, 0, AES_KEY_LENGTH, "AES");
+				ccm.init(Cipher.DECRYPT_MODE, key, ivParams);
+
+				cis = new CipherInputStream(bis, ccm);
+			}
+			catch (GeneralSecurityException e) {
+				throw new IOException(e.toString());
+			}
+		}
+		return cis;
+	}
+
+	public static String symmetricDecrypt(final String ourVersion, final String username, final String theirVersion, final String ivs, final String cipherData) {
+		try {
+			byte[] secret = SurespotApplication.getCachingService().getSharedSecret(ourVersion, username, theirVersion);
+			if (secret == null) {
+				return null;
+			}
+			return symmetricDecrypt(secret, ivs, cipherData);
+		}
+		catch (Exception e) {
+			SurespotLog.w(TAG, e, "symmetricDecrypt");
+		}
+		return null;
+	}
+
+	private static String symmetricDecrypt(final byte[] secret, final String ivs, final String cipherData) {
+		CipherContext context = CipherContext.get();
+		int len = symmetricDecryptInto(context, secret, ivs, cipherData);
+		if (len < 0) {
+			return null;
+		}
+		// decode straight out of the scratch buffer
+		return new String(context.getBuffer(len), 0, len);
 	}
 
 	public static byte[] symmetricDecryptBytes(final String ourVersion, final String username, final String theirVersion, final String ivs,
 			final String cipherData) {
-		GCMBlockCipher ccm = new GCMBlockCipher(new AESLightEngine());
-
-		byte[] cipherBytes = null;
-		byte[] iv = null;
-		ParametersWithIV ivParams = null;
 		try {
-
-			cipherBytes = ChatUtils.base64DecodeNowrap(cipherData);
-			iv = ChatUtils.base64DecodeNowrap(ivs);
 			byte[] secret = SurespotApplication.getCachingService().getSharedSecret(ourVersion, username, theirVersion);
 			if (secret == null) {
 				return null;
 			}
-			ivParams = new ParametersWithIV(new KeyParameter(secret, 0, AES_KEY_LENGTH), iv);
 
-			ccm.reset();
-			ccm.init(false, ivParams);
+			CipherContext context = CipherContext.get();
+			int len = symmetricDecryptInto(context, secret, ivs, cipherData);
+			if (len < 0) {
+				return null;
+			}
 
-			byte[] buf = new byte[ccm.getOutputSize(cipherBytes.length)];
+			byte[] buf = new byte[len];
+			System.arraycopy(context.getBuffer(len), 0, buf, 0, len);
+			return buf;
+		}
+		catch (Exception e) {
+			SurespotLog.w(TAG, e, "symmetricDecrypt");
+		}
+		return null;
+	}
+
+	/**
+	 * Decrypt into the context's scratch buffer
+	 * 
+	 * @return the plain text length or -1 on error
+	 */
+	private static int symmetricDecryptInto(CipherContext context, final byte[] secret, final String ivs, final String cipherData) {
+		try {
+			byte[] cipherBytes = ChatUtils.base64DecodeNowrap(cipherData);
+			byte[] iv = ChatUtils.base64DecodeNowrap(ivs);
+
+			GCMBlockCipher ccm = context.init(false, secret, AES_KEY_LENGTH, iv);
+			byte[] buf = context.getBuffer(ccm.getOutputSize(cipherBytes.length));
 
 			int len = ccm.processBytes(cipherBytes, 0, cipherBytes.length, buf, 0);
 
 			len += ccm.doFinal(buf, len);
-			return buf;
+			return len;
 		}
 		catch (Exception e) {
 			SurespotLog.w(TAG, e, "symmetricDecrypt");
 		}
-		return null;
+		return -1;
+	}
+
+	/**
+	 * Decrypt a batch of text messages in parallel. Messages are grouped by key so each shared secret is only looked up once.
+	 * 
+	 * @param messages
+	 * @param callback
+	 *            called on the ui thread with the plain text of each message keyed by iv, messages that could not be decrypted are left out
+	 */
+	public static void symmetricDecryptBatch(final List<SurespotMessage> messages, final IAsyncCallback<Map<String, String>> callback) {
+		// not an AsyncTask, the serial executor would queue catch up pages behind every other task in the app
+		TaskScheduler.execute(TaskScheduler.Lane.VISIBLE, new Runnable() {
 
+			@Override
+			public void run() {
+				Map<String, String> plainTexts;
+				try {
+					plainTexts = symmetricDecryptBatchSync(messages);
+				}
+				catch (RuntimeException e) {
+					// the callback still has to run so the caller can finish the page
+					SurespotLog.w(TAG, e, "symmetricDecryptBatch");
+					plainTexts = new HashMap<String, String>();
+				}
+
+				final Map<String, String> result = plainTexts;
+				mHandler.post(new Runnable() {
+
+					@Override
+					public void run() {
+						callback.handleResponse(result);
+					}
+				});
+			}
+		});
+	}
+
+	public static Map<String, String> symmetricDecryptBatchSync(List<SurespotMessage> messages) {
+		final Map<String, String> results = new ConcurrentHashMap<String, String>();
+
+		// group messages by the secret used to encrypt them
+		HashMap<String, ArrayList<SurespotMessage>> groups = new HashMap<String, ArrayList<SurespotMessage>>();
+		for (SurespotMessage message : messages) {
+			if (message.getIv() == null || message.getData() == null || !SurespotConstants.MimeTypes.TEXT.equals(message.getMimeType())) {
+				continue;
+			}
+
+			String groupKey = message.getOurVersion() + ":" + message.getOtherUser() + ":" + message.getTheirVersion();
+			ArrayList<SurespotMessage> group = groups.get(groupKey);
+			if (group == null) {
+				group = new ArrayList<SurespotMessage>();
+				groups.put(groupKey, group);
+			}
+			group.add(message);
+		}
+
+		// resolve each secret once then split the work into a chunk per core
+		final ArrayList<byte[]> secrets = new ArrayList<byte[]>();
+		final ArrayList<SurespotMessage> work = new ArrayList<SurespotMessage>();
+		for (ArrayList<SurespotMessage> group : groups.values()) {
+			SurespotMessage first = group.get(0);
+			byte[] secret = null;
+			try {
+				secret = SurespotApplication.getCachingService().getSharedSecret(first.getOurVersion(), first.getOtherUser(), first.getTheirVersion());
+			}
+			catch (Exception e) {
+				// the cache wraps whatever went wrong loading the secret in a runtime exception
+				SurespotLog.w(TAG, e, "symmetricDecryptBatch");
+			}
+			if (secret == null) {
+				SurespotLog.i(TAG, "symmetricDecryptBatch, could not get shared secret for %d messages from: %s", group.size(), first.getOtherUser());
+				continue;
+			}
+			for (SurespotMessage message : group) {
+				secrets.add(secret);
+				work.add(message);
+			}
+		}
+
+		int count = work.size();
+		if (count == 0) {
+			return results;
+		}
+
+		int chunks = Math.min(DECRYPT_THREADS, count);
+		int chunkSize = (count + chunks - 1) / chunks;
+		final CountDownLatch latch = new CountDownLatch(chunks - 1);
+		for (int chunk = 1; chunk < chunks; chunk++) {
+			final int start = chunk * chunkSize;
+			final int end = Math.min(start + chunkSize, count);
+			DECRYPT_EXECUTOR.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						decryptRange(work, secrets, start, end, results);
+					}
+					finally {
+						latch.countDown();
+					}
+				}
+			});
+		}
+
+		// do the first chunk ourselves
+		decryptRange(work, secrets, 0, Math.min(chunkSize, count), results);
+
+		try {
+			latch.await();
+		}
+		catch (InterruptedException e) {
+			SurespotLog.w(TAG, e, "symmetricDecryptBatch");
+			Thread.currentThread().interrupt();
+		}
+
+		SurespotLog.v(TAG, "symmetricDecryptBatch, decrypted %d messages in %d groups", results.size(), groups.size());
+		return results;
+	}
+
+	private static void decryptRange(List<SurespotMessage> work, List<byte[]> secrets, int start, int end, Map<String, String> results) {
+		for (int i = start; i < end; i++) {
+			SurespotMessage message = work.get(i);
+			String decrypted = symmetricDecrypt(secrets.get(i), message.getIv(), message.getData());
+			// ConcurrentHashMap doesn't take null values so just leave failures out
+			if (decrypted != null) {
+				results.put(message.getIv(), decrypted);
+			}
+		}
 	}
 
 	public static byte[] getIv() {
@@ -432,25 +693,30 @@ public class EncryptionController {
 	}
 
 	public static String symmetricEncrypt(final String ourVersion, final String username, final String theirVersion, final String plaintext, byte[] iv) {
-
-		GCMBlockCipher ccm = new GCMBlockCipher(new AESLightEngine());
-		// byte[] iv = new byte[IV_LENGTH];
-		// mSecureRandom.nextBytes(iv);
-		ParametersWithIV ivParams;
 		try {
-			ivParams = new ParametersWithIV(new KeyParameter(SurespotApplication.getCachingService().getSharedSecret(ourVersion, username, theirVersion), 0,
-					AES_KEY_LENGTH), iv);
+			CipherContext context = CipherContext.get();
+			int len = symmetricEncryptInto(context, ourVersion, username, theirVersion, plaintext.getBytes(), iv);
+			return new String(ChatUtils.base64EncodeNowrap(context.getBuffer(len), 0, len));
 
-			ccm.reset();
-			ccm.init(true, ivParams);
-
-			byte[] enc = plaintext.getBytes();
-			byte[] buf = new byte[ccm.getOutputSize(enc.length)];
+		}
+		catch (InvalidCacheLoadException icle) {
+			// will occur if couldn't load key
+			SurespotLog.v(TAG, icle, "symmetricEncrypt");
+		}
+		catch (Exception e) {
+			SurespotLog.w(TAG, e, "symmetricEncrypt");
+		}
+		return null;
+	}
 
-			int len = ccm.processBytes(enc, 0, enc.length, buf, 0);
+	public static byte[] symmetricEncrypt(final String ourVersion, final String username, final String theirVersion, final byte[] plainBytes, byte[] iv) {
+		try {
+			CipherContext context = CipherContext.get();
+			int len = symmetricEncryptInto(context, ourVersion, username, theirVersion, plainBytes, iv);
 
-			len += ccm.doFinal(buf, len);
-			return new String(ChatUtils.base64EncodeNowrap(buf));
+			byte[] buf = new byte[len];
+			System.arraycopy(context.getBuffer(len), 0, buf, 0, len);
+			return buf;
 
 		}
 		catch (InvalidCacheLoadException icle) {
@@ -463,34 +729,88 @@ public class EncryptionController {
 		return null;
 	}
 
-	public static byte[] symmetricEncrypt(final String ourVersion, final String username, final String theirVersion, final byte[] plainBytes, byte[] iv) {
+	// encrypt into the context's scratch buffer and return the cipher text length
+	private static int symmetricEncryptInto(CipherContext context, final String ourVersion, final String username, final String theirVersion,
+			final byte[] plainBytes, byte[] iv) throws InvalidCipherTextException {
+		byte[] secret = SurespotApplication.getCachingService().getSharedSecret(ourVersion, username, theirVersion);
 
-		GCMBlockCipher ccm = new GCMBlockCipher(new AESLightEngine());
-		// byte[] iv = new byte[IV_LENGTH];
-		// mSecureRandom.nextBytes(iv);
-		ParametersWithIV ivParams;
-		try {
-			ivParams = new ParametersWithIV(new KeyParameter(SurespotApplication.getCachingService().getSharedSecret(ourVersion, username, theirVersion), 0,
-					AES_KEY_LENGTH), iv);
+		GCMBlockCipher ccm = context.init(true, secret, AES_KEY_LENGTH, iv);
+		byte[] buf = context.getBuffer(ccm.getOutputSize(plainBytes.length));
 
-			ccm.reset();
-			ccm.init(true, ivParams);
+		int len = ccm.processBytes(plainBytes, 0, plainBytes.length, buf, 0);
 
-			byte[] enc = plainBytes;
-			byte[] buf = new byte[ccm.getOutputSize(enc.length)];
+		len += ccm.doFinal(buf, len);
+		return len;
+	}
 
-			int len = ccm.processBytes(enc, 0, enc.length, buf, 0);
+	/**
+	 * Derive a key for encrypting data at rest on this device from one of our private keys.
+	 * 
+	 * @param purpose
+	 *            different purposes get different keys
+	 */
+	public static byte[] deriveLocalKey(PrivateKey privateKey, String purpose) {
+		SHA256Digest digest = new SHA256Digest();
+		byte[] purposeBytes = purpose.getBytes();
+		byte[] keyBytes = privateKey.getEncoded();
+		digest.update(purposeBytes, 0, purposeBytes.length);
+		digest.update(keyBytes, 0, keyBytes.length);
+
+		byte[] key = new byte[digest.getDigestSize()];
+		digest.doFinal(key, 0);
+		return key;
+	}
 
-			len += ccm.doFinal(buf, len);
+	/**
+	 * Encrypt with a local key, the random iv is prepended to the returned cipher text
+	 */
+	public static byte[] symmetricEncryptLocal(byte[] key, byte[] plainBytes) {
+		try {
+			byte[] iv = getIv();
+			CipherContext context = CipherContext.get();
+			GCMBlockCipher ccm = context.init(true, key, AES_KEY_LENGTH, iv);
+
+			byte[] buf = new byte[IV_LENGTH + ccm.getOutputSize(plainBytes.length)];
+			System.arraycopy(iv, 0, buf, 0, IV_LENGTH);
+
+			int len = ccm.processBytes(plainBytes, 0, plainBytes.length, buf, IV_LENGTH);
+			ccm.doFinal(buf, IV_LENGTH + len);
 			return buf;
+		}
+		catch (Exception e) {
+			SurespotLog.w(TAG, e, "symmetricEncryptLocal");
+		}
+		return null;
+	}
+
+	/**
+	 * Decrypt data encrypted with symmetricEncryptLocal
+	 * 
+	 * @return the plain text or null if the data was tampered with or encrypted with a different key
+	 */
+	public static byte[] symmetricDecryptLocal(byte[] key, byte[] cipherData) {
+		if (cipherData == null || cipherData.length < IV_LENGTH) {
+			return null;
+		}
+
+		try {
+			byte[] iv = new byte[IV_LENGTH];
+			System.arraycopy(cipherData, 0, iv, 0, IV_LENGTH);
+
+			CipherContext context = CipherContext.get();
+			GCMBlockCipher ccm = context.init(false, key, AES_KEY_LENGTH, iv);
 
+			int cipherLength = cipherData.length - IV_LENGTH;
+			byte[] buf = new byte[ccm.getOutputSize(cipherLength)];
+			int len = ccm.processBytes(cipherData, IV_LENGTH, cipherLength, buf, 0);
+			ccm.doFinal(buf, len);
+			return buf;
 		}
-		catch (InvalidCacheLoadException icle) {
-			// will occur if couldn't load key
-			SurespotLog.v(TAG, icle, "symmetricEncrypt");
+		catch (InvalidCipherTextException e) {
+			SurespotLog.i(TAG, e, "symmetricDecryptLocal");
 		}
 		catch (Exception e) {
-			SurespotLog.w(TAG, e, "symmetricEncrypt");
+			SurespotLog.w(TAG, e, "symmetricDecryptLocal");
 		}
 		return null;
 	}
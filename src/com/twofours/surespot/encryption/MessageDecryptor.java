@@ -17,16 +17,20 @@
 package com.twofours.surespot.encryption;
 
 import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
 
 import android.os.Handler;
 import android.view.View;
 import android.widget.TextView;
 
 import com.twofours.surespot.R;
-import com.twofours.surespot.SurespotApplication;
+import com.twofours.surespot.TaskScheduler;
 import com.twofours.surespot.activities.MainActivity;
 import com.twofours.surespot.chat.ChatAdapter;
 import com.twofours.surespot.chat.EmojiParser;
+import com.twofours.surespot.chat.PlainTextCache;
 import com.twofours.surespot.chat.SurespotMessage;
 import com.twofours.surespot.common.SurespotLog;
 import com.twofours.surespot.ui.UIUtils;
@@ -44,6 +48,8 @@ public class MessageDecryptor {
 	private static final String TAG = "TextDecryptor";
 	private static Handler mHandler = new Handler(MainActivity.getContext().getMainLooper());
 	private ChatAdapter mChatAdapter;
+	// decrypts queued or running by iv, so a bound row can pick up a prefetch
+	private final HashMap<String, DecryptionTask> mPending = new HashMap<String, DecryptionTask>();
 
 	public MessageDecryptor(ChatAdapter chatAdapter) {
 		mChatAdapter = chatAdapter;
@@ -59,14 +65,112 @@ public class MessageDecryptor {
 	 *            The ImageView to bind the downloaded image to.
 	 */
 	public void decrypt(TextView textView, SurespotMessage message) {
+		if (PlainTextCache.fill(message)) {
+			cancel(textView);
+			message.setLoading(false);
+			message.setLoaded(true);
+			textView.setText(message.getPlainData());
+			UIUtils.updateDateAndSize(message, (View) textView.getParent());
+			return;
+		}
+
+		DecryptionTask previousTask = getDecryptionTask(textView);
+		if (previousTask != null) {
+			if (previousTask.mMessage.equals(message) && !previousTask.mToken.isCancelled()) {
+				// already on it
+				return;
+			}
+			// the view was recycled or the window dropped the decrypt, drop the old one if it hasn't started and queue it again
+			previousTask.cancel();
+		}
 
-		DecryptionTask task = new DecryptionTask(textView, message);
+		DecryptionTask task = getPendingTask(message);
+		if (task != null) {
+			// already being prefetched, hand it the view and bump it up the queue
+			task.mTextViewReference = new WeakReference<TextView>(textView);
+			textView.setTag(new DecryptionTaskWrapper(task));
+			task.mToken.moveTo(TaskScheduler.Lane.VISIBLE);
+			return;
+		}
+
+		task = new DecryptionTask(textView, message);
 		DecryptionTaskWrapper decryptionTaskWrapper = new DecryptionTaskWrapper(task);
 		textView.setTag(decryptionTaskWrapper);
+		schedule(task, TaskScheduler.Lane.VISIBLE);
+	}
+
+	/**
+	 * Decrypt a message that isn't on screen yet so it's ready when it's scrolled to
+	 */
+	public void prefetch(SurespotMessage message) {
+		if (PlainTextCache.fill(message) || getPendingTask(message) != null) {
+			return;
+		}
+
+		schedule(new DecryptionTask(null, message), TaskScheduler.Lane.PREFETCH);
+	}
+
+	/**
+	 * Cancel any pending decrypt for this view, call when the view is rebound to something that doesn't need decrypting
+	 */
+	public void cancel(TextView textView) {
+		DecryptionTask task = getDecryptionTask(textView);
+		if (task != null) {
+			task.cancel();
+			textView.setTag(null);
+		}
+	}
+
+	/**
+	 * Cancel the pending decrypt of a message if it hasn't started
+	 */
+	public void cancel(SurespotMessage message) {
+		DecryptionTask task = getPendingTask(message);
+		if (task != null) {
+			task.cancel();
+		}
+	}
+
+	/**
+	 * 
+	 * @return messages with a decrypt queued or running
+	 */
+	public List<SurespotMessage> getPendingMessages() {
+		synchronized (mPending) {
+			ArrayList<SurespotMessage> messages = new ArrayList<SurespotMessage>(mPending.size());
+			for (DecryptionTask task : mPending.values()) {
+				messages.add(task.mMessage);
+			}
+			return messages;
+		}
+	}
+
+	private void schedule(DecryptionTask task, TaskScheduler.Lane lane) {
+		SurespotMessage message = task.mMessage;
 		message.setLoading(true);
 		message.setLoaded(false);
-		SurespotApplication.THREAD_POOL_EXECUTOR.execute(task);
+		synchronized (mPending) {
+			mPending.put(message.getIv(), task);
+			task.mToken = TaskScheduler.execute(lane, task);
+		}
+	}
 
+	private DecryptionTask getPendingTask(SurespotMessage message) {
+		synchronized (mPending) {
+			DecryptionTask task = mPending.get(message.getIv());
+			if (task == null || task.mToken.isCancelled()) {
+				return null;
+			}
+			return task;
+		}
+	}
+
+	private void removePendingTask(DecryptionTask task) {
+		synchronized (mPending) {
+			if (mPending.get(task.mMessage.getIv()) == task) {
+				mPending.remove(task.mMessage.getIv());
+			}
+		}
 	}
 
 	/**
@@ -88,26 +192,45 @@ public class MessageDecryptor {
 	/**
 	 * The actual AsyncTask that will asynchronously download the image.
 	 */
-	class DecryptionTask implements Runnable {
+	class DecryptionTask implements Runnable, TaskScheduler.Droppable {
 		private SurespotMessage mMessage;
+		private TaskScheduler.Token mToken;
 
-		private final WeakReference<TextView> textViewReference;
+		// prefetches get their view when they're bound
+		private volatile WeakReference<TextView> mTextViewReference;
 
 		public DecryptionTask(TextView textView, SurespotMessage message) {
-			textViewReference = new WeakReference<TextView>(textView);
+			mTextViewReference = new WeakReference<TextView>(textView);
 			mMessage = message;
 		}
 
+		public void cancel() {
+			mToken.cancel();
+		}
+
+		@Override
+		public void onDropped() {
+			// never ran, it'll be decrypted again next time it's bound
+			removePendingTask(this);
+			mMessage.setLoading(false);
+			mChatAdapter.checkLoaded();
+		}
+
 		@Override
 		public void run() {
-			final CharSequence plainText = EncryptionController.symmetricDecrypt(mMessage.getOurVersion(), mMessage.getOtherUser(),
-					mMessage.getTheirVersion(), mMessage.getIv(), mMessage.getData());
+			// another chat or an earlier load may have decrypted it already
+			CharSequence plainData = PlainTextCache.get(mMessage.getIv());
+			final String plainText = plainData != null ? null : EncryptionController.symmetricDecrypt(mMessage.getOurVersion(),
+					mMessage.getOtherUser(), mMessage.getTheirVersion(), mMessage.getIv(), mMessage.getData());
 
-			CharSequence plainData = null;
-			if (plainText != null) {
+			if (plainData != null) {
+				mMessage.setPlainData(plainData);
+			}
+			else if (plainText != null) {
 				// set plaintext in messageso we don't have to decrypt again
-				plainData = EmojiParser.getInstance().addEmojiSpans(plainText.toString());
+				plainData = EmojiParser.getInstance().addEmojiSpans(plainText);
 				mMessage.setPlainData(plainData);
+				PlainTextCache.put(mMessage.getIv(), plainData);
 			}
 			else {
 				//error decrypting
@@ -116,31 +239,26 @@ public class MessageDecryptor {
 				mMessage.setPlainData(plainData);				
 			}
 
+			removePendingTask(this);
 			mMessage.setLoading(false);
 			mMessage.setLoaded(true);
 			mChatAdapter.checkLoaded();
-				
-			
 
-			if (textViewReference != null) {
+			// check the view on the ui thread, a prefetch may have been handed one since we started
+			final CharSequence finalPlainData = plainData;
+			mHandler.post(new Runnable() {
 
-				final TextView textView = textViewReference.get();
+				@Override
+				public void run() {
+					TextView textView = mTextViewReference.get();
 
-				DecryptionTask decryptionTask = getDecryptionTask(textView);
-				// Change text only if this process is still associated with it
-				if ((this == decryptionTask)) {
-
-					final CharSequence finalPlainData = plainData;
-					mHandler.post(new Runnable() {
-
-						@Override
-						public void run() {
-							textView.setText(finalPlainData);
-							UIUtils.updateDateAndSize(mMessage, (View) textView.getParent());
-						}
-					});
+					// Change text only if this process is still associated with it
+					if (textView != null && getDecryptionTask(textView) == DecryptionTask.this) {
+						textView.setText(finalPlainData);
+						UIUtils.updateDateAndSize(mMessage, (View) textView.getParent());
+					}
 				}
-			}
+			});
 		}
 	}
 
@@ -1,5 +1,7 @@
 package com.twofours.surespot.friends;
 
+import java.util.concurrent.atomic.AtomicInteger;
+
 import org.json.JSONException;
 import org.json.JSONObject;
 
@@ -29,6 +31,13 @@ public class Friend implements Comparable<Friend> {
 	private int mSelectedItem = -1;
 	private int mSelectedTop = 0;
 
+	// bumped whenever any friend changes so the friend list knows when it needs saving
+	private static final AtomicInteger sModCount = new AtomicInteger();
+
+	public static int getModCount() {
+		return sModCount.get();
+	}
+
 	public Friend(String name) {
 		mName = name;
 
@@ -40,6 +49,7 @@ public class Friend implements Comparable<Friend> {
 	}
 
 	public void setName(String name) {
+		sModCount.incrementAndGet();
 		this.mName = name;
 
 	}
@@ -49,6 +59,7 @@ public class Friend implements Comparable<Friend> {
 	}
 
 	public void setLastViewedMessageId(int lastViewedMessageId) {
+		sModCount.incrementAndGet();
 		if (lastViewedMessageId > 0) {
 			mLastViewedMessageId = lastViewedMessageId;
 		}
@@ -63,6 +74,7 @@ public class Friend implements Comparable<Friend> {
 	}
 
 	public void setAvailableMessageId(int availableMessageId) {
+		sModCount.incrementAndGet();
 		if (availableMessageId > 0 && isFriend() && !isDeleted()) {
 			mAvailableMessageId = availableMessageId;
 
@@ -77,6 +89,7 @@ public class Friend implements Comparable<Friend> {
 	}
 
 	public void setAvailableMessageControlId(int availableMessageControlId) {
+		sModCount.incrementAndGet();
 		if (availableMessageControlId > 0) {
 			mAvailableMessageControlId = availableMessageControlId;
 		}
@@ -89,11 +102,13 @@ public class Friend implements Comparable<Friend> {
 	}
 
 	public void setLastReceivedMessageControlId(int lastReceivedMessageControlId) {
+		sModCount.incrementAndGet();
 		mLastReceivedMessageControlId = lastReceivedMessageControlId;
 		SurespotLog.v(TAG, "setLastReceivedMessageControlId, friend: %s", this);
 	}
 
 	public void setChatActive(boolean set) {
+		sModCount.incrementAndGet();
 		if (set) {
 			mFlags |= CHAT_ACTIVE;
 			setNewFriend(false);
@@ -115,6 +130,7 @@ public class Friend implements Comparable<Friend> {
 	// }
 
 	public void setInviter(boolean set) {
+		sModCount.incrementAndGet();
 		if (set) {
 			// if they're not a new friend
 			if (!isNewFriend()) {
@@ -133,6 +149,7 @@ public class Friend implements Comparable<Friend> {
 	}
 
 	public void setInvited(boolean set) {
+		sModCount.incrementAndGet();
 		if (set) {
 			// if they're not a new friend
 			if (!isNewFriend()) {
@@ -150,6 +167,7 @@ public class Friend implements Comparable<Friend> {
 	}
 
 	public void setDeleted() {
+		sModCount.incrementAndGet();
 		// preserve active flag #257
 		int active = mFlags & CHAT_ACTIVE;
 		mFlags = DELETED | active;
@@ -161,6 +179,7 @@ public class Friend implements Comparable<Friend> {
 	}
 
 	public void setNewFriend(boolean set) {
+		sModCount.incrementAndGet();
 		if (set) {
 			mFlags |= NEW_FRIEND;
 			mFlags &= ~INVITED;
@@ -196,6 +215,7 @@ public class Friend implements Comparable<Friend> {
 	}
 
 	public void setFlags(int flags) {
+		sModCount.incrementAndGet();
 		mFlags = flags;
 		SurespotLog.v(TAG, "setInviter, friend: %s", this);
 	}
@@ -205,6 +225,7 @@ public class Friend implements Comparable<Friend> {
 	}
 
 	public void setImageUrl(String imageUrl) {
+		sModCount.incrementAndGet();
 		mImageUrl = imageUrl;
 		// SurespotLog.v(TAG, "setImageUrl, friend: %s", this);
 	}
@@ -214,6 +235,7 @@ public class Friend implements Comparable<Friend> {
 	}
 
 	public void setImageVersion(String imageVersion) {
+		sModCount.incrementAndGet();
 		mImageVersion = imageVersion;
 		// SurespotLog.v(TAG, "setImageVersion, friend: %s", this);
 	}
@@ -223,6 +245,7 @@ public class Friend implements Comparable<Friend> {
 	}
 
 	public void setImageIv(String imageIv) {
+		sModCount.incrementAndGet();
 		mImageIv = imageIv;
 		// SurespotLog.v(TAG, "setImageIv, friend: %s", this);
 	}
@@ -391,6 +414,7 @@ public class Friend implements Comparable<Friend> {
 	}
 
 	public void setSelectedItem(int i) {
+		sModCount.incrementAndGet();
 		// if (i == 0) {
 		// SurespotLog.v(TAG, "SELECTED ITEM SET TO 0 FOR USER: %s", getName());
 		// Utils.makeLongToast(MainActivity.getContext(), "SELECTED ITEM SET TO 0");
@@ -402,6 +426,7 @@ public class Friend implements Comparable<Friend> {
 	}
 
 	public void setSelectedTop(int i) {
+		sModCount.incrementAndGet();
 		mSelectedTop = i;
 
 	}
@@ -39,6 +39,8 @@ public class FriendAdapter extends BaseAdapter {
 	private OnLongClickListener mLongClickListener;
 	private boolean mLoading;
 	private boolean mLoaded;
+	private volatile boolean mDirty;
+	private volatile int mSavedModCount = -1;
 
 	public boolean isLoaded() {
 		return mLoaded;
@@ -344,6 +346,29 @@ public class FriendAdapter extends BaseAdapter {
 		}
 	}
 
+	@Override
+	public void notifyDataSetChanged() {
+		mDirty = true;
+		super.notifyDataSetChanged();
+	}
+
+	/**
+	 *
+	 * @return true if the friends changed since they were last saved
+	 */
+	public boolean isDirty() {
+		return mDirty || Friend.getModCount() != mSavedModCount;
+	}
+
+	/**
+	 * Clear the dirty state and copy the friends for saving
+	 */
+	public synchronized ArrayList<Friend> getFriendsForSave() {
+		mDirty = false;
+		mSavedModCount = Friend.getModCount();
+		return new ArrayList<Friend>(mFriends);
+	}
+
 	public synchronized Collection<String> getFriendNames() {
 		if (mFriends == null)
 			return null;
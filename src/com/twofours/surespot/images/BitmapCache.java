@@ -11,27 +11,17 @@ public class BitmapCache {
 	private BitmapLruCache mMemoryCache;
 	private final static String TAG = "BitMapCache";
 
-	public BitmapCache() {
-
-		// Get max available VM memory, exceeding this amount will throw an
-		// OutOfMemory exception. Stored in kilobytes as LruCache takes an
-		// int in its constructor.
-		// final int maxMemory = (int) (Runtime.getRuntime().maxMemory() / 1024);
-
-		// Use 1/8th of the available memory for this memory cache.
-		// final int cacheSize = maxMemory / 2;
-
-		mMemoryCache = new BitmapLruCache(30);
-		// {
-		//
-		// @Override
-		// protected int sizeOf(String key, Bitmap bitmap) {
-		// // The cache size will be measured in kilobytes rather than
-		// // number of items.
-		// return (bitmap.getRowBytes() * bitmap.getHeight()) / 1024;
-		// }
-		// };
-
+	/**
+	 * 
+	 * @param divisor
+	 *            the cache gets this fraction of the heap the vm will let us have, 8 gives it an eighth
+	 */
+	public BitmapCache(int divisor) {
+		// sized from the runtime rather than the activity manager so the downloaders' static caches can be built before there's a context
+		long maxMemory = Runtime.getRuntime().maxMemory();
+		int maxBytes = (int) (maxMemory / divisor);
+		SurespotLog.v(TAG, "max memory: %d bytes, cache size: %d bytes", maxMemory, maxBytes);
+		mMemoryCache = new BitmapLruCache(maxBytes);
 	}
 
 	public void addBitmapToMemoryCache(String key, Bitmap bitmap) {
@@ -59,8 +49,26 @@ public class BitmapCache {
 
 	}
 
-	public void trimToSize(int size) {
-		mMemoryCache.trimToSize(size);
-		
+	/**
+	 * 
+	 * @return true if adding the bitmap wouldn't evict anything
+	 */
+	public boolean hasRoomFor(Bitmap bitmap) {
+		return mMemoryCache.size() + BitmapPool.getBytes(bitmap) <= mMemoryCache.maxSize();
+	}
+
+	/**
+	 * Evict until we're holding no more than the fraction of the budget
+	 */
+	public void trimToFraction(float fraction) {
+		mMemoryCache.trimToSize((int) (mMemoryCache.maxSize() * fraction));
+	}
+
+	public String getStats() {
+		int hits = mMemoryCache.hitCount();
+		int misses = mMemoryCache.missCount();
+		int hitRate = hits + misses == 0 ? 0 : hits * 100 / (hits + misses);
+		return String.format("%d bitmaps, %d of %d bytes, %d hits, %d misses, %d%% hit rate, %d evicted", mMemoryCache.snapshot().size(),
+				mMemoryCache.size(), mMemoryCache.maxSize(), hits, misses, hitRate, mMemoryCache.evictionCount());
 	}
 }
@@ -14,14 +14,24 @@ public class BitmapLruCache extends LruCache<String, Bitmap> {
 	private ArrayList<Bitmap> mEvictionExceptions;
 
 	// specialized to hold bitmaps so we can call recycle to purge memory on GB devices
-	public BitmapLruCache(int maxSize) {
-		super(maxSize);
+	public BitmapLruCache(int maxBytes) {
+		super(maxBytes);
+	}
+
+	@Override
+	protected int sizeOf(String key, Bitmap bitmap) {
+		return (int) BitmapPool.getBytes(bitmap);
 	}
 
 	protected void entryRemoved(boolean evicted, String key, Bitmap oldValue, Bitmap newValue) {
 
 		SurespotLog.v(TAG, "entryRemoved, %s", key);
-		if (evicted && (mEvictionExceptions == null || !mEvictionExceptions.contains(oldValue)) && Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB) {
+		if (!evicted || (mEvictionExceptions != null && mEvictionExceptions.contains(oldValue))) {
+			return;
+		}
+
+		// not pooled, an evicted bitmap can still be on its way to a view and decoding another image into it would show the wrong picture
+		if (Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB) {
 			SurespotLog.v(TAG, "evicted, recycling bitmap");
 			oldValue.recycle();
 		}
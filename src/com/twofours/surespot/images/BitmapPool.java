@@ -0,0 +1,164 @@
+package com.twofours.surespot.images;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+
+import android.annotation.SuppressLint;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Build;
+
+import com.twofours.surespot.common.SurespotLog;
+
+/**
+ * Bitmaps we're done with, kept so the next decode of the same size can reuse the memory instead of allocating a new bitmap.
+ *
+ * Before kitkat a bitmap can only be decoded into with inBitmap if it's exactly the decoded size and the decode isn't sampled, so the pool is
+ * bucketed by width, height and config. Only bitmaps that were never handed out, like the intermediate steps of scaling an image, may be offered.
+ * Anything that's been in a cache or a view could still be drawn, and decoding another image into it would show the wrong picture. Below
+ * honeycomb there's no inBitmap and nothing is pooled.
+ */
+public class BitmapPool {
+	private static final String TAG = "BitmapPool";
+	private static final long MAX_BYTES = Runtime.getRuntime().maxMemory() / 16;
+
+	// bucket key to bitmaps of that size, most recently pooled last
+	private static final HashMap<String, LinkedList<Bitmap>> sBuckets = new HashMap<String, LinkedList<Bitmap>>();
+	// oldest first so we know what to drop when over budget
+	private static final LinkedList<Bitmap> sAge = new LinkedList<Bitmap>();
+	private static long sBytes;
+
+	private static int sDecodes;
+	private static int sReused;
+	private static int sPooled;
+	private static int sDropped;
+
+	public static boolean isSupported() {
+		return Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB;
+	}
+
+	/**
+	 * Give a bitmap nobody has a reference to, or ever will, to the pool
+	 *
+	 * @return false if it wasn't pooled
+	 */
+	public static synchronized boolean offer(Bitmap bitmap) {
+		if (!isSupported() || bitmap == null || bitmap.isRecycled() || !bitmap.isMutable()) {
+			return false;
+		}
+
+		long bytes = getBytes(bitmap);
+		if (bytes > MAX_BYTES) {
+			return false;
+		}
+
+		String key = getKey(bitmap.getWidth(), bitmap.getHeight(), bitmap.getConfig());
+		LinkedList<Bitmap> bucket = sBuckets.get(key);
+		if (bucket == null) {
+			bucket = new LinkedList<Bitmap>();
+			sBuckets.put(key, bucket);
+		}
+		else if (bucket.contains(bitmap)) {
+			return true;
+		}
+
+		bucket.add(bitmap);
+		sAge.add(bitmap);
+		sBytes += bytes;
+		sPooled++;
+
+		while (sBytes > MAX_BYTES && !sAge.isEmpty()) {
+			Bitmap eldest = sAge.removeFirst();
+			sBuckets.get(getKey(eldest.getWidth(), eldest.getHeight(), eldest.getConfig())).remove(eldest);
+			sBytes -= getBytes(eldest);
+			sDropped++;
+		}
+		return true;
+	}
+
+	/**
+	 * Set up the options so the decode lands in a pooled bitmap if we have one, call after decoding the bounds with the sample size set
+	 */
+	@SuppressLint("NewApi")
+	public static void prepare(BitmapFactory.Options options) {
+		synchronized (BitmapPool.class) {
+			sDecodes++;
+		}
+
+		if (!isSupported()) {
+			return;
+		}
+
+		// so the result can go back in the pool later
+		options.inMutable = true;
+		options.inBitmap = null;
+		if (options.inSampleSize > 1 || options.outWidth <= 0 || options.outHeight <= 0) {
+			return;
+		}
+
+		Bitmap.Config config = options.inPreferredConfig == null ? Bitmap.Config.ARGB_8888 : options.inPreferredConfig;
+		options.inBitmap = take(options.outWidth, options.outHeight, config);
+		if (options.inBitmap != null) {
+			SurespotLog.v(TAG, "prepare, reusing %dx%d bitmap", options.outWidth, options.outHeight);
+		}
+	}
+
+	/**
+	 * The decoder wouldn't take the bitmap prepare handed it, forget it and decode without
+	 */
+	@SuppressLint("NewApi")
+	public static void reject(BitmapFactory.Options options) {
+		if (options.inBitmap != null) {
+			synchronized (BitmapPool.class) {
+				sReused--;
+			}
+			options.inBitmap = null;
+		}
+	}
+
+	public static synchronized void clear() {
+		sBuckets.clear();
+		sAge.clear();
+		sBytes = 0;
+	}
+
+	public static synchronized String getStats() {
+		int reuseRate = sDecodes == 0 ? 0 : sReused * 100 / sDecodes;
+		return String.format("%d bitmaps, %d of %d bytes, %d decodes, %d reused, %d%% reuse rate, %d pooled, %d dropped", sAge.size(), sBytes,
+				MAX_BYTES, sDecodes, sReused, reuseRate, sPooled, sDropped);
+	}
+
+	private static synchronized Bitmap take(int width, int height, Bitmap.Config config) {
+		LinkedList<Bitmap> bucket = sBuckets.get(getKey(width, height, config));
+		if (bucket == null) {
+			return null;
+		}
+
+		Iterator<Bitmap> iterator = bucket.descendingIterator();
+		while (iterator.hasNext()) {
+			Bitmap bitmap = iterator.next();
+			if (bitmap.isRecycled()) {
+				iterator.remove();
+				sAge.remove(bitmap);
+				sBytes -= getBytes(bitmap);
+			}
+			else {
+				iterator.remove();
+				sAge.remove(bitmap);
+				sBytes -= getBytes(bitmap);
+				sReused++;
+				return bitmap;
+			}
+		}
+		return null;
+	}
+
+	static long getBytes(Bitmap bitmap) {
+		return (long) bitmap.getRowBytes() * bitmap.getHeight();
+	}
+
+	private static String getKey(int width, int height, Bitmap.Config config) {
+		return width + "x" + height + ":" + config;
+	}
+}
@@ -16,26 +16,26 @@
 
 package com.twofours.surespot.images;
 
-import java.io.BufferedInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InterruptedIOException;
-import java.io.PipedInputStream;
-import java.io.PipedOutputStream;
 import java.lang.ref.WeakReference;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
 
 import android.content.Context;
 import android.graphics.Bitmap;
 import android.graphics.drawable.ColorDrawable;
 import android.graphics.drawable.Drawable;
 import android.os.Handler;
+import android.os.Looper;
 import android.text.TextUtils;
 import android.view.animation.Animation;
 import android.view.animation.Animation.AnimationListener;
 import android.view.animation.AnimationUtils;
 import android.widget.ImageView;
 
-import com.twofours.surespot.SurespotApplication;
+import com.twofours.surespot.TaskScheduler;
 import com.twofours.surespot.activities.MainActivity;
 import com.twofours.surespot.chat.ChatUtils;
 import com.twofours.surespot.common.SurespotLog;
@@ -55,8 +55,19 @@ import com.twofours.surespot.identity.IdentityController;
  */
 public class FriendImageDownloader {
 	private static final String TAG = "FriendImageDownloader";
-	private static BitmapCache mBitmapCache = new BitmapCache();
-	private static Handler mHandler = new Handler(MainActivity.getContext().getMainLooper());
+	// avatars are small, a thirty second of the memory class holds plenty
+	private static BitmapCache mBitmapCache = new BitmapCache(32);
+	private static Handler mHandler = new Handler(Looper.getMainLooper());
+	private static final String AVATAR_DIRNAME = "avatars";
+	private static final long AVATAR_BUDGET = 2 * 1024 * 1024;
+	private static ThumbnailCache mAvatarCache;
+	// avatar key to the load in progress
+	private static final HashMap<String, Load> mLoads = new HashMap<String, Load>();
+
+	private static class Load {
+		final CountDownLatch mDone = new CountDownLatch(1);
+		volatile Bitmap mBitmap;
+	}
 
 	/**
 	 * Download the specified image from the Internet and binds it to the provided ImageView. The binding is immediate if the image is found in the cache and
@@ -99,7 +110,7 @@ public class FriendImageDownloader {
 			BitmapDownloaderTask task = new BitmapDownloaderTask(imageView, friend);
 			DownloadedDrawable downloadedDrawable = new DownloadedDrawable(task);
 			imageView.setImageDrawable(downloadedDrawable);
-			SurespotApplication.THREAD_POOL_EXECUTOR.execute(task);
+			task.mToken = TaskScheduler.execute(TaskScheduler.Lane.VISIBLE, task);
 		}
 	}
 
@@ -144,7 +155,8 @@ public class FriendImageDownloader {
 	 */
 	public static class BitmapDownloaderTask implements Runnable {
 		private Friend mFriend;
-		private boolean mCancelled;
+		private volatile boolean mCancelled;
+		private volatile TaskScheduler.Token mToken;
 
 		public Friend getFriend() {
 			return mFriend;
@@ -159,75 +171,22 @@ public class FriendImageDownloader {
 
 		public void cancel() {
 			mCancelled = true;
+			TaskScheduler.Token token = mToken;
+			if (token != null) {
+				token.cancel();
+			}
 		}
 
 		@Override
 		public void run() {
-			Bitmap bitmap = null;
-			InputStream imageStream = null;
-
-			imageStream = MainActivity.getNetworkController().getFileStream(MainActivity.getContext(), mFriend.getImageUrl());
-
 			if (mCancelled) {
-				try {
-					if (imageStream != null) {
-						imageStream.close();
-					}
-				}
-				catch (IOException e) {
-					SurespotLog.w(TAG, e, "FriendImage DownloaderTask ioe");
-				}
 				return;
 			}
 
-			if (!mCancelled && imageStream != null) {
-				PipedOutputStream out = new PipedOutputStream();
-				PipedInputStream inputStream = null;
-				try {
-					inputStream = new PipedInputStream(out);
-
-					EncryptionController.runDecryptTask(mFriend.getImageVersion(), IdentityController.getLoggedInUser(), mFriend.getImageVersion(),
-							mFriend.getImageIv(), new BufferedInputStream(imageStream), out);
-
-					if (mCancelled) {
-						return;
-					}
-
-					byte[] bytes = Utils.inputStreamToBytes(inputStream);
-					if (mCancelled) {
-						return;
-					}
-
-					bitmap = ChatUtils.getSampledImage(bytes);
-				}
-				catch (InterruptedIOException ioe) {
-
-					SurespotLog.w(TAG, ioe, "FriendImage DownloaderTask ioe");
-
-				}
-				catch (IOException e) {
-					SurespotLog.w(TAG, e, "FriendImage DownloaderTask e");
-				}
-				finally {
-
-					try {
-						if (imageStream != null) {
-							imageStream.close();
-						}
-					}
-					catch (IOException e) {
-						SurespotLog.w(TAG, e, "FriendImage DownloaderTask e");
-					}
-
-					try {
-						if (inputStream != null) {
-							inputStream.close();
-						}
-					}
-					catch (IOException e) {
-						SurespotLog.w(TAG, e, "FriendImage DownloaderTask e");
-					}
-				}
+			// from disk if we've had it before, otherwise downloaded and saved
+			Bitmap bitmap = loadBitmap(mFriend);
+			if (mCancelled) {
+				return;
 			}
 
 			final Bitmap finalBitmap = bitmap;
@@ -280,6 +239,215 @@ public class FriendImageDownloader {
 		}
 	}
 
+	/**
+	 * Load the avatars in the background in list order so the rows can be painted from memory or disk instead of waiting on the network. What
+	 * doesn't fit in the memory cache without evicting is still saved to disk.
+	 */
+	public static void prefetch(List<Friend> friends) {
+		int scheduled = 0;
+		for (final Friend friend : friends) {
+			final String imageUrl = friend.getImageUrl();
+			if (TextUtils.isEmpty(imageUrl) || getBitmapFromCache(imageUrl) != null) {
+				continue;
+			}
+
+			TaskScheduler.execute(TaskScheduler.Lane.PREFETCH, new Runnable() {
+
+				@Override
+				public void run() {
+					Bitmap bitmap = loadBitmap(friend);
+					if (bitmap != null && getBitmapFromCache(imageUrl) == null && mBitmapCache.hasRoomFor(bitmap)) {
+						addBitmapToCache(imageUrl, bitmap);
+					}
+				}
+			});
+			scheduled++;
+		}
+		SurespotLog.v(TAG, "prefetch, scheduled %d of %d avatars", scheduled, friends.size());
+	}
+
+	/**
+	 * Delete the friend's current avatar from disk, in the background, call before they get a new one
+	 */
+	public static void removeAvatar(Friend friend) {
+		if (TextUtils.isEmpty(friend.getImageUrl())) {
+			return;
+		}
+
+		final String key = getAvatarKey(friend);
+		final ThumbnailCache avatars;
+		synchronized (FriendImageDownloader.class) {
+			avatars = mAvatarCache;
+		}
+		if (avatars != null) {
+			TaskScheduler.execute(TaskScheduler.Lane.BACKGROUND, new Runnable() {
+
+				@Override
+				public void run() {
+					avatars.remove(key);
+				}
+			});
+		}
+	}
+
+	// memory, then disk, then the network, once per avatar however many rows and prefetches ask at the same time
+	private static Bitmap loadBitmap(Friend friend) {
+		Bitmap bitmap = getBitmapFromCache(friend.getImageUrl());
+		if (bitmap != null) {
+			return bitmap;
+		}
+
+		String key = getAvatarKey(friend);
+		Load load;
+		boolean mine = false;
+		synchronized (mLoads) {
+			load = mLoads.get(key);
+			if (load == null) {
+				load = new Load();
+				mLoads.put(key, load);
+				mine = true;
+			}
+		}
+
+		ThumbnailCache avatars = getAvatarCache();
+		if (!mine) {
+			try {
+				load.mDone.await();
+			}
+			catch (InterruptedException e) {
+				SurespotLog.w(TAG, e, "loadBitmap");
+				return null;
+			}
+
+			if (load.mBitmap != null) {
+				return load.mBitmap;
+			}
+
+			// whoever loaded it failed, it may have made it into memory or onto disk some other way since
+			bitmap = getBitmapFromCache(friend.getImageUrl());
+			if (bitmap == null && avatars != null) {
+				bitmap = avatars.get(key);
+			}
+			return bitmap;
+		}
+
+		try {
+			if (avatars != null) {
+				bitmap = avatars.get(key);
+			}
+
+			if (bitmap == null) {
+				bitmap = download(friend);
+				if (bitmap != null && avatars != null) {
+					saveAvatar(avatars, key, bitmap);
+				}
+			}
+			load.mBitmap = bitmap;
+			return bitmap;
+		}
+		finally {
+			synchronized (mLoads) {
+				mLoads.remove(key);
+			}
+			load.mDone.countDown();
+		}
+	}
+
+	// encoding, encrypting and writing the avatar shouldn't hold up showing it
+	private static void saveAvatar(final ThumbnailCache avatars, final String key, final Bitmap bitmap) {
+		TaskScheduler.execute(TaskScheduler.Lane.BACKGROUND, new Runnable() {
+
+			@Override
+			public void run() {
+				if (!bitmap.isRecycled()) {
+					avatars.put(key, bitmap);
+				}
+			}
+		});
+	}
+
+	private static Bitmap download(Friend friend) {
+		InputStream plainStream = openPlainStream(friend);
+		if (plainStream == null) {
+			return null;
+		}
+
+		try {
+			// decrypt and decode as it's read
+			Bitmap bitmap = ChatUtils.getSampledImage(plainStream);
+			if (bitmap != null) {
+				// only keep it, and write it to disk, once the rest has authenticated
+				ChatUtils.drain(plainStream);
+				return bitmap;
+			}
+		}
+		catch (IOException e) {
+			SurespotLog.w(TAG, e, "FriendImage DownloaderTask e");
+			return null;
+		}
+		finally {
+			close(plainStream);
+		}
+
+		// the header was too big to rewind or the decoder turned down a pooled bitmap
+		SurespotLog.v(TAG, "download, could not decode off the stream, buffering avatar for: %s", friend.getName());
+		plainStream = openPlainStream(friend);
+		if (plainStream == null) {
+			return null;
+		}
+
+		try {
+			return ChatUtils.getSampledImage(Utils.inputStreamToBytes(plainStream));
+		}
+		catch (IOException e) {
+			SurespotLog.w(TAG, e, "FriendImage DownloaderTask e");
+			return null;
+		}
+		finally {
+			close(plainStream);
+		}
+	}
+
+	private static InputStream openPlainStream(Friend friend) {
+		InputStream imageStream = MainActivity.getNetworkController().getFileStream(MainActivity.getContext(), friend.getImageUrl());
+		if (imageStream == null) {
+			return null;
+		}
+
+		InputStream plainStream = null;
+		try {
+			plainStream = EncryptionController.openDecryptStream(friend.getImageVersion(), IdentityController.getLoggedInUser(),
+					friend.getImageVersion(), friend.getImageIv(), imageStream);
+		}
+		catch (IOException e) {
+			SurespotLog.w(TAG, e, "FriendImage DownloaderTask e");
+		}
+
+		if (plainStream == null) {
+			close(imageStream);
+		}
+		return plainStream;
+	}
+
+	private static void close(InputStream in) {
+		try {
+			in.close();
+		}
+		catch (IOException e) {
+			SurespotLog.w(TAG, e, "FriendImage DownloaderTask e");
+		}
+	}
+
+	// a new avatar comes with a new iv so old ones are never served
+	private static String getAvatarKey(Friend friend) {
+		return friend.getName() + ":" + friend.getImageVersion() + ":" + friend.getImageIv();
+	}
+
+	private static synchronized ThumbnailCache getAvatarCache() {
+		mAvatarCache = ThumbnailCache.getForLoggedInUser(mAvatarCache, AVATAR_DIRNAME, AVATAR_BUDGET);
+		return mAvatarCache;
+	}
+
 	public static void ImageViewAnimatedChange(Context c, final ImageView v, final Bitmap new_image) {
 		SurespotLog.v(TAG, "switching image");
 		final Animation anim_out = AnimationUtils.loadAnimation(c, android.R.anim.fade_out);
@@ -361,6 +529,14 @@ public class FriendImageDownloader {
 
 	}
 
+	public static String getCacheStats() {
+		ThumbnailCache avatars;
+		synchronized (FriendImageDownloader.class) {
+			avatars = mAvatarCache;
+		}
+		return mBitmapCache.getStats() + ", disk: " + (avatars == null ? "none" : avatars.getStats());
+	}
+
 	public static void copyAndRemoveCacheEntry(String sourceKey, String destKey) {
 		Bitmap bitmap = mBitmapCache.getBitmapFromMemCache(sourceKey);
 		if (bitmap != null) {
@@ -142,7 +142,7 @@ public class ImageMessageMenuFragment extends SherlockDialogFragment {
 									File galleryFile = FileUtils.createGalleryImageFile(".jpg");
 									FileOutputStream fos = new FileOutputStream(galleryFile);
 
-									InputStream imageStream = MainActivity.getNetworkController().getFileStream(mActivity, mMessage.getData());
+									InputStream imageStream = MainActivity.getNetworkController().getMediaStream(mActivity, mMessage.getData());
 
 									EncryptionController.runDecryptTask(mMessage.getOurVersion(), mMessage.getOtherUser(), mMessage.getTheirVersion(),
 											mMessage.getIv(), new BufferedInputStream(imageStream), fos);
@@ -3,11 +3,8 @@ package com.twofours.surespot.images;
 import it.sephiroth.android.library.imagezoom.ImageViewTouch;
 import it.sephiroth.android.library.imagezoom.ImageViewTouchBase.DisplayType;
 
-import java.io.BufferedInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.PipedInputStream;
-import java.io.PipedOutputStream;
 
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
@@ -19,6 +16,7 @@ import com.actionbarsherlock.app.SherlockActivity;
 import com.actionbarsherlock.view.MenuItem;
 import com.twofours.surespot.R;
 import com.twofours.surespot.activities.MainActivity;
+import com.twofours.surespot.chat.ChatUtils;
 import com.twofours.surespot.chat.SurespotMessage;
 import com.twofours.surespot.common.SurespotConstants;
 import com.twofours.surespot.common.SurespotLog;
@@ -53,38 +51,40 @@ public class ImageViewActivity extends SherlockActivity {
 					@Override
 					protected Bitmap doInBackground(Void... params) {
 
-						InputStream imageStream = MainActivity.getNetworkController().getFileStream(ImageViewActivity.this, message.getData());
+						InputStream imageStream = MainActivity.getNetworkController().getMediaStream(ImageViewActivity.this, message.getData());
+
+						if (imageStream == null) {
+							return null;
+						}
 
 						Bitmap bitmap = null;
-						PipedOutputStream out = new PipedOutputStream();
-						PipedInputStream inputStream = null;
+						InputStream inputStream = null;
 						try {
-							inputStream = new PipedInputStream(out);
-
-							EncryptionController.runDecryptTask(message.getOurVersion(), message.getOtherUser(), message.getTheirVersion(), message.getIv(),
-									new BufferedInputStream(imageStream), out);
-
-							bitmap = BitmapFactory.decodeStream(inputStream);
-
+							// decrypted as the decoder reads it
+							inputStream = EncryptionController.openDecryptStream(message.getOurVersion(), message.getOtherUser(), message.getTheirVersion(),
+									message.getIv(), imageStream);
+
+							if (inputStream != null) {
+								bitmap = BitmapFactory.decodeStream(inputStream);
+								if (bitmap != null) {
+									// authenticates the rest and lets the download be cached so it isn't fetched again next time
+									ChatUtils.drain(inputStream);
+								}
+							}
 						}
 						catch (IOException e) {
 							SurespotLog.w(TAG, e, "ImageViewActivity");
+							bitmap = null;
 						}
 						finally {
 
-							try {
-								if (imageStream != null) {
-									imageStream.close();
-								}
-							}
-							catch (IOException e) {
-								SurespotLog.w(TAG, e, "ImageViewActivity");
-							}
-
 							try {
 								if (inputStream != null) {
 									inputStream.close();
 								}
+								else {
+									imageStream.close();
+								}
 							}
 							catch (IOException e) {
 								SurespotLog.w(TAG, e, "ImageViewActivity");
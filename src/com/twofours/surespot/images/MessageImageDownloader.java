@@ -16,13 +16,6 @@
 
 package com.twofours.surespot.images;
 
-import java.io.BufferedInputStream;
-import java.io.FileNotFoundException;
-import java.io.IOException;
-import java.io.InputStream;
-import java.io.InterruptedIOException;
-import java.io.PipedInputStream;
-import java.io.PipedOutputStream;
 import java.lang.ref.WeakReference;
 import java.util.ArrayList;
 import java.util.HashMap;
@@ -31,23 +24,21 @@ import android.graphics.Bitmap;
 import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.ColorDrawable;
 import android.graphics.drawable.Drawable;
-import android.net.Uri;
 import android.os.Build;
 import android.os.Handler;
+import android.os.Looper;
 import android.view.View;
 import android.view.animation.Animation;
 import android.view.animation.AnimationUtils;
 import android.widget.ImageView;
 
-import com.twofours.surespot.SurespotApplication;
-import com.twofours.surespot.activities.MainActivity;
+import com.twofours.surespot.TaskScheduler;
 import com.twofours.surespot.chat.ChatAdapter;
-import com.twofours.surespot.chat.ChatUtils;
+import com.twofours.surespot.chat.MediaFetcher;
 import com.twofours.surespot.chat.SurespotMessage;
 import com.twofours.surespot.common.SurespotConfiguration;
+import com.twofours.surespot.common.SurespotConstants;
 import com.twofours.surespot.common.SurespotLog;
-import com.twofours.surespot.common.Utils;
-import com.twofours.surespot.encryption.EncryptionController;
 import com.twofours.surespot.ui.UIUtils;
 
 /**
@@ -61,8 +52,12 @@ import com.twofours.surespot.ui.UIUtils;
  */
 public class MessageImageDownloader {
 	private static final String TAG = "MessageImageDownloader";
-	private static BitmapCache mBitmapCache = new BitmapCache();
-	private static Handler mHandler = new Handler(MainActivity.getContext().getMainLooper());
+	// message images get an eighth of the memory class
+	private static BitmapCache mBitmapCache = new BitmapCache(8);
+	private static Handler mHandler = new Handler(Looper.getMainLooper());
+	private static final String THUMBNAIL_DIRNAME = "thumbnails";
+	private static final long THUMBNAIL_BUDGET = 10 * 1024 * 1024;
+	private static ThumbnailCache mThumbnailCache;
 	private ChatAdapter mChatAdapter;
 	private static HashMap<ImageView, Object> mImageViews;
 
@@ -125,7 +120,17 @@ public class MessageImageDownloader {
 			imageView.setImageDrawable(downloadedDrawable);
 			message.setLoaded(false);
 			message.setLoading(true);
-			SurespotApplication.THREAD_POOL_EXECUTOR.execute(task);
+			task.mToken = TaskScheduler.execute(TaskScheduler.Lane.VISIBLE, task);
+		}
+	}
+
+	/**
+	 * Cancel any pending download for this view, call when the view is rebound to a message that doesn't need it
+	 */
+	public void cancel(ImageView imageView) {
+		BitmapDownloaderTask task = getBitmapDownloaderTask(imageView);
+		if (task != null) {
+			task.cancel();
 		}
 	}
 
@@ -168,9 +173,10 @@ public class MessageImageDownloader {
 	/**
 	 * The actual AsyncTask that will asynchronously download the image.
 	 */
-	class BitmapDownloaderTask implements Runnable {
+	class BitmapDownloaderTask implements Runnable, TaskScheduler.Droppable {
 		private SurespotMessage mMessage;
-		private boolean mCancelled;
+		private volatile boolean mCancelled;
+		private volatile TaskScheduler.Token mToken;
 
 		public SurespotMessage getMessage() {
 			return mMessage;
@@ -185,93 +191,34 @@ public class MessageImageDownloader {
 
 		public void cancel() {
 			mCancelled = true;
+			TaskScheduler.Token token = mToken;
+			if (token != null) {
+				token.cancel();
+			}
+		}
+
+		@Override
+		public void onDropped() {
+			mMessage.setLoaded(true);
+			mMessage.setLoading(false);
+			mChatAdapter.checkLoaded();
 		}
 
 		@Override
 		public void run() {
 			Bitmap bitmap = null;
-			InputStream imageStream = null;
 
-			if (mMessage.getData().startsWith("file")) {
-				try {
-					imageStream = MainActivity.getContext().getContentResolver().openInputStream(Uri.parse(mMessage.getData()));
-				}
-				catch (FileNotFoundException e) {
-					SurespotLog.w(TAG, e, "MessageImage DownloaderTask");
-				}
-			}
-			else {
-				imageStream = MainActivity.getNetworkController().getFileStream(MainActivity.getContext(), mMessage.getData());
+			if (!mCancelled) {
+				bitmap = loadBitmap(mMessage);
 			}
 
 			if (mCancelled) {
-				try {
-					if (imageStream != null) {
-						imageStream.close();
-					}
-				}
-				catch (IOException e) {
-					SurespotLog.w(TAG, e, "MessageImage DownloaderTask");
-				}
+				mMessage.setLoaded(true);
+				mMessage.setLoading(false);
+				mChatAdapter.checkLoaded();
 				return;
 			}
 
-			if (!mCancelled && imageStream != null) {
-				PipedOutputStream out = new PipedOutputStream();
-				PipedInputStream inputStream = null;
-				try {
-					inputStream = new PipedInputStream(out);
-
-					EncryptionController.runDecryptTask(mMessage.getOurVersion(), mMessage.getOtherUser(), mMessage.getTheirVersion(), mMessage.getIv(),
-							new BufferedInputStream(imageStream), out);
-
-					if (mCancelled) {
-						mMessage.setLoaded(true);
-						mMessage.setLoading(false);
-						mChatAdapter.checkLoaded();
-						return;
-					}
-
-					byte[] bytes = Utils.inputStreamToBytes(inputStream);
-					if (mCancelled) {
-						mMessage.setLoaded(true);
-						mMessage.setLoading(false);
-						mChatAdapter.checkLoaded();
-						return;
-					}
-
-					bitmap = ChatUtils.getSampledImage(bytes);
-				}
-				catch (InterruptedIOException ioe) {
-
-					SurespotLog.w(TAG, ioe, "MessageImage ioe");
-
-				}
-				catch (IOException e) {
-					SurespotLog.w(TAG, e, "MessageImage e");
-				}
-				finally {
-
-					try {
-						if (imageStream != null) {
-							imageStream.close();
-						}
-					}
-					catch (IOException e) {
-						SurespotLog.w(TAG, e, "MessageImage DownloaderTask");
-					}
-
-					try {
-						if (inputStream != null) {
-							inputStream.close();
-						}
-					}
-					catch (IOException e) {
-						SurespotLog.w(TAG, e, "MessageImage DownloaderTask");
-					}
-				}
-			}
-
 			mMessage.setLoaded(true);
 			mMessage.setLoading(false);
 
@@ -400,9 +347,81 @@ public class MessageImageDownloader {
 			preserve.clear();
 		}
 		else {
-			// otherwise just trim it
-			mBitmapCache.trimToSize(10);
+			// otherwise just trim it, what's evicted goes to the pool for reuse
+			mBitmapCache.trimToFraction(0.33f);
+		}
+	}
+
+	public static String getCacheStats() {
+		return mBitmapCache.getStats();
+	}
+
+	public static synchronized String getThumbnailStats() {
+		return mThumbnailCache == null ? "none" : mThumbnailCache.getStats();
+	}
+
+	/**
+	 * Get the message's image at display size, from its thumbnail if we have one, otherwise it's downloaded and decrypted and a thumbnail saved
+	 * in the background. Blocks so call it off the ui thread
+	 */
+	public static Bitmap loadBitmap(SurespotMessage message) {
+		ThumbnailCache thumbnails = getThumbnailCache();
+		if (thumbnails != null) {
+			Bitmap bitmap = thumbnails.get(message.getIv());
+			if (bitmap != null) {
+				SurespotLog.v(TAG, "loadBitmap, loaded thumbnail for iv: %s", message.getIv());
+				return bitmap;
+			}
+		}
+
+		// shares the download with ChatController if it's decoding the same image as it arrives
+		Bitmap bitmap = MediaFetcher.getSampledImage(message);
+		if (bitmap != null && thumbnails != null) {
+			saveThumbnail(thumbnails, message.getIv(), bitmap);
 		}
+		return bitmap;
+	}
+
+	// encoding, encrypting and writing the thumbnail shouldn't hold up showing the image
+	private static void saveThumbnail(final ThumbnailCache thumbnails, final String iv, final Bitmap bitmap) {
+		TaskScheduler.execute(TaskScheduler.Lane.BACKGROUND, new Runnable() {
+
+			@Override
+			public void run() {
+				if (!bitmap.isRecycled()) {
+					thumbnails.put(iv, bitmap);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Delete the thumbnail for a deleted message, in the background
+	 */
+	public static void removeThumbnail(final SurespotMessage message) {
+		if (!SurespotConstants.MimeTypes.IMAGE.equals(message.getMimeType())) {
+			return;
+		}
+
+		final ThumbnailCache thumbnails;
+		synchronized (MessageImageDownloader.class) {
+			thumbnails = mThumbnailCache;
+		}
+		if (thumbnails != null) {
+			TaskScheduler.execute(TaskScheduler.Lane.BACKGROUND, new Runnable() {
+
+				@Override
+				public void run() {
+					thumbnails.remove(message.getIv());
+				}
+			});
+		}
+	}
+
+	// the cache for whoever's logged in, made again if they change or roll keys
+	private static synchronized ThumbnailCache getThumbnailCache() {
+		mThumbnailCache = ThumbnailCache.getForLoggedInUser(mThumbnailCache, THUMBNAIL_DIRNAME, THUMBNAIL_BUDGET);
+		return mThumbnailCache;
 	}
 
 	public static void copyAndRemoveCacheEntry(String sourceKey, String destKey) {
@@ -0,0 +1,156 @@
+package com.twofours.surespot.images;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+
+import com.twofours.surespot.activities.MainActivity;
+import com.twofours.surespot.chat.ChatUtils;
+import com.twofours.surespot.common.FileUtils;
+import com.twofours.surespot.common.SurespotLog;
+import com.twofours.surespot.common.Utils;
+import com.twofours.surespot.encryption.EncryptionController;
+import com.twofours.surespot.identity.IdentityController;
+import com.twofours.surespot.identity.SurespotIdentity;
+import com.twofours.surespot.network.BlobCache;
+
+/**
+ * Display sized copies of images on disk, so a chat or friend list that's fallen out of the memory cache doesn't have to download, decrypt and
+ * sample every image again. Message images are keyed by iv, avatars by friend and image version.
+ *
+ * Thumbnails are encrypted with a key derived from the identity's latest private DH key and kept in a directory per key version, so rolling
+ * keys leaves the old ones unreadable and they're deleted.
+ */
+public class ThumbnailCache {
+	private static final String TAG = "ThumbnailCache";
+	private static final String KEY_PURPOSE = "surespot thumbnail cache";
+	private static final int JPEG_QUALITY = 85;
+
+	private final String mUsername;
+	private final String mDirName;
+	private final String mKeyVersion;
+	private final byte[] mKey;
+	private final BlobCache mFiles;
+
+	private int mHits;
+	private int mMisses;
+	private int mSaved;
+
+	/**
+	 * 
+	 * @param dirName
+	 *            where in the user's state directory to keep the files, one per kind of image
+	 * @param budget
+	 *            bytes on disk before the least recently used are deleted
+	 */
+	public ThumbnailCache(Context context, SurespotIdentity identity, String dirName, long budget) {
+		mUsername = identity.getUsername();
+		mDirName = dirName;
+		mKeyVersion = identity.getLatestVersion();
+		mKey = EncryptionController.deriveLocalKey(identity.getKeyPairDH(mKeyVersion).getPrivate(), KEY_PURPOSE);
+
+		File dir = getDir(context, mUsername, dirName);
+		File[] versions = dir.listFiles();
+		if (versions != null) {
+			for (File version : versions) {
+				if (!version.getName().equals(mKeyVersion)) {
+					SurespotLog.v(TAG, "deleting thumbnails for old key version: %s", version.getName());
+					FileUtils.deleteRecursive(version);
+				}
+			}
+		}
+		mFiles = new BlobCache(new File(dir, mKeyVersion), budget);
+	}
+
+	/**
+	 *
+	 * @return the thumbnail for the key or null if we don't have one
+	 */
+	public Bitmap get(String key) {
+		byte[] cipherData = null;
+		InputStream in = mFiles.get(key);
+		if (in != null) {
+			try {
+				cipherData = Utils.inputStreamToBytes(in);
+			}
+			catch (IOException e) {
+				SurespotLog.w(TAG, e, "get");
+			}
+			finally {
+				try {
+					in.close();
+				}
+				catch (IOException e) {
+					SurespotLog.w(TAG, e, "get");
+				}
+			}
+		}
+
+		byte[] plainData = cipherData == null ? null : EncryptionController.symmetricDecryptLocal(mKey, cipherData);
+		Bitmap bitmap = plainData == null ? null : ChatUtils.getSampledImage(plainData);
+		synchronized (this) {
+			if (bitmap == null) {
+				mMisses++;
+			}
+			else {
+				mHits++;
+			}
+		}
+
+		if (bitmap == null && cipherData != null) {
+			SurespotLog.i(TAG, "get, could not read thumbnail for key: %s, deleting", key);
+			mFiles.remove(key);
+		}
+		return bitmap;
+	}
+
+	public void put(String key, Bitmap bitmap) {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		if (!bitmap.compress(Bitmap.CompressFormat.JPEG, JPEG_QUALITY, bytes)) {
+			return;
+		}
+
+		byte[] cipherData = EncryptionController.symmetricEncryptLocal(mKey, bytes.toByteArray());
+		if (cipherData != null) {
+			mFiles.put(key, cipherData);
+			synchronized (this) {
+				mSaved++;
+			}
+		}
+	}
+
+	public void remove(String key) {
+		mFiles.remove(key);
+	}
+
+	public synchronized String getStats() {
+		int hitRate = mHits + mMisses == 0 ? 0 : mHits * 100 / (mHits + mMisses);
+		return String.format("%d hits, %d misses, %d%% hit rate, %d saved, %s", mHits, mMisses, hitRate, mSaved, mFiles.getStats());
+	}
+
+	/**
+	 * 
+	 * @return current if it's still right for whoever's logged in, otherwise a new cache for them, or null if nobody is
+	 */
+	public static ThumbnailCache getForLoggedInUser(ThumbnailCache current, String dirName, long budget) {
+		String username = IdentityController.getLoggedInUser();
+		SurespotIdentity identity = username == null ? null : IdentityController.getIdentity(username);
+		if (identity == null) {
+			return null;
+		}
+
+		if (current != null && current.mUsername.equals(username) && current.mDirName.equals(dirName)
+				&& current.mKeyVersion.equals(identity.getLatestVersion())) {
+			return current;
+		}
+		return new ThumbnailCache(MainActivity.getContext(), identity, dirName, budget);
+	}
+
+	private static File getDir(Context context, String username, String dirName) {
+		return new File(FileUtils.getStateDir(context) + File.separator + username + File.separator + dirName);
+	}
+}
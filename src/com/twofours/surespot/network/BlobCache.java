@@ -0,0 +1,362 @@
+package com.twofours.surespot.network;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.twofours.surespot.common.SurespotLog;
+
+/**
+ * Disk cache of encrypted media, one file per url named by the url's hash, evicting least recently used files once over a byte budget.
+ *
+ * Entries are only ever whole files, everything is written to a temp file and renamed into place once the last byte is in. Files we
+ * already have on disk, like the encrypted copy of something we just uploaded, are renamed into the cache rather than copied.
+ */
+public class BlobCache {
+	private static final String TAG = "BlobCache";
+	private static final String TEMP_PREFIX = "blob";
+	private static final String TEMP_SUFFIX = ".tmp";
+
+	private final File mDir;
+	private final long mBudget;
+	// file name to size, least recently used first
+	private LinkedHashMap<String, Long> mEntries;
+	private long mSize;
+
+	private int mHits;
+	private int mMisses;
+	private int mPromotions;
+	private int mEvictions;
+
+	public BlobCache(File dir, long budget) {
+		mDir = dir;
+		mBudget = budget;
+	}
+
+	/**
+	 *
+	 * @return the cached file for the url or null if we don't have it
+	 */
+	public synchronized InputStream get(String url) {
+		ensureLoaded();
+		String name = getName(url);
+		if (mEntries.get(name) != null) {
+			File file = new File(mDir, name);
+			try {
+				InputStream in = new FileInputStream(file);
+				// so the order survives a restart
+				file.setLastModified(System.currentTimeMillis());
+				mHits++;
+				return in;
+			}
+			catch (FileNotFoundException e) {
+				// someone wiped the directory
+				SurespotLog.v(TAG, "get, cached file gone for: %s", url);
+				mSize -= mEntries.remove(name);
+			}
+		}
+
+		mMisses++;
+		return null;
+	}
+
+	/**
+	 * Wrap a download so it's saved under the url once it has been read to the end, if it's closed early nothing is saved
+	 */
+	public InputStream cache(String url, InputStream in) {
+		try {
+			return new CachingInputStream(in, url, createTempFile());
+		}
+		catch (IOException e) {
+			SurespotLog.w(TAG, e, "cache");
+			return in;
+		}
+	}
+
+	/**
+	 * Save bytes we already have under the url
+	 */
+	public void put(String url, byte[] data) {
+		File tempFile = null;
+		OutputStream out = null;
+		try {
+			tempFile = createTempFile();
+			out = new FileOutputStream(tempFile);
+			out.write(data);
+			out.close();
+			out = null;
+			commit(url, tempFile);
+		}
+		catch (IOException e) {
+			SurespotLog.w(TAG, e, "put");
+			if (tempFile != null) {
+				tempFile.delete();
+			}
+		}
+		finally {
+			if (out != null) {
+				try {
+					out.close();
+				}
+				catch (IOException e) {
+					SurespotLog.w(TAG, e, "put");
+				}
+			}
+		}
+	}
+
+	/**
+	 * Move a file into the cache under the url, the file must be on the same file system
+	 *
+	 * @return false if it couldn't be moved, the file is left where it was
+	 */
+	public synchronized boolean promote(String url, File file) {
+		ensureLoaded();
+		mDir.mkdirs();
+		String name = getName(url);
+		long length = file.length();
+		if (!file.renameTo(new File(mDir, name))) {
+			SurespotLog.w(TAG, "promote, could not move %s into cache", file);
+			return false;
+		}
+
+		SurespotLog.v(TAG, "promote, moved %s into cache for: %s", file, url);
+		mPromotions++;
+		add(name, length);
+		return true;
+	}
+
+	public synchronized void remove(String url) {
+		ensureLoaded();
+		String name = getName(url);
+		Long length = mEntries.remove(name);
+		if (length != null) {
+			mSize -= length;
+			new File(mDir, name).delete();
+		}
+	}
+
+	public synchronized void clear() {
+		File[] files = mDir.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				file.delete();
+			}
+		}
+		mEntries = new LinkedHashMap<String, Long>(16, 0.75f, true);
+		mSize = 0;
+	}
+
+	public synchronized String getStats() {
+		// don't scan the directory just for stats
+		int files = mEntries == null ? 0 : mEntries.size();
+		return String.format("%d files, %d of %d bytes, %d hits, %d misses, %d promoted, %d evicted", files, mSize, mBudget, mHits, mMisses,
+				mPromotions, mEvictions);
+	}
+
+	// after the first load has swept up temp files left over from last time, so it can't sweep up ours
+	private synchronized File createTempFile() throws IOException {
+		ensureLoaded();
+		mDir.mkdirs();
+		return File.createTempFile(TEMP_PREFIX, TEMP_SUFFIX, mDir);
+	}
+
+	private synchronized void commit(String url, File tempFile) {
+		ensureLoaded();
+		String name = getName(url);
+		long length = tempFile.length();
+		if (!tempFile.renameTo(new File(mDir, name))) {
+			SurespotLog.w(TAG, "commit, could not rename %s", tempFile);
+			tempFile.delete();
+			return;
+		}
+		add(name, length);
+	}
+
+	private void add(String name, long length) {
+		Long old = mEntries.put(name, length);
+		if (old != null) {
+			mSize -= old;
+		}
+		mSize += length;
+
+		Iterator<Map.Entry<String, Long>> iterator = mEntries.entrySet().iterator();
+		while (mSize > mBudget && iterator.hasNext()) {
+			Map.Entry<String, Long> eldest = iterator.next();
+			// keep what we just added even if it's bigger than the budget
+			if (eldest.getKey().equals(name)) {
+				continue;
+			}
+
+			new File(mDir, eldest.getKey()).delete();
+			mSize -= eldest.getValue();
+			iterator.remove();
+			mEvictions++;
+		}
+	}
+
+	private void ensureLoaded() {
+		if (mEntries != null) {
+			return;
+		}
+
+		mEntries = new LinkedHashMap<String, Long>(16, 0.75f, true);
+		mSize = 0;
+		File[] files = mDir.listFiles();
+		if (files == null) {
+			return;
+		}
+
+		ArrayList<File> entries = new ArrayList<File>(files.length);
+		for (File file : files) {
+			// temp files from downloads that never finished
+			if (file.getName().endsWith(TEMP_SUFFIX)) {
+				file.delete();
+			}
+			else {
+				entries.add(file);
+			}
+		}
+
+		File[] sorted = entries.toArray(new File[entries.size()]);
+		Arrays.sort(sorted, new Comparator<File>() {
+
+			@Override
+			public int compare(File lhs, File rhs) {
+				long left = lhs.lastModified();
+				long right = rhs.lastModified();
+				return left < right ? -1 : (left == right ? 0 : 1);
+			}
+		});
+
+		for (File file : sorted) {
+			long length = file.length();
+			mEntries.put(file.getName(), length);
+			mSize += length;
+		}
+		SurespotLog.v(TAG, "ensureLoaded, %d files, %d bytes", mEntries.size(), mSize);
+	}
+
+	private static String getName(String url) {
+		try {
+			byte[] digest = MessageDigest.getInstance("SHA-1").digest(url.getBytes("UTF-8"));
+			StringBuilder name = new StringBuilder(digest.length * 2);
+			for (byte b : digest) {
+				name.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+			}
+			return name.toString();
+		}
+		catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+		catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private class CachingInputStream extends FilterInputStream {
+		private final String mUrl;
+		private final File mTempFile;
+		private OutputStream mOut;
+
+		CachingInputStream(InputStream in, String url, File tempFile) throws FileNotFoundException {
+			super(in);
+			mUrl = url;
+			mTempFile = tempFile;
+			mOut = new FileOutputStream(tempFile);
+		}
+
+		@Override
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			int read = read(b, 0, 1);
+			return read == -1 ? -1 : b[0] & 0xff;
+		}
+
+		@Override
+		public int read(byte[] buffer, int offset, int count) throws IOException {
+			int read;
+			try {
+				read = in.read(buffer, offset, count);
+			}
+			catch (IOException e) {
+				abort();
+				throw e;
+			}
+
+			if (mOut != null) {
+				if (read == -1) {
+					finish();
+				}
+				else {
+					try {
+						mOut.write(buffer, offset, read);
+					}
+					catch (IOException e) {
+						// out of space or the like, still hand the data back
+						SurespotLog.w(TAG, e, "read");
+						abort();
+					}
+				}
+			}
+			return read;
+		}
+
+		@Override
+		public long skip(long byteCount) throws IOException {
+			// we'd have a hole in the file
+			abort();
+			return in.skip(byteCount);
+		}
+
+		@Override
+		public boolean markSupported() {
+			return false;
+		}
+
+		@Override
+		public void close() throws IOException {
+			abort();
+			super.close();
+		}
+
+		private void finish() {
+			try {
+				mOut.close();
+				mOut = null;
+				commit(mUrl, mTempFile);
+			}
+			catch (IOException e) {
+				SurespotLog.w(TAG, e, "finish");
+				abort();
+			}
+		}
+
+		private void abort() {
+			if (mOut != null) {
+				try {
+					mOut.close();
+				}
+				catch (IOException e) {
+					SurespotLog.w(TAG, e, "abort");
+				}
+				mOut = null;
+				mTempFile.delete();
+			}
+		}
+	}
+}
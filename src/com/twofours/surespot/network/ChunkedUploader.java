@@ -0,0 +1,235 @@
+package com.twofours.surespot.network;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import ch.boye.httpclientandroidlib.Header;
+import ch.boye.httpclientandroidlib.HttpResponse;
+import ch.boye.httpclientandroidlib.client.HttpClient;
+import ch.boye.httpclientandroidlib.client.methods.HttpPut;
+import ch.boye.httpclientandroidlib.entity.ByteArrayEntity;
+import ch.boye.httpclientandroidlib.protocol.BasicHttpContext;
+import ch.boye.httpclientandroidlib.util.EntityUtils;
+
+import com.twofours.surespot.Tuple;
+import com.twofours.surespot.common.SurespotLog;
+
+/**
+ * Uploads a file in fixed size chunks so a dropped connection only costs the chunk in flight.
+ *
+ * Each chunk is a PUT with a Content-Range header, the server answers 308 with a Range header saying how much it has until the last chunk,
+ * which gets the normal response. How far we got is saved per iv, so an upload that's retried later, even after a restart, first asks the server
+ * how much it has (a PUT with Content-Range bytes &#42;/total and no body) and carries on from there. If the server says it has every byte
+ * but never answered the last chunk, the last chunk is sent again so it does.
+ *
+ * Not every server takes uploads like this, a 404, 405 or 501 before the server has acknowledged anything comes straight back so the caller can
+ * fall back to a multipart post.
+ */
+public class ChunkedUploader {
+	private static final String TAG = "ChunkedUploader";
+	public static final int CHUNK_SIZE = 256 * 1024;
+	// consecutive failures before we give up until the user resends
+	private static final int MAX_ATTEMPTS = 5;
+	private static final long RETRY_DELAY_MS = 1000;
+	private static final int SC_RESUME_INCOMPLETE = 308;
+	private static final String PREFS_NAME = "uploads";
+
+	private final SharedPreferences mProgress;
+	private final HttpClient mClient;
+
+	public ChunkedUploader(Context context, HttpClient client) {
+		mProgress = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+		mClient = client;
+	}
+
+	/**
+	 * Upload the file, picking up where the last attempt for the iv left off
+	 *
+	 * @param progress
+	 *            told bytes confirmed and total after each chunk, may be null
+	 * @return the status code and body of the response that finished the upload, or the status it failed with
+	 */
+	public Tuple<Integer, String> upload(String url, String iv, File file, String mimeType, IAsyncCallbackTuple<Long, Long> progress) {
+		long total = file.length();
+		long offset = mProgress.getLong(iv, 0);
+		// if we've sent some before we don't know how much of it made it
+		boolean verify = offset > 0;
+		// once the server has acknowledged something we know it takes chunks
+		boolean acknowledged = offset > 0;
+		int failures = 0;
+		int finishes = 0;
+
+		RandomAccessFile raf = null;
+		try {
+			raf = new RandomAccessFile(file, "r");
+
+			while (true) {
+				long sentFrom = offset;
+				HttpPut put = new HttpPut(url);
+				if (verify) {
+					put.setHeader("Content-Range", "bytes */" + total);
+				}
+				else {
+					int length = (int) Math.min(CHUNK_SIZE, total - offset);
+					byte[] chunk = new byte[length];
+					raf.seek(offset);
+					raf.readFully(chunk);
+
+					ByteArrayEntity entity = new ByteArrayEntity(chunk);
+					entity.setContentType(mimeType);
+					put.setEntity(entity);
+					put.setHeader("Content-Range", "bytes " + offset + "-" + (offset + length - 1) + "/" + total);
+				}
+
+				int status = 0;
+				String body = null;
+				HttpResponse response = null;
+				try {
+					response = mClient.execute(put, new BasicHttpContext());
+					status = response.getStatusLine().getStatusCode();
+					if (status == SC_RESUME_INCOMPLETE) {
+						offset = getResumeOffset(response);
+					}
+					else if (status == 200) {
+						body = EntityUtils.toString(response.getEntity());
+					}
+				}
+				catch (Exception e) {
+					SurespotLog.i(TAG, e, "upload, iv: %s, offset: %d", iv, offset);
+				}
+				finally {
+					if (response != null) {
+						try {
+							EntityUtils.consume(response.getEntity());
+						}
+						catch (IOException e) {
+							SurespotLog.w(TAG, e, "upload");
+						}
+					}
+					put.releaseConnection();
+				}
+
+				if (status == 200) {
+					SurespotLog.v(TAG, "upload, finished iv: %s, %d bytes", iv, total);
+					clearProgress(iv);
+					return new Tuple<Integer, String>(200, body);
+				}
+
+				if (status == SC_RESUME_INCOMPLETE) {
+					acknowledged = true;
+				}
+				else if (!acknowledged && isUnsupported(status)) {
+					SurespotLog.i(TAG, "upload, server doesn't take chunks, status: %d", status);
+					clearProgress(iv);
+					return new Tuple<Integer, String>(status, null);
+				}
+
+				if (status == SC_RESUME_INCOMPLETE && offset >= total) {
+					// it has everything but we never got the answer to the last chunk, send it again so we do
+					if (++finishes > MAX_ATTEMPTS) {
+						SurespotLog.i(TAG, "upload, server has all of iv: %s but won't finish", iv);
+						return new Tuple<Integer, String>(500, null);
+					}
+					SurespotLog.v(TAG, "upload, server has all of iv: %s, sending the last chunk again", iv);
+					offset = getChunkStart(total - 1);
+					verify = false;
+					continue;
+				}
+
+				if (status == SC_RESUME_INCOMPLETE && (verify || offset > sentFrom)) {
+					saveProgress(iv, offset);
+					if (progress != null) {
+						progress.handleResponse(offset, total);
+					}
+					if (offset > sentFrom) {
+						failures = 0;
+					}
+					verify = false;
+					continue;
+				}
+
+				if (status == 404) {
+					// the server threw away what it had
+					SurespotLog.i(TAG, "upload, server lost iv: %s, starting over", iv);
+					offset = 0;
+					clearProgress(iv);
+					verify = false;
+				}
+				else if (status != 0 && status != SC_RESUME_INCOMPLETE && status < 500) {
+					// it's never going to work
+					clearProgress(iv);
+					return new Tuple<Integer, String>(status, null);
+				}
+				else {
+					// connection trouble or the chunk didn't take, check what the server has before sending any more
+					verify = true;
+				}
+
+				if (++failures >= MAX_ATTEMPTS) {
+					SurespotLog.i(TAG, "upload, giving up on iv: %s at %d of %d bytes", iv, offset, total);
+					return new Tuple<Integer, String>(500, null);
+				}
+				Thread.sleep(RETRY_DELAY_MS << (failures - 1));
+			}
+		}
+		catch (IOException e) {
+			SurespotLog.w(TAG, e, "upload");
+		}
+		catch (InterruptedException e) {
+			SurespotLog.w(TAG, e, "upload");
+		}
+		finally {
+			if (raf != null) {
+				try {
+					raf.close();
+				}
+				catch (IOException e) {
+					SurespotLog.w(TAG, e, "upload");
+				}
+			}
+		}
+		return new Tuple<Integer, String>(500, null);
+	}
+
+	public void clear() {
+		mProgress.edit().clear().commit();
+	}
+
+	private void saveProgress(String iv, long offset) {
+		mProgress.edit().putLong(iv, offset).commit();
+	}
+
+	private void clearProgress(String iv) {
+		mProgress.edit().remove(iv).commit();
+	}
+
+	// no route, no PUT or no Content-Range
+	private static boolean isUnsupported(int status) {
+		return status == 404 || status == 405 || status == 501;
+	}
+
+	private static long getChunkStart(long offset) {
+		return offset / CHUNK_SIZE * CHUNK_SIZE;
+	}
+
+	// Range: bytes=0-1234 means we carry on from 1235, no header means the server has nothing
+	private static long getResumeOffset(HttpResponse response) {
+		Header range = response.getFirstHeader("Range");
+		if (range != null) {
+			String value = range.getValue();
+			int dash = value.lastIndexOf('-');
+			if (dash > -1) {
+				try {
+					return Long.parseLong(value.substring(dash + 1).trim()) + 1;
+				}
+				catch (NumberFormatException e) {
+					SurespotLog.w(TAG, e, "getResumeOffset, bad range: %s", value);
+				}
+			}
+		}
+		return 0;
+	}
+}
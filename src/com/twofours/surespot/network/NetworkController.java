@@ -1,8 +1,13 @@
 package com.twofours.surespot.network;
 
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -21,7 +26,6 @@ import ch.boye.httpclientandroidlib.HttpResponse;
 import ch.boye.httpclientandroidlib.HttpResponseInterceptor;
 import ch.boye.httpclientandroidlib.HttpStatus;
 import ch.boye.httpclientandroidlib.client.CookieStore;
-import ch.boye.httpclientandroidlib.client.cache.HttpCacheEntry;
 import ch.boye.httpclientandroidlib.client.methods.HttpGet;
 import ch.boye.httpclientandroidlib.client.methods.HttpPost;
 import ch.boye.httpclientandroidlib.cookie.Cookie;
@@ -44,6 +48,8 @@ import com.loopj.android.http.SyncHttpClient;
 import com.twofours.surespot.R;
 import com.twofours.surespot.SurespotApplication;
 import com.twofours.surespot.SurespotCachingHttpClient;
+import com.twofours.surespot.Tuple;
+import com.twofours.surespot.common.FileUtils;
 import com.twofours.surespot.common.SurespotConfiguration;
 import com.twofours.surespot.common.SurespotConstants;
 import com.twofours.surespot.common.SurespotLog;
@@ -59,6 +65,11 @@ public class NetworkController {
 	private CookieStore mCookieStore;
 	private SyncHttpClient mSyncClient;
 	private SurespotCachingHttpClient mCachingHttpClient;
+	private BlobCache mMediaCache;
+	private ChunkedUploader mUploader;
+	// resumable uploads need server support so they're off until we're told it's there
+	private volatile boolean mChunkedUploads;
+	private static final long MEDIA_CACHE_BUDGET = 20 * 1024 * 1024;
 
 	public void get(String url, RequestParams params, AsyncHttpResponseHandler responseHandler) {
 		mClient.get(mBaseUrl + url, params, responseHandler);
@@ -107,6 +118,9 @@ public class NetworkController {
 
 		try {			
 			mCachingHttpClient = SurespotCachingHttpClient.createSurespotDiskCachingHttpClient(context);
+			// next to the upload copies so they can be moved in rather than copied
+			mUploader = new ChunkedUploader(context, mCachingHttpClient);
+			mMediaCache = new BlobCache(new File(FileUtils.getImageUploadDir(context), "media"), MEDIA_CACHE_BUDGET);
 			mClient = new AsyncHttpClient(mContext);
 			mSyncClient = new SyncHttpClient(mContext) {
 
@@ -396,7 +410,7 @@ public class NetworkController {
 		get("/friends", null, responseHandler);
 	}
 
-	public void getMessageData(String user, Integer messageId, Integer controlId, JsonHttpResponseHandler responseHandler) {
+	public void getMessageData(String user, Integer messageId, Integer controlId, AsyncHttpResponseHandler responseHandler) {
 		int mId = messageId;
 		int cId = controlId;
 
@@ -404,7 +418,7 @@ public class NetworkController {
 
 	}
 	
-	public void getLatestData(int userControlId, JSONArray spotIds, JsonHttpResponseHandler responseHandler) {
+	public void getLatestData(int userControlId, JSONArray spotIds, AsyncHttpResponseHandler responseHandler) {
 		Map<String, String> params = new HashMap<String, String>();
 		params.put("spotIds", spotIds.toString());
 		
@@ -412,7 +426,7 @@ public class NetworkController {
 	}
 
 	// if we have an id get the messages since the id, otherwise get the last x
-	public void getEarlierMessages(String username, Integer id, JsonHttpResponseHandler responseHandler) {
+	public void getEarlierMessages(String username, Integer id, AsyncHttpResponseHandler responseHandler) {
 		get("/messagesopt/" + username + "/before/" + id, null, responseHandler);
 	}
 
@@ -525,119 +539,147 @@ public class NetworkController {
 		}
 	}
 
-	public void postFileStream(Context context, final String ourVersion, final String user, final String theirVersion, final String id,
-			final InputStream fileInputStream, final String mimeType, final IAsyncCallback<Integer> callback) {
+	/**
+	 * Upload the encrypted file for an image or voice message. Blocks so call it off the ui thread.
+	 *
+	 * @param progress
+	 *            told bytes sent and total as the upload goes, on the uploading thread, may be null
+	 * @return the http status
+	 */
+	public int uploadFile(String ourVersion, String user, String theirVersion, String iv, File file, String mimeType,
+			IAsyncCallbackTuple<Long, Long> progress) {
+		SurespotLog.v(TAG, "uploading file: %s", file);
+		String url = mBaseUrl + "/images/" + ourVersion + "/" + user + "/" + theirVersion;
+		if (isChunkedUploads()) {
+			Tuple<Integer, String> result = uploadChunked(url, iv, file, mimeType, progress);
+			if (result != null) {
+				return result.first;
+			}
+		}
+		return postMultipart(url, iv, file, mimeType, progress).first;
+	}
 
-		new AsyncTask<Void, Void, HttpResponse>() {
+	/**
+	 * Upload the encrypted file for a friend image
+	 */
+	public void postFriendImage(Context context, final String user, final String ourVersion, final String iv, final File file,
+			final IAsyncCallback<String> callback) {
+		new AsyncTask<Void, Void, String>() {
 
 			@Override
-			protected HttpResponse doInBackground(Void... params) {
-
-				SurespotLog.v(TAG, "posting file stream");
-
-				HttpPost httppost = new HttpPost(mBaseUrl + "/images/" + ourVersion + "/" + user + "/" + theirVersion);
-				if (fileInputStream == null) {
-					SurespotLog.v(TAG, "not uploading anything because the file upload stream is null");
-					return null;
-				}
-
-				InputStreamBody isBody = new InputStreamBody(fileInputStream, mimeType, id);
-
-				MultipartEntity reqEntity = new MultipartEntity();
-				reqEntity.addPart("image", isBody);
-				httppost.setEntity(reqEntity);
-				HttpResponse response = null;
-
-				try {
-					response = mCachingHttpClient.execute(httppost, new BasicHttpContext());
-
+			protected String doInBackground(Void... params) {
+				SurespotLog.v(TAG, "posting friend image: %s", file);
+				String url = mBaseUrl + "/images/" + user + "/" + ourVersion;
+				Tuple<Integer, String> result = null;
+				if (isChunkedUploads()) {
+					result = uploadChunked(url, iv, file, SurespotConstants.MimeTypes.IMAGE, null);
 				}
-				catch (Exception e) {
-					SurespotLog.w(TAG, e, "createPostFile");
+				if (result == null) {
+					result = postMultipart(url, iv, file, SurespotConstants.MimeTypes.IMAGE, null);
 				}
-				finally {
-					httppost.releaseConnection();
-					if (response != null) {
-						try {
-							EntityUtils.consume(response.getEntity());
-						}
-						catch (IOException e) {
-							SurespotLog.w(TAG, e, "postFileStream");
-						}
-					}
-				}
-
-				return response;
-
+				return result.first == 200 ? result.second : null;
 			}
 
-			protected void onPostExecute(HttpResponse response) {
-				if (response != null) {
-					callback.handleResponse(response.getStatusLine().getStatusCode());
-				}
-				else {
-					callback.handleResponse(500);
-				}
+			protected void onPostExecute(String url) {
+				callback.handleResponse(url);
+
 			};
 		}.execute();
 	}
 
-	public void postFriendImageStream(Context context, final String user, final String ourVersion, final String iv, final InputStream fileInputStream,
-			final IAsyncCallback<String> callback) {
-		new AsyncTask<Void, Void, String>() {
+	/**
+	 * Send uploads in resumable chunks instead of one multipart post, only for servers that take PUTs with Content-Range. If the server turns
+	 * out not to, we go back to posting.
+	 */
+	public void setChunkedUploads(boolean chunkedUploads) {
+		mChunkedUploads = chunkedUploads;
+	}
 
-			@Override
-			protected String doInBackground(Void... params) {
+	public boolean isChunkedUploads() {
+		return mChunkedUploads;
+	}
+
+	// null if the server doesn't take chunks and the file should be posted instead
+	private Tuple<Integer, String> uploadChunked(String url, String iv, File file, String mimeType, IAsyncCallbackTuple<Long, Long> progress) {
+		Tuple<Integer, String> result;
+		try {
+			result = mUploader.upload(url + "/" + URLEncoder.encode(iv, "UTF-8"), iv, file, mimeType, progress);
+		}
+		catch (UnsupportedEncodingException e) {
+			SurespotLog.w(TAG, e, "uploadChunked");
+			return null;
+		}
 
-				SurespotLog.v(TAG, "posting file stream");
+		if (result.first == 404 || result.first == 405 || result.first == 501) {
+			SurespotLog.i(TAG, "uploadChunked, server doesn't take chunks, status: %d, posting instead", result.first);
+			mChunkedUploads = false;
+			return null;
+		}
+		return result;
+	}
 
-				HttpPost httppost = new HttpPost(mBaseUrl + "/images/" + user + "/" + ourVersion);
+	private Tuple<Integer, String> postMultipart(String url, String iv, File file, String mimeType, final IAsyncCallbackTuple<Long, Long> progress) {
+		final long total = file.length();
+		InputStream fileInputStream;
+		try {
+			fileInputStream = new FileInputStream(file);
+		}
+		catch (FileNotFoundException e) {
+			SurespotLog.w(TAG, e, "postMultipart");
+			return new Tuple<Integer, String>(404, null);
+		}
 
-				InputStreamBody isBody = new InputStreamBody(fileInputStream, SurespotConstants.MimeTypes.IMAGE, iv);
-				MultipartEntity reqEntity = new MultipartEntity();
-				reqEntity.addPart("image", isBody);
-				httppost.setEntity(reqEntity);
-				HttpResponse response = null;
+		if (progress != null) {
+			fileInputStream = new FilterInputStream(fileInputStream) {
+				private long mSent;
 
-				try {
-					response = mCachingHttpClient.execute(httppost, new BasicHttpContext());
-					if (response != null && response.getStatusLine().getStatusCode() == 200) {
-						String url = Utils.inputStreamToString(response.getEntity().getContent());
-						return url;
+				@Override
+				public int read(byte[] buffer, int offset, int count) throws IOException {
+					int read = super.read(buffer, offset, count);
+					if (read > 0) {
+						mSent += read;
+						progress.handleResponse(mSent, total);
 					}
+					return read;
 				}
-				catch (IllegalStateException e) {
-					SurespotLog.w(TAG, e, "postFriendImageStream");
-
-				}
-				catch (IOException e) {
-					SurespotLog.w(TAG, e, "postFriendImageStream");
+			};
+		}
 
-				}
+		HttpPost httppost = new HttpPost(url);
+		InputStreamBody isBody = new InputStreamBody(fileInputStream, mimeType, iv);
+		MultipartEntity reqEntity = new MultipartEntity();
+		reqEntity.addPart("image", isBody);
+		httppost.setEntity(reqEntity);
+		HttpResponse response = null;
 
-				catch (Exception e) {
-					SurespotLog.w(TAG, e, "createPostFile");
+		try {
+			response = mCachingHttpClient.execute(httppost, new BasicHttpContext());
+			int status = response.getStatusLine().getStatusCode();
+			String body = status == 200 ? Utils.inputStreamToString(response.getEntity().getContent()) : null;
+			return new Tuple<Integer, String>(status, body);
+		}
+		catch (Exception e) {
+			SurespotLog.w(TAG, e, "postMultipart");
+		}
+		finally {
+			httppost.releaseConnection();
+			if (response != null) {
+				try {
+					EntityUtils.consume(response.getEntity());
 				}
-				finally {
-					httppost.releaseConnection();
-					if (response != null) {
-						try {
-							EntityUtils.consume(response.getEntity());
-						}
-						catch (IOException e) {
-							SurespotLog.w(TAG, e, "postFileStream");
-						}
-					}
+				catch (IOException e) {
+					SurespotLog.w(TAG, e, "postMultipart");
 				}
-				return null;
-
 			}
 
-			protected void onPostExecute(String url) {
-				callback.handleResponse(url);
-
-			};
-		}.execute();
+			try {
+				fileInputStream.close();
+			}
+			catch (IOException e) {
+				SurespotLog.w(TAG, e, "postMultipart");
+			}
+		}
+		return new Tuple<Integer, String>(500, null);
 	}
 
 	public InputStream  getFileStream(Context context, final String url) {
@@ -664,6 +706,54 @@ public class NetworkController {
 		return null;
 	}
 
+	/**
+	 * Get the encrypted file for an image or voice message, from the media cache if we have it
+	 */
+	public InputStream getMediaStream(Context context, String url) {
+		InputStream cached = mMediaCache.get(url);
+		if (cached != null) {
+			return cached;
+		}
+
+		InputStream in = getUncachedStream(url);
+		if (in == null) {
+			return null;
+		}
+		return mMediaCache.cache(url, in);
+	}
+
+	// media has its own cache so keep it out of the http one, the connection stays open until the stream is closed
+	private InputStream getUncachedStream(String url) {
+		HttpGet httpGet = new HttpGet(url);
+		httpGet.setHeader("Cache-Control", "no-store");
+		try {
+			HttpResponse response = mCachingHttpClient.execute(httpGet, new BasicHttpContext());
+			if (response.getStatusLine().getStatusCode() == 200 && response.getEntity() != null) {
+				return response.getEntity().getContent();
+			}
+			SurespotLog.i(TAG, "getUncachedStream, status: %d", response.getStatusLine().getStatusCode());
+		}
+		catch (Exception e) {
+			SurespotLog.w(TAG, e, "getUncachedStream");
+		}
+
+		httpGet.releaseConnection();
+		return null;
+	}
+
+	/**
+	 * Move the encrypted copy of media we sent into the media cache under the url it was uploaded to
+	 *
+	 * @return false if it couldn't be moved
+	 */
+	public boolean promoteMediaFile(String url, File file) {
+		return mMediaCache.promote(url, file);
+	}
+
+	public String getMediaCacheStats() {
+		return mMediaCache.getStats();
+	}
+
 	public void logout() {
 		if (!isUnauthorized()) {
 			post("/logout", null, new AsyncHttpResponseHandler() {
@@ -674,10 +764,13 @@ public class NetworkController {
 	public void clearCache() {
 		// all the clients share a cache
 		mClient.clearCache();
+		mMediaCache.clear();
+		mUploader.clear();
 	}
 
 	public void purgeCacheUrl(String url) {
 		mCachingHttpClient.removeEntry(mBaseUrl + url);
+		mMediaCache.remove(url);
 	}
 
 	public void deleteMessage(String username, Integer id, AsyncHttpResponseHandler responseHandler) {
@@ -730,15 +823,6 @@ public class NetworkController {
 
 	}
 
-	public void addCacheEntry(String key, HttpCacheEntry httpCacheEntry) {
-		mCachingHttpClient.addCacheEntry(key, httpCacheEntry);
-
-	}
-
-	public HttpCacheEntry getCacheEntry(String key) {
-		return mCachingHttpClient.getCacheEntry(key);
-	}
-
 	public void removeCacheEntry(String key) {
 		mCachingHttpClient.removeEntry(key);
 
@@ -0,0 +1,71 @@
+package com.twofours.surespot.network;
+
+import java.io.IOException;
+import java.io.StringReader;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import com.google.gson.stream.JsonReader;
+import com.loopj.android.http.AsyncHttpResponseHandler;
+import com.twofours.surespot.TaskScheduler;
+import com.twofours.surespot.common.SurespotLog;
+
+/**
+ * Response handler that decodes the body with a token reader on a background thread and hands the result back on the ui thread, instead of
+ * building a JSONObject tree on the ui thread like JsonHttpResponseHandler does.
+ */
+public abstract class StreamingJsonResponseHandler<T> extends AsyncHttpResponseHandler {
+	private static final String TAG = "StreamingJsonResponseHandler";
+	private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+	/**
+	 * Decode the response, called on a background thread
+	 */
+	protected abstract T decode(JsonReader reader) throws IOException;
+
+	/**
+	 * Called on the ui thread with the decoded response
+	 */
+	public abstract void onDecoded(int statusCode, T result);
+
+	@Override
+	public void onSuccess(final int statusCode, final String content) {
+		TaskScheduler.execute(TaskScheduler.Lane.VISIBLE, new Runnable() {
+
+			@Override
+			public void run() {
+				JsonReader reader = new JsonReader(new StringReader(content == null ? "" : content));
+				try {
+					final T result = decode(reader);
+					mHandler.post(new Runnable() {
+
+						@Override
+						public void run() {
+							onDecoded(statusCode, result);
+						}
+					});
+				}
+				catch (final Exception e) {
+					// the reader throws IllegalStateException and NumberFormatException as well as IOException on bad input
+					SurespotLog.w(TAG, e, "onSuccess, could not decode response");
+					mHandler.post(new Runnable() {
+
+						@Override
+						public void run() {
+							onFailure(e, content);
+						}
+					});
+				}
+				finally {
+					try {
+						reader.close();
+					}
+					catch (IOException e) {
+						SurespotLog.w(TAG, e, "onSuccess");
+					}
+				}
+			}
+		});
+	}
+}
@@ -1,10 +1,13 @@
 package com.twofours.surespot.services;
 
 import java.security.PublicKey;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Map;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
 
 import android.annotation.SuppressLint;
 import android.app.Notification;
@@ -22,9 +25,11 @@ import ch.boye.httpclientandroidlib.cookie.Cookie;
 import com.google.common.cache.CacheBuilder;
 import com.google.common.cache.CacheLoader;
 import com.google.common.cache.CacheLoader.InvalidCacheLoadException;
+import com.google.common.cache.CacheStats;
 import com.google.common.cache.LoadingCache;
 import com.twofours.surespot.R;
 import com.twofours.surespot.SurespotApplication;
+import com.twofours.surespot.TaskScheduler;
 import com.twofours.surespot.activities.MainActivity;
 import com.twofours.surespot.common.SurespotConstants;
 import com.twofours.surespot.common.SurespotLog;
@@ -38,6 +43,9 @@ import com.twofours.surespot.ui.UIUtils;
 @SuppressLint("NewApi")
 public class CredentialCachingService extends Service {
 	private static final String TAG = "CredentialCachingService";
+	// secrets are tiny, the bound is just so long running sessions don't accumulate every key version we've ever seen
+	private static final int SHARED_SECRET_CACHE_SIZE = 250;
+	private static final int SHARED_SECRET_EXPIRY_HOURS = 24;
 
 	private final IBinder mBinder = new CredentialCachingBinder();
 
@@ -47,6 +55,7 @@ public class CredentialCachingService extends Service {
 	private LoadingCache<PublicKeyPairKey, PublicKeys> mPublicIdentities;
 	private LoadingCache<SharedSecretKey, byte[]> mSharedSecrets;
 	private LoadingCache<String, String> mLatestVersions;
+	private SharedSecretStore mSecretStore;
 
 	@Override
 	public void onCreate() {
@@ -97,8 +106,15 @@ public class CredentialCachingService extends Service {
 
 				try {
 					PublicKey publicKey = mPublicIdentities.get(new PublicKeyPairKey(new VersionMap(key.getTheirUsername(), key.getTheirVersion()))).getDHKey();
-					return EncryptionController.generateSharedSecretSync(IdentityController.getIdentity(key.getOurUsername()).getKeyPairDH(key.getOurVersion())
-							.getPrivate(), publicKey);
+					byte[] secret = EncryptionController.generateSharedSecretSync(IdentityController.getIdentity(key.getOurUsername())
+							.getKeyPairDH(key.getOurVersion()).getPrivate(), publicKey);
+
+					// remember it so we don't have to do this again after a restart
+					SharedSecretStore store = mSecretStore;
+					if (secret != null && store != null && store.getUsername().equals(key.getOurUsername())) {
+						store.put(key.getOurVersion(), key.getTheirUsername(), key.getTheirVersion(), secret);
+					}
+					return secret;
 				}
 				catch (InvalidCacheLoadException e) {
 					SurespotLog.w(TAG, e, "secretCacheLoader");
@@ -122,7 +138,8 @@ public class CredentialCachingService extends Service {
 		};
 
 		mPublicIdentities = CacheBuilder.newBuilder().build(keyPairCacheLoader);
-		mSharedSecrets = CacheBuilder.newBuilder().build(secretCacheLoader);
+		mSharedSecrets = CacheBuilder.newBuilder().maximumSize(SHARED_SECRET_CACHE_SIZE).expireAfterAccess(SHARED_SECRET_EXPIRY_HOURS, TimeUnit.HOURS)
+				.recordStats().build(secretCacheLoader);
 		mLatestVersions = CacheBuilder.newBuilder().build(versionCacheLoader);
 		mIdentities = new HashMap<String, SurespotIdentity>(5);
 	}
@@ -132,6 +149,17 @@ public class CredentialCachingService extends Service {
 		mLoggedInUser = identity.getUsername();
 		this.mCookies.put(identity.getUsername(), cookie);
 		updateIdentity(identity);
+		loadSharedSecrets(identity);
+	}
+
+	// seed the secret cache with the secrets we've saved for this identity
+	private void loadSharedSecrets(SurespotIdentity identity) {
+		mSecretStore = new SharedSecretStore(this, identity);
+		String username = identity.getUsername();
+		for (SharedSecretStore.Entry entry : mSecretStore.load()) {
+			mSharedSecrets.put(new SharedSecretKey(new VersionMap(username, entry.ourVersion), new VersionMap(entry.theirUsername, entry.theirVersion)),
+					entry.secret);
+		}
 	}
 
 	public void updateIdentity(SurespotIdentity identity) {
@@ -146,6 +174,13 @@ public class CredentialCachingService extends Service {
 					new PublicKeys(version, identity.getKeyPairDH(version).getPublic(), identity.getKeyPairDSA(version).getPublic(), 0));
 		}
 
+		// we rolled keys so start a new store encrypted with the new key
+		SharedSecretStore store = mSecretStore;
+		if (store != null && store.getUsername().equals(identity.getUsername()) && !store.getKeyVersion().equals(identity.getLatestVersion())) {
+			store.delete();
+			mSecretStore = new SharedSecretStore(this, identity);
+		}
+
 	}
 
 	public String getLoggedInUser() {
@@ -173,6 +208,67 @@ public class CredentialCachingService extends Service {
 
 	}
 
+	/**
+	 * Generate the shared secrets for our latest key and the latest key of each user in the background so the first decrypt for their chat doesn't
+	 * have to do the ECDH inline. Concurrent gets for the same secret wait on the load that's already in flight.
+	 */
+	public void precomputeSharedSecrets(final Collection<String> theirUsernames) {
+		final String ourUsername = getLoggedInUser();
+		if (ourUsername == null || theirUsernames.isEmpty()) {
+			return;
+		}
+
+		final ArrayList<String> usernames = new ArrayList<String>(theirUsernames);
+		TaskScheduler.execute(TaskScheduler.Lane.PREFETCH, new Runnable() {
+
+			@Override
+			public void run() {
+				SurespotIdentity identity = getIdentity(ourUsername);
+				if (identity == null) {
+					return;
+				}
+				String ourVersion = identity.getLatestVersion();
+
+				int computed = 0;
+				for (String theirUsername : usernames) {
+					// bail if we logged out or switched users in the meantime
+					if (!ourUsername.equals(getLoggedInUser())) {
+						return;
+					}
+
+					String theirVersion = getLatestVersion(theirUsername);
+					if (theirVersion == null) {
+						continue;
+					}
+
+					SharedSecretKey key = new SharedSecretKey(new VersionMap(ourUsername, ourVersion), new VersionMap(theirUsername, theirVersion));
+					if (mSharedSecrets.getIfPresent(key) == null) {
+						try {
+							mSharedSecrets.get(key);
+							computed++;
+						}
+						catch (InvalidCacheLoadException e) {
+							SurespotLog.w(TAG, e, "precomputeSharedSecrets");
+						}
+						catch (ExecutionException e) {
+							SurespotLog.w(TAG, e, "precomputeSharedSecrets");
+						}
+					}
+				}
+
+				SurespotLog.v(TAG, "precomputeSharedSecrets, computed %d of %d secrets, stats: %s", computed, usernames.size(), getSharedSecretStats());
+			}
+		});
+	}
+
+	/**
+	 * 
+	 * @return hit, miss and load time statistics for the shared secret cache
+	 */
+	public CacheStats getSharedSecretStats() {
+		return mSharedSecrets.stats();
+	}
+
 	public SurespotIdentity getIdentity() {
 		return getIdentity(mLoggedInUser);
 	}
@@ -197,6 +293,10 @@ public class CredentialCachingService extends Service {
 				mSharedSecrets.invalidate(key);
 			}
 		}
+
+		if (mSecretStore != null) {
+			mSecretStore.removeUser(username);
+		}
 	}
 
 	public synchronized void clear() {
@@ -211,18 +311,28 @@ public class CredentialCachingService extends Service {
 		mCookies.remove(username);
 		mIdentities.remove(username);
 
+		if (mSecretStore != null && mSecretStore.getUsername().equals(username)) {
+			if (fully) {
+				mSecretStore.delete();
+			}
+			mSecretStore = null;
+		}
+
 		if (fully) {
 			for (SharedSecretKey key : mSharedSecrets.asMap().keySet()) {
 				if (key.getOurUsername().equals(username)) {
 					mSharedSecrets.invalidate(key);
 				}
 			}
+			SharedSecretStore.delete(this, username);
 		}
 	}
 
 	public synchronized void logout() {
 		if (mLoggedInUser != null) {
 			SurespotLog.i(TAG, "Logging out: %s", mLoggedInUser);
+			SurespotLog.v(TAG, "shared secret cache stats: %s", getSharedSecretStats());
+			SurespotLog.v(TAG, "task scheduler stats: %s", TaskScheduler.getStats());
 			
 			SharedPreferences sp = getSharedPreferences(mLoggedInUser, Context.MODE_PRIVATE);
 			boolean stopCache = sp.getBoolean("pref_stop_cache_logout", false);
@@ -0,0 +1,215 @@
+package com.twofours.surespot.services;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import android.content.Context;
+
+import com.twofours.surespot.TaskScheduler;
+import com.twofours.surespot.common.FileUtils;
+import com.twofours.surespot.common.SurespotLog;
+import com.twofours.surespot.encryption.EncryptionController;
+import com.twofours.surespot.identity.SurespotIdentity;
+
+/**
+ * Shared secrets we've already derived for an identity, persisted so we don't have to redo the ECDH for every contact after a restart.
+ *
+ * The file is encrypted with a key derived from the identity's latest private DH key, so rolling keys makes the old file unreadable and it's
+ * rebuilt as secrets are generated again.
+ */
+public class SharedSecretStore {
+	private static final String TAG = "SharedSecretStore";
+	private static final String FILENAME = "secrets.sss";
+	private static final String KEY_PURPOSE = "surespot shared secret store";
+	private static final int FORMAT_VERSION = 1;
+
+	private final String mUsername;
+	private final String mFilename;
+	private final String mKeyVersion;
+	private final byte[] mKey;
+	private final HashMap<String, Entry> mEntries = new HashMap<String, Entry>();
+	private final AtomicBoolean mSavePending = new AtomicBoolean();
+	private boolean mDeleted;
+
+	public static class Entry {
+		public final String ourVersion;
+		public final String theirUsername;
+		public final String theirVersion;
+		public final byte[] secret;
+
+		public Entry(String ourVersion, String theirUsername, String theirVersion, byte[] secret) {
+			this.ourVersion = ourVersion;
+			this.theirUsername = theirUsername;
+			this.theirVersion = theirVersion;
+			this.secret = secret;
+		}
+
+		private String getKey() {
+			return getKey(ourVersion, theirUsername, theirVersion);
+		}
+
+		private static String getKey(String ourVersion, String theirUsername, String theirVersion) {
+			return ourVersion + ":" + theirUsername + ":" + theirVersion;
+		}
+	}
+
+	public SharedSecretStore(Context context, SurespotIdentity identity) {
+		mUsername = identity.getUsername();
+		mFilename = FileUtils.getStateDir(context) + File.separator + mUsername + File.separator + FILENAME;
+		mKeyVersion = identity.getLatestVersion();
+		mKey = EncryptionController.deriveLocalKey(identity.getKeyPairDH(mKeyVersion).getPrivate(), KEY_PURPOSE);
+	}
+
+	public String getUsername() {
+		return mUsername;
+	}
+
+	/**
+	 *
+	 * @return the identity key version the store is encrypted with
+	 */
+	public String getKeyVersion() {
+		return mKeyVersion;
+	}
+
+	/**
+	 * Read the store from disk, if it can't be decrypted it's deleted
+	 */
+	public synchronized List<Entry> load() {
+		long start = System.currentTimeMillis();
+		mEntries.clear();
+
+		byte[] cipherData = null;
+		try {
+			cipherData = FileUtils.readFile(mFilename);
+		}
+		catch (FileNotFoundException e) {
+			SurespotLog.v(TAG, "load, no shared secret store found");
+		}
+		catch (IOException e) {
+			SurespotLog.w(TAG, e, "load");
+		}
+
+		if (cipherData != null) {
+			byte[] plainData = EncryptionController.symmetricDecryptLocal(mKey, cipherData);
+			if (plainData == null) {
+				// keys were rolled or the file is corrupt
+				SurespotLog.i(TAG, "load, could not decrypt shared secret store, deleting");
+				new File(mFilename).delete();
+			}
+			else {
+				try {
+					DataInputStream in = new DataInputStream(new ByteArrayInputStream(plainData));
+					if (in.readInt() == FORMAT_VERSION) {
+						int count = in.readInt();
+						for (int i = 0; i < count; i++) {
+							String ourVersion = in.readUTF();
+							String theirUsername = in.readUTF();
+							String theirVersion = in.readUTF();
+							byte[] secret = new byte[in.readUnsignedShort()];
+							in.readFully(secret);
+
+							Entry entry = new Entry(ourVersion, theirUsername, theirVersion, secret);
+							mEntries.put(entry.getKey(), entry);
+						}
+					}
+				}
+				catch (IOException e) {
+					SurespotLog.w(TAG, e, "load");
+					mEntries.clear();
+				}
+			}
+		}
+
+		SurespotLog.v(TAG, "load, loaded %d shared secrets in %d ms", mEntries.size(), System.currentTimeMillis() - start);
+		return new ArrayList<Entry>(mEntries.values());
+	}
+
+	public void put(String ourVersion, String theirUsername, String theirVersion, byte[] secret) {
+		synchronized (this) {
+			Entry entry = new Entry(ourVersion, theirUsername, theirVersion, secret);
+			mEntries.put(entry.getKey(), entry);
+		}
+		scheduleSave();
+	}
+
+	public void removeUser(String theirUsername) {
+		boolean removed = false;
+		synchronized (this) {
+			for (Iterator<Entry> iterator = mEntries.values().iterator(); iterator.hasNext();) {
+				if (iterator.next().theirUsername.equals(theirUsername)) {
+					iterator.remove();
+					removed = true;
+				}
+			}
+		}
+
+		if (removed) {
+			scheduleSave();
+		}
+	}
+
+	public synchronized void delete() {
+		mDeleted = true;
+		mEntries.clear();
+		new File(mFilename).delete();
+	}
+
+	public static void delete(Context context, String username) {
+		new File(FileUtils.getStateDir(context) + File.separator + username + File.separator + FILENAME).delete();
+	}
+
+	// coalesce bursts of new secrets into one write
+	private void scheduleSave() {
+		if (mSavePending.compareAndSet(false, true)) {
+			TaskScheduler.execute(TaskScheduler.Lane.BACKGROUND, new Runnable() {
+
+				@Override
+				public void run() {
+					mSavePending.set(false);
+					save();
+				}
+			});
+		}
+	}
+
+	private synchronized void save() {
+		if (mDeleted) {
+			return;
+		}
+
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			DataOutputStream out = new DataOutputStream(bytes);
+			out.writeInt(FORMAT_VERSION);
+			out.writeInt(mEntries.size());
+			for (Entry entry : mEntries.values()) {
+				out.writeUTF(entry.ourVersion);
+				out.writeUTF(entry.theirUsername);
+				out.writeUTF(entry.theirVersion);
+				out.writeShort(entry.secret.length);
+				out.write(entry.secret);
+			}
+			out.close();
+
+			byte[] cipherData = EncryptionController.symmetricEncryptLocal(mKey, bytes.toByteArray());
+			if (cipherData != null && FileUtils.ensureDir(new File(mFilename).getParent())) {
+				FileUtils.writeFile(mFilename, cipherData);
+				SurespotLog.v(TAG, "save, saved %d shared secrets", mEntries.size());
+			}
+		}
+		catch (IOException e) {
+			SurespotLog.w(TAG, e, "save");
+		}
+	}
+}
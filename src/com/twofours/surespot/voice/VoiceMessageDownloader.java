@@ -16,27 +16,19 @@
 
 package com.twofours.surespot.voice;
 
-import java.io.FileNotFoundException;
-import java.io.IOException;
-import java.io.InputStream;
-import java.io.InterruptedIOException;
-import java.io.PipedInputStream;
-import java.io.PipedOutputStream;
 import java.lang.ref.WeakReference;
 
-import android.net.Uri;
 import android.os.Handler;
 import android.view.View;
 import android.widget.SeekBar;
 
 import com.twofours.surespot.R;
-import com.twofours.surespot.SurespotApplication;
+import com.twofours.surespot.TaskScheduler;
 import com.twofours.surespot.activities.MainActivity;
 import com.twofours.surespot.chat.ChatAdapter;
+import com.twofours.surespot.chat.MediaFetcher;
 import com.twofours.surespot.chat.SurespotMessage;
 import com.twofours.surespot.common.SurespotLog;
-import com.twofours.surespot.common.Utils;
-import com.twofours.surespot.encryption.EncryptionController;
 import com.twofours.surespot.ui.UIUtils;
 
 /**
@@ -101,7 +93,17 @@ public class VoiceMessageDownloader {
 			seekBar.setTag(R.id.tagDownloader, decryptionTaskWrapper);
 			message.setLoaded(false);
 			message.setLoading(true);
-			SurespotApplication.THREAD_POOL_EXECUTOR.execute(task);
+			task.mToken = TaskScheduler.execute(TaskScheduler.Lane.VISIBLE, task);
+		}
+	}
+
+	/**
+	 * Cancel any pending download for this view, call when the view is rebound to a message that doesn't need it
+	 */
+	public void cancel(View parentView) {
+		VoiceMessageDownloaderTask task = getBitmapDownloaderTask(parentView);
+		if (task != null) {
+			task.cancel();
 		}
 	}
 
@@ -145,9 +147,10 @@ public class VoiceMessageDownloader {
 	/**
 	 * The actual AsyncTask that will asynchronously download the image.
 	 */
-	class VoiceMessageDownloaderTask implements Runnable {
+	class VoiceMessageDownloaderTask implements Runnable, TaskScheduler.Droppable {
 		private SurespotMessage mMessage;
-		private boolean mCancelled;
+		private volatile boolean mCancelled;
+		private volatile TaskScheduler.Token mToken;
 
 		public SurespotMessage getMessage() {
 			return mMessage;
@@ -162,100 +165,37 @@ public class VoiceMessageDownloader {
 
 		public void cancel() {
 			mCancelled = true;
+			TaskScheduler.Token token = mToken;
+			if (token != null) {
+				token.cancel();
+			}
+		}
+
+		@Override
+		public void onDropped() {
+			mMessage.setLoaded(true);
+			mMessage.setLoading(false);
+			mChatAdapter.checkLoaded();
 		}
 
 		@Override
 		public void run() {
 			byte[] soundbytes = mMessage.getPlainBinaryData();
 			if (soundbytes == null) {
-				// see if the data has been sent to us inline
-				InputStream voiceStream = null;
-				
-				if (mCancelled) {					
+				if (mCancelled) {
 					return;
 				}
 
-				if (mMessage.getData().startsWith("file")) {
-					try {
-						SurespotLog.v(TAG, "loading voice stream from local file");
-						voiceStream = MainActivity.getContext().getContentResolver().openInputStream(Uri.parse(mMessage.getData()));
-					}
-					catch (FileNotFoundException e) {
-						SurespotLog.w(TAG, e, "VoiceMessageDownloaderTask");
-					}
-				}
-				else {
-					SurespotLog.v(TAG, "getting voice stream from cloud");
-					voiceStream = MainActivity.getNetworkController().getFileStream(MainActivity.getContext(), mMessage.getData());
-				}
+				// shares the download with ChatController if it's fetching the same message as it arrives
+				soundbytes = MediaFetcher.getPlainBytes(mMessage);
 
 				if (mCancelled) {
-					try {
-						if (voiceStream != null) {
-							voiceStream.close();
-						}
-					}
-					catch (IOException e) {
-						SurespotLog.w(TAG, e, "VoiceMessageDownloaderTask");
-					}
+					mMessage.setPlainBinaryData(soundbytes);
+					mMessage.setLoaded(true);
+					mMessage.setLoading(false);
+					mChatAdapter.checkLoaded();
 					return;
 				}
-
-				if (!mCancelled && voiceStream != null) {
-					PipedOutputStream out = new PipedOutputStream();
-					PipedInputStream inputStream = null;
-					try {
-						inputStream = new PipedInputStream(out);
-
-						if (mCancelled) {
-							mMessage.setLoaded(true);
-							mMessage.setLoading(false);
-							mChatAdapter.checkLoaded();
-							return;
-						}
-
-						EncryptionController.runDecryptTask(mMessage.getOurVersion(), mMessage.getOtherUser(), mMessage.getTheirVersion(), mMessage.getIv(),
-								voiceStream, out);
-
-						soundbytes = Utils.inputStreamToBytes(inputStream);
-
-						if (mCancelled) {
-							mMessage.setPlainBinaryData(soundbytes);
-							mMessage.setLoaded(true);
-							mMessage.setLoading(false);
-							mChatAdapter.checkLoaded();
-							return;
-						}
-					}
-					catch (InterruptedIOException ioe) {
-
-						SurespotLog.w(TAG, ioe, "VoiceMessageDownloaderTask");
-
-					}
-					catch (IOException e) {
-						SurespotLog.w(TAG, e, "VoiceMessageDownloaderTask");
-					}
-					finally {
-
-						try {
-							if (voiceStream != null) {
-								voiceStream.close();
-							}
-						}
-						catch (IOException e) {
-							SurespotLog.w(TAG, e, "VoiceMessageDownloaderTask");
-						}
-
-						try {
-							if (inputStream != null) {
-								inputStream.close();
-							}
-						}
-						catch (IOException e) {
-							SurespotLog.w(TAG, e, "VoiceMessageDownloaderTask");
-						}
-					}
-				}
 			}
 			else {
 				SurespotLog.v(TAG, "getting voice stream from cache");
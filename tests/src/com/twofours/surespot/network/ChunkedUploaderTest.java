@@ -0,0 +1,315 @@
+package com.twofours.surespot.network;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import android.content.Context;
+import android.test.AndroidTestCase;
+import ch.boye.httpclientandroidlib.impl.client.DefaultHttpClient;
+import ch.boye.httpclientandroidlib.impl.client.DefaultHttpRequestRetryHandler;
+
+import com.twofours.surespot.Tuple;
+
+public class ChunkedUploaderTest extends AndroidTestCase {
+	private static final String IV = "test-iv";
+	private static final int TOTAL = ChunkedUploader.CHUNK_SIZE * 2 + 1000;
+
+	private File mFile;
+	private byte[] mData;
+	private StandInServer mServer;
+	private ChunkedUploader mUploader;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		mData = new byte[TOTAL];
+		new Random(42).nextBytes(mData);
+		mFile = new File(getContext().getCacheDir(), "chunked_upload_test");
+		FileOutputStream out = new FileOutputStream(mFile);
+		out.write(mData);
+		out.close();
+
+		mServer = new StandInServer(TOTAL);
+		mServer.start();
+
+		DefaultHttpClient client = new DefaultHttpClient();
+		// the uploader does its own retrying, don't let the client hide dropped connections
+		client.setHttpRequestRetryHandler(new DefaultHttpRequestRetryHandler(0, false));
+		mUploader = new ChunkedUploader(getContext(), client);
+		mUploader.clear();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		mServer.close();
+		mUploader.clear();
+		mFile.delete();
+		super.tearDown();
+	}
+
+	public void testFreshUpload() {
+		Tuple<Integer, String> result = upload();
+
+		assertEquals(200, (int) result.first);
+		assertEquals("done", result.second);
+		assertEquals(Arrays.asList(chunk(0), chunk(1), chunk(2)), mServer.getRanges());
+		assertTrue(Arrays.equals(mData, mServer.getReceived()));
+	}
+
+	public void testResumesAfterDroppedConnection() {
+		mServer.dropChunk(1);
+
+		Tuple<Integer, String> result = upload();
+
+		assertEquals(200, (int) result.first);
+		assertEquals(Arrays.asList(chunk(0), chunk(1), verify(), chunk(1), chunk(2)), mServer.getRanges());
+		assertTrue(Arrays.equals(mData, mServer.getReceived()));
+	}
+
+	public void testResumesFromSavedProgress() {
+		mServer.have(ChunkedUploader.CHUNK_SIZE, mData);
+		saveProgress(ChunkedUploader.CHUNK_SIZE);
+
+		Tuple<Integer, String> result = upload();
+
+		assertEquals(200, (int) result.first);
+		assertEquals(Arrays.asList(verify(), chunk(1), chunk(2)), mServer.getRanges());
+		assertTrue(Arrays.equals(mData, mServer.getReceived()));
+	}
+
+	public void testResendsLastChunkWhenServerHasEverything() {
+		mServer.have(TOTAL, mData);
+		saveProgress(ChunkedUploader.CHUNK_SIZE);
+
+		Tuple<Integer, String> result = upload();
+
+		assertEquals(200, (int) result.first);
+		assertEquals(Arrays.asList(verify(), chunk(2)), mServer.getRanges());
+	}
+
+	public void testResendsLastChunkWhenServerDoesNotFinish() {
+		mServer.stallFinish(1);
+
+		Tuple<Integer, String> result = upload();
+
+		assertEquals(200, (int) result.first);
+		assertEquals(Arrays.asList(chunk(0), chunk(1), chunk(2), chunk(2)), mServer.getRanges());
+		assertTrue(Arrays.equals(mData, mServer.getReceived()));
+	}
+
+	public void testGivesUpWhenServerNeverFinishes() {
+		mServer.stallFinish(Integer.MAX_VALUE);
+
+		Tuple<Integer, String> result = upload();
+
+		assertEquals(500, (int) result.first);
+		// the original last chunk plus a bounded number of resends
+		assertTrue(mServer.getRanges().size() < 12);
+	}
+
+	public void testUnsupportedServerComesStraightBack() {
+		mServer.answerWith(404);
+
+		Tuple<Integer, String> result = upload();
+
+		assertEquals(404, (int) result.first);
+		assertEquals(Arrays.asList(chunk(0)), mServer.getRanges());
+		assertEquals(0, getContext().getSharedPreferences("uploads", Context.MODE_PRIVATE).getLong(IV, 0));
+	}
+
+	private Tuple<Integer, String> upload() {
+		return mUploader.upload(mServer.getUrl(), IV, mFile, "image/", null);
+	}
+
+	private void saveProgress(long offset) {
+		getContext().getSharedPreferences("uploads", Context.MODE_PRIVATE).edit().putLong(IV, offset).commit();
+	}
+
+	private static String chunk(int index) {
+		long start = (long) index * ChunkedUploader.CHUNK_SIZE;
+		long end = Math.min(start + ChunkedUploader.CHUNK_SIZE, TOTAL) - 1;
+		return "bytes " + start + "-" + end + "/" + TOTAL;
+	}
+
+	private static String verify() {
+		return "bytes */" + TOTAL;
+	}
+
+	/**
+	 * Just enough of a resumable upload server to drive the uploader, one request per connection
+	 */
+	private static class StandInServer extends Thread {
+		private final ServerSocket mSocket;
+		private final byte[] mReceived;
+		private final List<String> mRanges = new ArrayList<String>();
+		private int mHave;
+		private int mChunks;
+		private int mDropChunk = -1;
+		private int mStallFinish;
+		private int mAnswerWith;
+
+		StandInServer(int total) throws IOException {
+			mSocket = new ServerSocket(0, 0, InetAddress.getByName("127.0.0.1"));
+			mReceived = new byte[total];
+		}
+
+		String getUrl() {
+			return "http://127.0.0.1:" + mSocket.getLocalPort() + "/images/1/friend/1/" + IV;
+		}
+
+		synchronized void have(int count, byte[] data) {
+			System.arraycopy(data, 0, mReceived, 0, count);
+			mHave = count;
+		}
+
+		synchronized void dropChunk(int chunk) {
+			mDropChunk = chunk;
+		}
+
+		synchronized void stallFinish(int times) {
+			mStallFinish = times;
+		}
+
+		synchronized void answerWith(int status) {
+			mAnswerWith = status;
+		}
+
+		synchronized List<String> getRanges() {
+			return new ArrayList<String>(mRanges);
+		}
+
+		synchronized byte[] getReceived() {
+			return Arrays.copyOf(mReceived, mHave);
+		}
+
+		void close() throws IOException {
+			mSocket.close();
+		}
+
+		@Override
+		public void run() {
+			while (!mSocket.isClosed()) {
+				Socket socket = null;
+				try {
+					socket = mSocket.accept();
+					handle(socket);
+				}
+				catch (IOException e) {
+					// closed
+				}
+				finally {
+					if (socket != null) {
+						try {
+							socket.close();
+						}
+						catch (IOException e) {
+						}
+					}
+				}
+			}
+		}
+
+		private void handle(Socket socket) throws IOException {
+			InputStream in = socket.getInputStream();
+			String range = null;
+			int length = 0;
+			String line;
+			readLine(in);
+			while ((line = readLine(in)).length() > 0) {
+				int colon = line.indexOf(':');
+				String name = line.substring(0, colon).trim();
+				String value = line.substring(colon + 1).trim();
+				if (name.equalsIgnoreCase("Content-Range")) {
+					range = value;
+				}
+				else if (name.equalsIgnoreCase("Content-Length")) {
+					length = Integer.parseInt(value);
+				}
+			}
+
+			byte[] body = new byte[length];
+			int read = 0;
+			while (read < length) {
+				int count = in.read(body, read, length - read);
+				if (count < 0) {
+					return;
+				}
+				read += count;
+			}
+
+			synchronized (this) {
+				mRanges.add(range);
+				if (mAnswerWith != 0) {
+					respond(socket, mAnswerWith, null, null);
+					return;
+				}
+
+				// bytes */total just asks what we have
+				if (!range.startsWith("bytes */")) {
+					if (mChunks++ == mDropChunk) {
+						return;
+					}
+
+					int dash = range.indexOf('-');
+					int start = Integer.parseInt(range.substring("bytes ".length(), dash));
+					if (start > mHave) {
+						respond(socket, 416, null, null);
+						return;
+					}
+					System.arraycopy(body, 0, mReceived, start, length);
+					mHave = Math.max(mHave, start + length);
+
+					if (mHave == mReceived.length) {
+						if (mStallFinish > 0) {
+							mStallFinish--;
+						}
+						else {
+							respond(socket, 200, null, "done");
+							return;
+						}
+					}
+				}
+
+				respond(socket, 308, mHave > 0 ? "bytes=0-" + (mHave - 1) : null, null);
+			}
+		}
+
+		private static void respond(Socket socket, int status, String range, String body) throws IOException {
+			byte[] content = body == null ? new byte[0] : body.getBytes("UTF-8");
+			StringBuilder response = new StringBuilder();
+			response.append("HTTP/1.1 ").append(status).append(" Stand In\r\n");
+			if (range != null) {
+				response.append("Range: ").append(range).append("\r\n");
+			}
+			response.append("Content-Length: ").append(content.length).append("\r\n");
+			response.append("Connection: close\r\n\r\n");
+
+			OutputStream out = socket.getOutputStream();
+			out.write(response.toString().getBytes("US-ASCII"));
+			out.write(content);
+			out.flush();
+		}
+
+		private static String readLine(InputStream in) throws IOException {
+			ByteArrayOutputStream line = new ByteArrayOutputStream();
+			int b;
+			while ((b = in.read()) != -1 && b != '\n') {
+				if (b != '\r') {
+					line.write(b);
+				}
+			}
+			return line.toString("US-ASCII");
+		}
+	}
+}